@@ -1,16 +1,19 @@
 package client;
 
 import common.Configurator;
+import common.LatencyHistogram;
 import common.Logger;
 import common.Message;
+import common.MessageOutput;
+import common.MessageType;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
@@ -26,13 +29,31 @@ public class Client {
     private static final Scanner usersInput = new Scanner(System.in);   // статик или нет ?!
     private static final int POST_SENDING_DELAY = 700;
     private static final String name_default = "";
+    private static final int render_queue_default = 1000;
+    private static final int history_recent_default = 1000;
+    private static final String FIND_COMMAND = "/find ";
+    private static final int FIND_LIMIT = 20;
+    private static final String LATENCY_COMMAND = "/latency";
+    private static final int stream_reset_objects_default = 1000;
+    private static final long stream_reset_bytes_default = 1024 * 1024;
 
     private final String HUB;
     private final int PORT;
-    private final Path settingFile;
+    /**
+     * Хранилище настроек, связанное с файлом, из которого запущен Клиент.
+     */
+    private final Configurator config;
     private final boolean LOG_INBOUND;
     private final boolean LOG_OUTBOUND;
     private final boolean LOG_EVENTS;
+    /**
+     * Наибольшая длина очереди вывода в консоль, сверх которой старые сообщения сворачиваются.
+     */
+    final int RENDER_QUEUE;
+    /**
+     * Сколько последних записей локальной истории держать в памяти для поиска.
+     */
+    private final int HISTORY_RECENT;
 
     final Logger logger;
 
@@ -47,15 +68,37 @@ public class Client {
     /**
      * Исходящий поток отправлять сообщения на сервер.
      */
-    private ObjectOutputStream translator = null;
+    private MessageOutput translator = null;
     /**
      * Поток-приёмник входящих сообщений.
      */
     private Receiver receiver = null;
+    /**
+     * Известный клиенту состав участников, пополняемый изменениями от сервера.
+     */
+    final Roster roster = new Roster();
+    /**
+     * Локальная история переписки под текущим именем, либо {@code ничто}, если её не удалось открыть.
+     */
+    private volatile History history;
+    /**
+     * Задержка доставки принятых сообщений в миллисекундах: от отправки автором до приёма здесь.
+     * Отсчитывается по часам разных машин, поэтому включает их расхождение.
+     */
+    private final LatencyHistogram delivery = new LatencyHistogram();
+    /**
+     * Задержка последнего участка в миллисекундах: от приёма сообщения сервером до приёма здесь.
+     */
+    private final LatencyHistogram lastLeg = new LatencyHistogram();
     /**
      * Сигнализирует совпадение текущего имени пользователя данным на Сервере.
      */
     private volatile boolean registered = false;
+    /**
+     * Токен возобновления сеанса, выданный сервером при последней регистрации,
+     * либо {@code ничто}, если такового нет.
+     */
+    private volatile String sessionToken;
 
     /**
      * Сценарий исполнения Клиента: определить источник настроек и
@@ -72,6 +115,8 @@ public class Client {
         // Установление соединения с Сервером
         client.connect();
 
+        client.closeHistory();
+        client.config.close();
         client.logger.stopLogging();
         System.out.println("END running Client");   // monitor
     }
@@ -83,15 +128,17 @@ public class Client {
      * @param filePath путь к файлу настроек.
      */
     public Client(Path filePath) {
-        Configurator config = new Configurator(filePath);
+        config = new Configurator(filePath);
         HUB = config.getStringProperty("HOST").orElse(host_default);
         PORT = config.getIntProperty("PORT").orElse(port_default);
         userName = config.getStringProperty("NAME").orElse(name_default);
-        settingFile = filePath;
 
         LOG_INBOUND = config.getBoolProperty("LOG_INBOUND").orElse(true);
         LOG_OUTBOUND = config.getBoolProperty("LOG_INBOUND").orElse(true);
         LOG_EVENTS = config.getBoolProperty("LOG_EVENTS").orElse(false);
+        RENDER_QUEUE = config.getIntProperty("RENDER_QUEUE").orElse(render_queue_default);
+        HISTORY_RECENT = config.getIntProperty("HISTORY_RECENT").orElse(history_recent_default);
+        sessionToken = config.getStringProperty("TOKEN").orElse(null);
         logger = getLogger();
         logger.setLogFile(Message.isAcceptableName(userName) ? (userName + ".log") : "default_user.log");
     }
@@ -125,6 +172,15 @@ public class Client {
         userName = newName;
         logger.setLogFile(newName + ".log");        // TODO: уточнить проверку на недопустимые символы в файловой системе ↑
         logger.logEvent("установлено имя: " + newName);
+        openHistory(newName);
+    }
+
+    /**
+     * Выдаёт локальную историю переписки под текущим именем.
+     * @return история или {@code ничто}, если её не удалось открыть.
+     */
+    History getHistory() {
+        return history;
     }
 
     /**
@@ -135,6 +191,14 @@ public class Client {
         return userName;
     }
 
+    /**
+     * Запоминает токен возобновления сеанса, выданный сервером.
+     * @param token полученный токен.
+     */
+    public void setSessionToken(String token) {
+        sessionToken = token;
+    }
+
     /**
      * Выдаёт ссылку на сокетное соединение, открытое клиентом.
      * @return ссылку на установленный сокет.
@@ -152,9 +216,39 @@ public class Client {
      * @param msg  засылаемое сообщение.
      * @throws IOException если ошибка записи в поток.
      */
-    private void push(Message msg) throws IOException {
-        translator.writeObject(msg);
+    private synchronized void push(Message msg) throws IOException {
+        translator.write(msg);
         logger.logOutbound(msg);
+        History current = history;
+        if (current != null && msg.isTransferable())
+            current.sent(msg);
+    }
+    /**
+     * Отвечает серверу на проверочный сигнал. Ответ не логируется.
+     * Вызывается Приёмником, поэтому ошибку записи только протоколирует:
+     * обрыв связи Приёмник обнаружит сам.
+     */
+    void answerPing() {
+        try {
+            synchronized (this) {
+                translator.write(Message.pong(userName));
+            }
+        } catch (IOException e) {
+            logger.logEvent("Ответ на проверочный сигнал не отправился: " + e.getMessage());
+        }
+    }
+    /**
+     * Запрашивает у сервера сведения о составе участников: изменения после известной версии
+     * или, если {@code fromScratch}, полный снимок. Вызывается и Приёмником, когда полученные
+     * изменения не удалось применить, поэтому ошибку записи только протоколирует.
+     * @param fromScratch запросить ли полный снимок вместо изменений.
+     */
+    void requestRoster(boolean fromScratch) {
+        try {
+            push(Message.rosterRequest(userName, fromScratch ? -1 : roster.getVersion()));
+        } catch (IOException e) {
+            logger.logEvent("Запрос списка участников не отправился: " + e.getMessage());
+        }
     }
     /**
      * Отправляет на сервер запрос регистрации того имени,
@@ -164,6 +258,18 @@ public class Client {
     private void registeringRequest() throws IOException {
         push(Message.registering(userName));
     }
+    /**
+     * Отправляет на сервер первый запрос после подключения: если от прошлого сеанса
+     * сохранён токен, просит возобновить сеанс под текущим именем, иначе просит регистрации.
+     * Если сервер не сможет возобновить сеанс, он рассмотрит запрос как обычную регистрацию.
+     * @throws IOException при ошибке исходящего потока.
+     */
+    private void resumingRequest() throws IOException {
+        if (sessionToken == null)
+            registeringRequest();
+        else
+            push(Message.resuming(userName, sessionToken));
+    }
     /**
      * Формирует из полученного текста новое сообщение от пользователя
      * и засылает его на чат-сервер. Затем замирает на некоторое время.
@@ -171,7 +277,20 @@ public class Client {
      * @throws IOException при ошибке исходящего потока.
      */
     private void send(String inputText) throws IOException, InterruptedException {
-        push(Message.fromClientInput(inputText, userName));
+        if (inputText.startsWith(FIND_COMMAND)) {
+            find(inputText.substring(FIND_COMMAND.length()).strip());
+            return;
+        }
+        if (inputText.strip().equals(LATENCY_COMMAND)) {
+            showLatency();
+            return;
+        }
+        Message message = Message.fromClientInput(inputText, userName);
+        // список целиком поддерживается у себя – запрашиваются лишь изменения
+        if (message.getType() == MessageType.LIST_REQUEST && message.getMessage() == null)
+            requestRoster(false);
+        else
+            push(message);
         // если стоп-сигнал придёт сразу, закрываемся
         Thread.sleep(POST_SENDING_DELAY);
         if(receiver.stopSignReceived()) {
@@ -217,15 +336,17 @@ public class Client {
         String error = null;
         try {
             connection = new Socket(HUB, PORT);
+            connection.setTcpNoDelay(true);     // каждое сообщение – законченная реплика, ждать нечего
             logger.logEvent("Установлено соединение с " + connection);
-            translator = new ObjectOutputStream(connection.getOutputStream());
+            translator = new MessageOutput(connection.getOutputStream(),
+                    stream_reset_objects_default, stream_reset_bytes_default);
 
             // в самотекущем Приёмнике слушать входящие сообщения
             receiver = new Receiver(this);
             receiver.start();
 
-            // запрос регистрации подготовленного имени
-            registeringRequest();
+            // запрос возобновления сеанса либо регистрации подготовленного имени
+            resumingRequest();
             // цикл до подтверждения регистрации
             while (!connection.isClosed() && !registered) {
                 String inputName = usersInput.nextLine();
@@ -279,7 +400,79 @@ public class Client {
          Вспомогательные функции.
      */
     /**
-     * Сбрасывает текущие настройки в связанный файл настроек.
+     * Ищет текст в локальной истории переписки, не обращаясь к серверу, и выводит найденное.
+     * @param text искомый текст.
+     */
+    private void find(String text) {
+        History current = history;
+        if (current == null) {
+            System.out.println("Локальная история недоступна.");
+        } else if (text.isEmpty()) {
+            System.out.println("Укажите, что искать: " + FIND_COMMAND + "<текст>");
+        } else {
+            List<String> found = current.find(text, FIND_LIMIT);
+            System.out.println(found.isEmpty() ?
+                    "В истории не найдено: " + text :
+                    "Найдено в истории (последние %d):%n%s".formatted(found.size(), String.join("\n", found)));
+        }
+        System.out.println();
+    }
+
+    /**
+     * Учитывает задержку доставки принятого сообщения по его отметкам времени.
+     * @param message принятое текстовое сообщение.
+     */
+    void recordLatency(Message message) {
+        long now = System.currentTimeMillis();
+        delivery.record(now - message.getSentAt());
+        if (message.getReceivedAt() > 0)
+            lastLeg.record(now - message.getReceivedAt());
+    }
+
+    /**
+     * Выводит перцентили задержек доставки, накопленные с запуска Клиента.
+     */
+    private void showLatency() {
+        System.out.println(delivery.getCount() == 0 ?
+                "Принятых сообщений с отметками времени пока нет." :
+                "Задержка доставки от отправителя: %s%nот сервера: %s".formatted(
+                        delivery.summary("мс"), lastLeg.summary("мс")));
+        System.out.println();
+    }
+
+    /**
+     * Открывает файл локальной истории для указанного имени, закрывая прежний.
+     * Если открыть не удаётся, история не ведётся.
+     * @param name имя пользователя.
+     */
+    private void openHistory(String name) {
+        closeHistory();
+        try {
+            history = new History(Path.of(name + ".history"), HISTORY_RECENT);
+        } catch (IOException e) {
+            String error = "Локальная история не открывается: " + e.getMessage();
+            System.out.println(error);
+            logger.logEvent(error);
+        }
+    }
+
+    /**
+     * Закрывает файл локальной истории, если он открыт.
+     */
+    private void closeHistory() {
+        History previous = history;
+        history = null;
+        if (previous == null) return;
+        try {
+            previous.close();
+        } catch (IOException e) {
+            logger.logEvent("Локальная история не закрылась: " + e.getMessage());
+        }
+    }
+    /**
+     * Передаёт текущие настройки хранилищу для сохранения в связанный файл настроек.
+     * Сама запись откладывается и выполняется вне вызывающего потока,
+     * так что вызов из Приёмника не задерживает чтение сообщений.
      */
     protected void saveSettings() {
         Map<String, String> settings = new HashMap<>();
@@ -290,7 +483,11 @@ public class Client {
         settings.put("LOG_INBOUND", String.valueOf(LOG_INBOUND));
         settings.put("LOG_OUTBOUND", String.valueOf(LOG_OUTBOUND));
         settings.put("LOG_EVENTS", String.valueOf(LOG_EVENTS));
-        Configurator.writeSettings(settings, settingFile);      // вывести обработку ошибки сюда, чтобы логировать?
+        settings.put("RENDER_QUEUE", String.valueOf(RENDER_QUEUE));
+        settings.put("HISTORY_RECENT", String.valueOf(HISTORY_RECENT));
+        if (sessionToken != null)
+            settings.put("TOKEN", sessionToken);
+        config.store(settings);
     }
 
     /**
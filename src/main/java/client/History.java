@@ -0,0 +1,214 @@
+package client;
+
+import common.Message;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Локальная история переписки одного пользователя: файл, отображённый в память,
+ * куда дописываются все показанные и отправленные сообщения. Дописывание – это копирование
+ * байтов в отображение (файл растёт крупными шагами), а для поиска в памяти держатся
+ * смещения всех записей и тексты последних из них, так что недавнее находится
+ * без обращения к файлу, а более старое – без разбора текстового лога.
+ * <p>
+ * Запись в файле: время (8 байт), направление (1 байт: 0 – получено, 1 – отослано),
+ * длина текста (4 байта) и сам текст в UTF-8. Хвост файла за последней записью
+ * заполнен нулями; по нулевому времени при открытии находится конец данных.
+ */
+public class History implements AutoCloseable {
+    /**
+     * На сколько байт за раз увеличивать файл, когда место в отображении кончается.
+     */
+    private static final int GROWTH = 1 << 20;
+    /**
+     * Размер заголовка записи: время, направление и длина текста.
+     */
+    private static final int HEADER = Long.BYTES + 1 + Integer.BYTES;
+    /**
+     * Формат даты, в котором выводятся найденные записи.
+     */
+    private static final SimpleDateFormat shownTime = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
+
+    /**
+     * Канал файла истории.
+     */
+    private final FileChannel channel;
+    /**
+     * Отображение файла в память.
+     */
+    private MappedByteBuffer mapped;
+    /**
+     * Позиция конца данных, куда будет дописана следующая запись.
+     */
+    private int end;
+    /**
+     * Смещения всех записей по порядку.
+     */
+    private int[] offsets = new int[1024];
+    /**
+     * Число записей.
+     */
+    private int count;
+    /**
+     * Тексты последних записей в нижнем регистре: запись с номером {@code n}
+     * хранится в ячейке {@code n % recent.length}.
+     */
+    private final String[] recent;
+
+    /**
+     * Открывает (или создаёт) файл истории и строит указатель его записей.
+     * @param file           путь к файлу истории.
+     * @param recentCapacity сколько последних записей держать в памяти для поиска.
+     * @throws IOException при ошибке открытия или отображения файла.
+     */
+    public History(Path file, int recentCapacity) throws IOException {
+        channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recent = new String[Math.max(1, recentCapacity)];
+        long size = channel.size();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, GROWTH));
+        scan();
+    }
+
+    /**
+     * Дописывает полученное и показанное пользователю сообщение.
+     * @param message сообщение.
+     */
+    public void received(Message message) {
+        append(message, (byte) 0);
+    }
+
+    /**
+     * Дописывает отправленное пользователем сообщение.
+     * @param message сообщение.
+     */
+    public void sent(Message message) {
+        append(message, (byte) 1);
+    }
+
+    /**
+     * Ищет записи, содержащие данный текст (без учёта регистра), от новых к старым.
+     * @param text  искомый текст.
+     * @param limit наибольшее число выдаваемых записей.
+     * @return найденные записи в хронологическом порядке, оформленные для вывода.
+     */
+    public synchronized List<String> find(String text, int limit) {
+        String sought = text.toLowerCase(Locale.ROOT);
+        List<String> found = new ArrayList<>();
+        for (int n = count - 1; n >= 0 && found.size() < limit; n--) {
+            String lowered = n >= count - recent.length ? recent[n % recent.length] : null;
+            if (lowered == null)
+                lowered = textAt(offsets[n]).toLowerCase(Locale.ROOT);
+            if (lowered.contains(sought))
+                found.add(show(offsets[n]));
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    /**
+     * Сбрасывает отображение на диск и закрывает файл.
+     * @throws IOException при ошибке закрытия.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        mapped.force();
+        channel.close();
+    }
+
+    /*
+        Внутренние вспомогательные методы.
+     */
+    /**
+     * Дописывает сообщение в отображение, при необходимости увеличивая файл.
+     * @param message   сообщение.
+     * @param direction направление: 0 – получено, 1 – отослано.
+     */
+    private synchronized void append(Message message, byte direction) {
+        if (!channel.isOpen()) return;
+        byte[] bytes = message.toString().getBytes(StandardCharsets.UTF_8);
+        long needed = (long) end + HEADER + bytes.length;
+        if (needed > Integer.MAX_VALUE) return;     // отображение адресуется int-ами
+        try {
+            if (needed > mapped.capacity())
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        Math.min(Integer.MAX_VALUE, Math.max(needed, (long) mapped.capacity() + GROWTH)));
+        } catch (IOException e) {
+            System.out.println("История не пишется: " + e.getMessage());
+            return;
+        }
+        mapped.put(end + Long.BYTES, direction);
+        mapped.putInt(end + Long.BYTES + 1, bytes.length);
+        mapped.put(end + HEADER, bytes);
+        int next = end + HEADER + bytes.length;
+        // за записью могут остаться байты оборванной при аварии, более длинной: их время обнуляется
+        if (next + Long.BYTES <= mapped.capacity())
+            mapped.putLong(next, 0);
+        // время пишется последним: пока оно нулевое, запись при открытии не считается
+        mapped.putLong(end, System.currentTimeMillis());
+        index(end, new String(bytes, StandardCharsets.UTF_8));
+        end = next;
+    }
+
+    /**
+     * Проходит записи от начала файла до первого нулевого времени, заполняя указатель.
+     */
+    private void scan() {
+        int position = 0;
+        while (position + HEADER <= mapped.capacity() && mapped.getLong(position) != 0) {
+            int length = mapped.getInt(position + Long.BYTES + 1);
+            if (length < 0 || position + HEADER + length > mapped.capacity()) break;
+            index(position, null);
+            position += HEADER + length;
+        }
+        end = position;
+        for (int n = Math.max(0, count - recent.length); n < count; n++)
+            recent[n % recent.length] = textAt(offsets[n]).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Заносит запись в указатель.
+     * @param offset смещение записи.
+     * @param text   её текст, если уже известен, иначе {@code ничто}.
+     */
+    private void index(int offset, String text) {
+        if (count == offsets.length)
+            offsets = Arrays.copyOf(offsets, count * 2);
+        if (text != null)
+            recent[count % recent.length] = text.toLowerCase(Locale.ROOT);
+        offsets[count++] = offset;
+    }
+
+    /**
+     * Читает текст записи из отображения.
+     * @param offset смещение записи.
+     * @return текст записи.
+     */
+    private String textAt(int offset) {
+        byte[] bytes = new byte[mapped.getInt(offset + Long.BYTES + 1)];
+        mapped.get(offset + HEADER, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Оформляет запись для вывода: время, направление и текст.
+     * @param offset смещение записи.
+     * @return строка для вывода.
+     */
+    private String show(int offset) {
+        String arrow = mapped.get(offset + Long.BYTES) == 1 ? "→" : "←";
+        return "[%s] %s %s".formatted(shownTime.format(new Date(mapped.getLong(offset))), arrow, textAt(offset));
+    }
+}
@@ -1,7 +1,10 @@
 package client;
 
+import common.Delivery;
 import common.Logger;
 import common.Message;
+import common.MessageType;
+import common.Presence;
 
 import java.net.Socket;
 import java.io.ObjectInputStream;
@@ -11,10 +14,14 @@ import java.io.EOFException;
 
 /**
  * Приёмник, предназначенный в отдельной стопке читать из входящего потока сообщения
- * и выдавать их пользователю в консоль в правильном формате,
+ * и передавать их для вывода пользователю в консоль своему Отрисовщику,
  * а также следить по ним за статусом зарегистрированности пользователя на сервере.
  */
 public class Receiver extends Thread {
+    /**
+     * Сколько миллисекунд при завершении ждать, пока Отрисовщик выведет очередь.
+     */
+    private static final long RENDER_TIMEOUT = 500;
     /**
      * Клиент, запустивший этот Приёмник.
      */
@@ -24,13 +31,17 @@ public class Receiver extends Thread {
      */
     private final Socket connection;
     /**
-     * Эфир, из которого поступают сообщения от сервера.
+     * Эфир, из которого поступают от сервера сообщения в конвертах с именем получателя.
      */
     private final ObjectInputStream ether;
     /**
      * Логировщик, протоколирующий входящие сообщения и события, случающиеся в Приёмнике.
      */
     private final Logger logger;
+    /**
+     * Отрисовщик, выводящий принятое в консоль, чтобы чтение из сокета не ждало вывода.
+     */
+    private final Renderer renderer;
     /**
      * Был ли от получен от сервера сигнал на завершение соединения.
      */
@@ -47,16 +58,34 @@ public class Receiver extends Thread {
         connection = client.getConnection();
         ether = new ObjectInputStream(connection.getInputStream());
         logger = client.logger;
+        renderer = new Renderer(logger, client.RENDER_QUEUE);
     }
 
     @Override
     public void run() {
+        renderer.start();
         while (!connection.isClosed() && !interrupted()) {
             String info = null;
             try {
-                Message gotMessage = (Message) ether.readObject();
-                checkSigns(gotMessage);
-                display(gotMessage);
+                Delivery delivery = (Delivery) ether.readObject();
+                Message gotMessage = delivery.getPayload();
+                if (gotMessage.getType() == MessageType.PING) {
+                    client.answerPing();
+                    continue;
+                }
+                // подтверждения приёма нужны лишь для безопасных повторов и пользователю не показываются
+                if (gotMessage.getType() == MessageType.ACK)
+                    continue;
+                if (gotMessage.getType() == MessageType.SESSION) {
+                    client.setSessionToken(gotMessage.getMessage());
+                    client.saveSettings();
+                    continue;
+                }
+                checkSigns(gotMessage, delivery.getRecipient());
+                if (gotMessage.getType() == MessageType.PRESENCE)
+                    updateRoster(gotMessage);
+                else
+                    display(gotMessage);
 
             } catch (EOFException e) {
                 info = "Соединение c сервером завершено.";
@@ -74,12 +103,13 @@ public class Receiver extends Thread {
                 break;
             } finally {
                 if (info != null) {
-                    System.out.println(info);
+                    renderer.show(info);
                     logger.logEvent(info);
                 }
             }
         }
 //        logger.stopLogging();
+        renderer.finish(RENDER_TIMEOUT);
         System.out.println("END running Receiver");     // monitor
     }
 
@@ -92,23 +122,23 @@ public class Receiver extends Thread {
     }
 
     /**
-     * Проверяет, что, если это серверное сообщение, является ли оно сигналом о завершении работы
+     * Проверяет, что, если это сообщение от сервера, является ли оно сигналом о завершении работы
      * — в таком случае ставим флажок, что сигнал на остановку получен.<p>
-     * Затем проверяет, соответствует ли его поле получателя тому имени, которое стоит у Клиента.
+     * Затем проверяет, соответствует ли имя получателя на конверте тому имени, которое стоит у Клиента.
      * Если Клиент зарегистрирован (is registered), несоответствие означает, что произошла
      * принятая сервером смена имени, — устанавливает имя получателя из принятого сообщения
      * в качестве имени в Клиенте и пересохраняет файл настроек с новым именем пользователя.
      * Если же не зарегистрирован, то соответствие означает, что запрашиваемое имя принято сервером,
      * — устанавливает флажок в Клиенте, что он отныне зарегистрирован.
      * @param messageToCheck проверяемое сообщение.
+     * @param gotName        имя, на которое оно вручено.
      */
-    private void checkSigns(Message messageToCheck) {
+    private void checkSigns(Message messageToCheck, String gotName) {
 
-        if (!messageToCheck.isServerMessage()) return;
+        if (!messageToCheck.isFromServer()) return;
 
         if (messageToCheck.isStopSign()) stopSignalized = true;
 
-        String gotName = messageToCheck.getAddressee();
         boolean namesMatch = client.getUserName().equals(gotName);  // Приёмник запускается только когда userName уже != null
 
         if (!client.isRegistered() && namesMatch)
@@ -121,12 +151,37 @@ public class Receiver extends Thread {
     }
 
     /**
-     * Производит отображение и логирование принятого сообщения.
+     * Применяет полученные сведения о составе к составу, известному клиенту, и показывает его.
+     * Если изменения отсчитаны не от известной версии, запрашивает полный снимок.
+     * @param gotMessage сообщение типа {@code PRESENCE}.
+     */
+    private void updateRoster(Message gotMessage) {
+        logger.logInbound(gotMessage);
+        try {
+            if (client.roster.apply(Presence.decode(gotMessage.getMessage()))) {
+                renderer.show(client.roster.toString());
+            } else {
+                client.requestRoster(true);
+            }
+        } catch (IllegalArgumentException e) {
+            String info = "Ошибка в сведениях о составе участников: " + e.getMessage();
+            renderer.show(info);
+            logger.logEvent(info);
+        }
+    }
+
+    /**
+     * Дописывает принятое сообщение в локальную историю и передаёт его Отрисовщику,
+     * который отобразит и залогирует его в своей стопке. Для сообщений с отметками времени
+     * учитывает задержку доставки.
      * @param gotMessage принятое сообщение.
      */
     private void display(Message gotMessage) {
-        System.out.println(gotMessage);
-        System.out.println();
-        logger.logInbound(gotMessage);
+        if (gotMessage.getSentAt() > 0)
+            client.recordLatency(gotMessage);
+        History history = client.getHistory();
+        if (history != null)
+            history.received(gotMessage);
+        renderer.show(gotMessage);
     }
 }
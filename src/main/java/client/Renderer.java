@@ -0,0 +1,176 @@
+package client;
+
+import common.Logger;
+import common.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Отрисовщик, который в отдельной стопке выводит в консоль и логирует принятые Приёмником
+ * сообщения, так что чтение из сокета не ждёт консоли. Всё, что накопилось в очереди
+ * к очередному пробуждению, выводится одним блоком с одним сбросом буфера.
+ * Очередь ограничена: если консоль не поспевает за беседой, самые старые из ещё
+ * не выведенных сообщений заменяются строкой «ещё N сообщений…» (в лог они
+ * всё равно попадают).
+ */
+public class Renderer extends Thread {
+    /**
+     * Сколько миллисекунд ждать записи в очереди, прежде чем проверить, не пора ли завершаться.
+     */
+    private static final long POLL_INTERVAL = 200;
+
+    /**
+     * Одна запись очереди: текст для вывода и сообщение для лога (если это сообщение).
+     */
+    private static class Entry {
+        final String text;
+        final Message message;
+
+        Entry(String text, Message message) {
+            this.text = text;
+            this.message = message;
+        }
+    }
+
+    /**
+     * Очередь записей, ожидающих вывода.
+     */
+    private final LinkedBlockingDeque<Entry> queue = new LinkedBlockingDeque<>();
+    /**
+     * Наибольшая длина очереди, сверх которой старые записи сворачиваются.
+     */
+    private final int capacity;
+    /**
+     * Логировщик Клиента, протоколирующий выведенные сообщения.
+     */
+    private final Logger logger;
+    /**
+     * Сообщения, свёрнутые с последнего вывода: на экран они не попадут, но будут залогированы.
+     * Изменяется только под замком очереди.
+     */
+    private List<Message> coalesced = new ArrayList<>();
+    /**
+     * Сколько записей свёрнуто с последнего вывода. Изменяется только под замком очереди.
+     */
+    private int skipped;
+    /**
+     * Остановлен ли Отрисовщик.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Создаёт Отрисовщик (его нужно ещё запустить).
+     * @param logger   логировщик, протоколирующий входящие сообщения.
+     * @param capacity наибольшая длина очереди вывода.
+     */
+    public Renderer(Logger logger, int capacity) {
+        super("renderer");
+        setDaemon(true);
+        this.logger = logger;
+        this.capacity = Math.max(1, capacity);
+    }
+
+    /**
+     * Ставит принятое сообщение в очередь на вывод и логирование.
+     * @param message принятое сообщение.
+     */
+    public void show(Message message) {
+        enqueue(new Entry(null, message));
+    }
+
+    /**
+     * Ставит произвольный текст в очередь на вывод.
+     * @param text выводимый текст.
+     */
+    public void show(String text) {
+        enqueue(new Entry(text, null));
+    }
+
+    /**
+     * Останавливает Отрисовщик, дождавшись (не дольше указанного), пока он выведет очередь.
+     * @param timeout сколько миллисекунд ждать.
+     */
+    public void finish(long timeout) {
+        stopped = true;
+        try {
+            join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Entry> batch = new ArrayList<>();
+        while (!stopped || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+            } catch (InterruptedException e) {
+                stopped = true;
+                continue;
+            }
+            int skippedNow;
+            List<Message> unshown;
+            synchronized (queue) {
+                queue.drainTo(batch);
+                skippedNow = skipped;
+                skipped = 0;
+                unshown = coalesced;
+                coalesced = new ArrayList<>();
+            }
+            unshown.forEach(this::log);
+            render(batch, skippedNow);
+            batch.clear();
+        }
+    }
+
+    /**
+     * Ставит запись в очередь, сворачивая самую старую, если очередь полна.
+     * Никогда не блокирует вызывающий поток.
+     * @param entry запись.
+     */
+    private void enqueue(Entry entry) {
+        synchronized (queue) {
+            if (queue.size() >= capacity) {
+                Entry dropped = queue.pollFirst();
+                if (dropped != null) {
+                    skipped++;
+                    if (dropped.message != null)
+                        coalesced.add(dropped.message);
+                }
+            }
+            queue.addLast(entry);
+        }
+    }
+
+    /**
+     * Выводит блок записей одним обращением к консоли и логирует сообщения из него.
+     * @param batch   записи по порядку.
+     * @param skipped сколько более ранних записей свёрнуто.
+     */
+    private void render(List<Entry> batch, int skipped) {
+        StringBuilder output = new StringBuilder();
+        if (skipped > 0)
+            output.append("… ещё %d сообщений…%n%n".formatted(skipped));
+        for (Entry entry : batch) {
+            output.append(entry.text != null ? entry.text : entry.message.toString())
+                    .append(System.lineSeparator())
+                    .append(System.lineSeparator());
+        }
+        System.out.print(output);
+        System.out.flush();
+        for (Entry entry : batch)
+            if (entry.message != null)
+                log(entry.message);
+    }
+
+    private void log(Message message) {
+        logger.logInbound(message);
+        message.getEnclosed().forEach(logger::logInbound);
+    }
+}
@@ -0,0 +1,61 @@
+package client;
+
+import common.Presence;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Состав участников беседы, который клиент поддерживает у себя. Пополняется сведениями
+ * от сервера: полный снимок заменяет состав целиком, а изменения применяются к нему,
+ * только если отсчитаны от той же версии, что известна клиенту.
+ */
+public class Roster {
+    /**
+     * Имена участников в алфавитном порядке.
+     */
+    private final Set<String> names = new TreeSet<>();
+    /**
+     * Известная клиенту версия состава, либо {@code -1}, пока состав не получен.
+     */
+    private long version = -1;
+
+    /**
+     * Выдаёт известную клиенту версию состава для запроса изменений после неё.
+     * @return версия состава или {@code -1}, если состав ещё не получен.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Применяет полученные от сервера сведения о составе.
+     * @param presence снимок состава или изменения в нём.
+     * @return {@code ложно}, если изменения отсчитаны не от известной клиенту версии
+     * и потому не применены (нужен полный снимок); иначе {@code истинно}.
+     */
+    public synchronized boolean apply(Presence presence) {
+        if (presence.isSnapshot()) {
+            names.clear();
+        } else if (presence.getBase() != version) {
+            return false;
+        }
+        for (Presence.Change change : presence.getChanges()) {
+            switch (change.getKind()) {
+                case JOIN -> names.add(change.getName());
+                case LEAVE -> names.remove(change.getName());
+                case RENAME -> {
+                    names.remove(change.getName());
+                    names.add(change.getNewName());
+                }
+            }
+        }
+        version = presence.getVersion();
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Подключено участников: %d:\n".formatted(names.size()) + String.join("\n", names);
+    }
+}
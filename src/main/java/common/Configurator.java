@@ -1,28 +1,90 @@
 package common;
 
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 
 /**
  * Служебный класс для чтения настроек из файла
- * или записи их в файл. Также хранит общие константы.
+ * или записи их в файл. Также хранит общие константы.<p>
+ * Экземпляр Конфигуратора является живым хранилищем настроек: по вызову {@link #watch()}
+ * он следит за своим файлом и, когда тот меняется, перечитывает его и уведомляет подписчиков.
+ * Запись настроек через {@link #store(Map)} откладывается и объединяется, выполняется
+ * в служебном потоке Конфигуратора и атомарна (запись во временный файл, затем переименование).
  */
-public class Configurator {
+public class Configurator implements AutoCloseable {
     /**
      * Максимальная длина имени для регистрации на сервере.
      */
     public static final int nickLengthLimit = 15;
+    /**
+     * Сколько миллисекунд копить изменения перед записью в файл.
+     */
+    private static final long WRITE_DELAY = 500;
+    /**
+     * Сколько миллисекунд выждать после события файловой системы, прежде чем перечитать файл
+     * (редакторы часто сохраняют файл в несколько приёмов).
+     */
+    private static final long RELOAD_DELAY = 100;
 
     /**
-     * Карта настроек, соответствующая конфигурации.
+     * Файл настроек, с которым связан Конфигуратор.
+     */
+    private final Path source;
+    /**
+     * Карта настроек, соответствующая конфигурации. Заменяется целиком при перечитывании.
+     */
+    private volatile Map<String,String> settings;
+    /**
+     * Карта, последней записанная в файл (или прочитанная из него): перечитанный файл,
+     * совпадающий с ней, – отзвук собственной записи, а не правка извне.
+     */
+    private Map<String, String> written;
+    /**
+     * Подписчики, уведомляемые о перечитывании настроек.
+     */
+    private final List<Consumer<Configurator>> subscribers = new CopyOnWriteArrayList<>();
+    /**
+     * Служебный поток, выполняющий отложенные запись и перечитывание файла.
+     */
+    private final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "configurator");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Запланированная, но ещё не выполненная запись настроек.
+     */
+    private ScheduledFuture<?> pendingWrite;
+    /**
+     * Запланированное, но ещё не выполненное перечитывание файла.
      */
-    private final Map<String,String> settings;
+    private ScheduledFuture<?> pendingReload;
+    /**
+     * Служба наблюдения за каталогом файла настроек (пока наблюдение не включено, {@code ничто}).
+     */
+    private WatchService watchService;
 
     /**
      * Инструментальная статическая функция. Определяет путь к файлу настроек, который должен использоваться.<p>
@@ -48,7 +110,8 @@ public class Configurator {
 
     /**
      * Инструментальная статическая функция. Сохраняет настройки, полученные в виде карты <строка, строка>,
-     * в файл по указанному адресу.
+     * в файл по указанному адресу. Запись атомарна: настройки пишутся во временный файл рядом,
+     * который затем переименовывается в целевой, так что читающий никогда не увидит файл недописанным.
      * @param settings карта сохраняемых настроек.
      * @param storage  путь к месту сохранения.
      */
@@ -59,9 +122,15 @@ public class Configurator {
                     .append(" = ")
                     .append(property.getValue())
                     .append(";\r\n");
-        try (FileWriter writer = new FileWriter(String.valueOf(storage), false)) {
-            writer.write(string.toString());
-            writer.flush();
+        Path target = storage.toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            Files.writeString(temporary, string.toString(), StandardCharsets.UTF_8);
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch (IOException e) {                                           // пробросить?
             String error = "Не удалось сохранить настройки в " + storage;
             System.out.println(error);
@@ -74,6 +143,7 @@ public class Configurator {
      * @param settingsFile путь к файлу настроек.
      */
     public Configurator(Path settingsFile) {
+        source = settingsFile;
         Map<String, String> settingsMap;
         try {
             settingsMap = readSettings(settingsFile);
@@ -82,6 +152,77 @@ public class Configurator {
             settingsMap = new HashMap<>();
         }
         settings = settingsMap;
+        written = settingsMap;
+    }
+
+    /**
+     * Подписывает получателя на уведомления о перечитывании настроек.
+     * Подписчик вызывается в служебном потоке Конфигуратора с самим Конфигуратором,
+     * из которого уже можно читать новые значения.
+     * @param subscriber подписчик на изменения.
+     */
+    public void subscribe(Consumer<Configurator> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    /**
+     * Включает наблюдение за файлом настроек. Повторный вызов ничего не делает.
+     * Если наблюдение невозможно, сообщает об этом, а Конфигуратор продолжает работать
+     * с уже загруженными значениями.
+     */
+    public synchronized void watch() {
+        if (watchService != null) return;
+        Path directory = source.toAbsolutePath().getParent();
+        try {
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException e) {
+            System.out.println("Наблюдение за файлом настроек невозможно: " + e.getMessage());
+            return;
+        }
+        Thread watcher = new Thread(this::watchLoop, "settings-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Заменяет текущие настройки указанными и планирует их запись в файл.
+     * Несколько вызовов в пределах {@code WRITE_DELAY} объединяются в одну запись
+     * последнего состояния. Вызывающий поток не блокируется файловыми операциями.
+     * @param newSettings новая карта настроек.
+     */
+    public synchronized void store(Map<String, String> newSettings) {
+        settings = new HashMap<>(newSettings);
+        if (worker.isShutdown()) {
+            writeNow();
+            return;
+        }
+        if (pendingWrite != null)
+            pendingWrite.cancel(false);
+        pendingWrite = worker.schedule(this::writeNow, WRITE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Прекращает наблюдение за файлом, немедленно дописывает отложенные изменения
+     * и останавливает служебный поток.
+     */
+    @Override
+    public synchronized void close() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (pendingWrite != null && pendingWrite.cancel(false))
+            worker.execute(this::writeNow);
+        worker.shutdown();
+        try {
+            worker.awaitTermination(WRITE_DELAY, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -125,6 +266,81 @@ public class Configurator {
         return Optional.of(Boolean.parseBoolean(stringValue));
     }
 
+    /*
+        Внутренние вспомогательные методы.
+     */
+    /**
+     * Записывает текущие настройки в связанный файл.
+     */
+    private void writeNow() {
+        Map<String, String> current;
+        synchronized (this) {
+            current = settings;
+            written = current;
+        }
+        writeSettings(current, source);
+    }
+
+    /**
+     * Цикл наблюдения за каталогом файла настроек: при событии, касающемся именно
+     * этого файла, планирует его перечитывание. Завершается с закрытием службы наблюдения.
+     */
+    private void watchLoop() {
+        Path fileName = source.getFileName();
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents())
+                    if (fileName.equals(event.context()))
+                        scheduleReload();
+                if (!key.reset()) break;
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // наблюдение окончено
+        }
+    }
+
+    /**
+     * Планирует перечитывание файла, объединяя события, пришедшие в пределах {@code RELOAD_DELAY}.
+     */
+    private synchronized void scheduleReload() {
+        if (worker.isShutdown()) return;
+        if (pendingReload != null)
+            pendingReload.cancel(false);
+        pendingReload = worker.schedule(this::reload, RELOAD_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Перечитывает файл настроек и, если значения изменились, заменяет ими текущие
+     * и уведомляет подписчиков. Собственные записи Конфигуратора, таким образом, не порождают уведомлений.
+     * Пока ждёт отложенная запись, файл старее значений в памяти, и перечитывание пропускается:
+     * иначе оно вернуло бы старые значения поверх сохранённых {@link #store(Map)}, а отложенная
+     * запись затем сохранила бы их в файл. Сама эта запись породит новое перечитывание.
+     */
+    private void reload() {
+        Map<String, String> reloaded;
+        try {
+            reloaded = readSettings(source);
+        } catch (IOException e) {
+            System.out.println("Не удалось перечитать настройки из " + source + ": " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            if (pendingWrite != null && !pendingWrite.isDone()) return;
+            if (reloaded.equals(settings) || reloaded.equals(written)) return;
+            settings = reloaded;
+            written = reloaded;
+        }
+        System.out.println("Настройки перечитаны из " + source);
+        for (Consumer<Configurator> subscriber : subscribers) {
+            try {
+                subscriber.accept(this);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      * Внутренняя статическая функция. Читает настройки из файла и представляет их в виде карты "параметр-значение".
      * @param settingsSource адрес читаемого файла.
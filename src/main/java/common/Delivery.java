@@ -0,0 +1,46 @@
+package common;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * Конверт, в котором сервер доставляет сообщение конкретному получателю: неизменяемое
+ * сообщение и имя того, кому оно вручается. Одно и то же сообщение при рассылке
+ * вкладывается во множество конвертов без копирования, так что его можно одновременно
+ * передавать нескольким пишущим потокам.
+ */
+public final class Delivery implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+    /**
+     * доставляемое сообщение, общее для всех его получателей
+     */
+    private final Message payload;
+    /**
+     * имя получателя, которому вручается этот конверт; для ещё не зарегистрированного
+     * соединения – его описание
+     */
+    private final String recipient;
+
+    /**
+     * Вкладывает сообщение в конверт для указанного получателя.
+     * @param payload   доставляемое сообщение.
+     * @param recipient получатель.
+     */
+    public Delivery(Message payload, String recipient) {
+        this.payload = payload;
+        this.recipient = recipient;
+    }
+
+    public Message getPayload() {
+        return payload;
+    }
+    public String getRecipient() {
+        return recipient;
+    }
+
+    @Override
+    public String toString() {
+        return payload.toString();
+    }
+}
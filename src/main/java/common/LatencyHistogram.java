@@ -0,0 +1,105 @@
+package common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма задержек с логарифмическими корзинами: значения до 16 учитываются точно,
+ * а каждая следующая степень двойки делится на 8 равных корзин, так что относительная
+ * погрешность перцентиля не превышает 1/8 при постоянном размере (около 500 счётчиков).
+ * Запись – одно атомарное приращение без замков, поэтому гистограмму можно пополнять
+ * из нескольких потоков прямо на пути доставки. Единицы измерения выбирает вызывающий.
+ */
+public class LatencyHistogram {
+    /**
+     * Сколько корзин приходится на одну степень двойки (логарифм по основанию 2).
+     */
+    private static final int SUB_BITS = 3;
+    /**
+     * Значения меньше этого учитываются каждое в своей корзине.
+     */
+    private static final int LINEAR = 2 << SUB_BITS;
+    /**
+     * Число корзин: точные значения и по {@code 2^SUB_BITS} корзин на каждую степень выше.
+     */
+    private static final int BUCKETS = LINEAR + (Long.SIZE - 1 - (SUB_BITS + 1)) * (1 << SUB_BITS);
+
+    /**
+     * Счётчики корзин.
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    /**
+     * Общее число записанных значений.
+     */
+    private final AtomicLong total = new AtomicLong();
+    /**
+     * Наибольшее записанное значение.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Учитывает одно значение; отрицательные (например, из-за расхождения часов) считаются нулём.
+     * @param value измеренная задержка.
+     */
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(bucketOf(value));
+        total.incrementAndGet();
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Выдаёт значение, не превышаемое указанной долей записанных значений
+     * (верхнюю границу корзины, в которую попадает перцентиль).
+     * @param fraction доля от 0 до 1, например {@code 0.99}.
+     * @return перцентиль или {@code 0}, если значений ещё нет.
+     */
+    public long percentile(double fraction) {
+        long count = total.get();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank)
+                return Math.min(upperBound(bucket), max.get());
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Сводка перцентилей в одну строку.
+     * @param unit обозначение единиц измерения.
+     * @return строка вида «p50 3 мс, p90 …, p99 …, p99.9 …, макс. …, всего N».
+     */
+    public String summary(String unit) {
+        return "p50 %d %s, p90 %d %s, p99 %d %s, p99.9 %d %s, макс. %d %s, всего %d".formatted(
+                percentile(0.5), unit, percentile(0.9), unit, percentile(0.99), unit,
+                percentile(0.999), unit, getMax(), unit, getCount());
+    }
+
+    /*
+        Внутренние вспомогательные методы.
+     */
+    private static int bucketOf(long value) {
+        if (value < LINEAR) return (int) value;
+        int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + (exponent - (SUB_BITS + 1)) * (1 << SUB_BITS) + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int exponent = (bucket - LINEAR) / (1 << SUB_BITS) + SUB_BITS + 1;
+        long sub = (bucket - LINEAR) % (1 << SUB_BITS);
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
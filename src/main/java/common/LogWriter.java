@@ -44,7 +44,9 @@ public class LogWriter extends Thread {
                     try {
                         entryReady.await();
                     } catch (InterruptedException e) {
-                        logSource.logEvent("Прерывание в момент ожидания.");
+                        // флажок прерывания сбрасывается исключением, восстанавливаем его,
+                        // чтобы цикл завершился, как только очередь опустеет
+                        interrupt();
                     }
                 }
 
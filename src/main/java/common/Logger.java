@@ -13,6 +13,10 @@ public class Logger {
      * Формат даты, в котором логировщик указывает время события при его протоколировании.
      */
     private static final SimpleDateFormat logTime = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
+    /**
+     * Сколько миллисекунд при остановке ждать, пока Логописец допишет очередь.
+     */
+    private static final long FLUSH_TIMEOUT = 300;
 
     /**
      * Логописец, который используется данным логировщиком.
@@ -21,20 +25,20 @@ public class Logger {
     /**
      * Включено ли протоколирование входящих сообщений.
      */
-    private final boolean log_inbound;
+    private volatile boolean log_inbound;
     /**
      * Включено ли протоколирование исходящих сообщений.
      */
-    private final boolean log_outbound;
+    private volatile boolean log_outbound;
     /**
      * Включено ли протоколирование сообщений, полученных Сервером от пользователя чата
      * и переданных другим пользователям. Программа-клиент не предполагает логирования такого типа.
      */
-    private final boolean log_transferred;
+    private volatile boolean log_transferred;
     /**
      * Включено ли протоколирование ошибок и событий, связанных с работой программы.
      */
-    private final boolean log_events;
+    private volatile boolean log_events;
 
     /**
      * Ссылка на файл, в который записывается лог. Может меняться по ходу работы программы
@@ -60,6 +64,20 @@ public class Logger {
         writer.start();
     }
 
+    /**
+     * Перенастраивает протоколирование на ходу, например, после перечитывания файла настроек.
+     * @param log_inbound     логируются ли входящие сообщения.
+     * @param log_outbound    логируются ли исходящие сообщения.
+     * @param log_transferred логируются ли пересланные сообщения (для сервера).
+     * @param log_events      логируются ли ошибки и события.
+     */
+    public void setLogging(boolean log_inbound, boolean log_outbound, boolean log_transferred, boolean log_events) {
+        this.log_inbound = log_inbound;
+        this.log_outbound = log_outbound;
+        this.log_transferred = log_transferred;
+        this.log_events = log_events;
+    }
+
     /**
      * Устанавливает адрес файла, в который должны записываться новые события.
      * Если предлагаемое имя не является допустимым, выводит об этом уведомление
@@ -127,12 +145,20 @@ public class Logger {
 
     /**
      * Посылает знак прерывания Логописцу, тем самым знаменуя
-     * окончание протоколирования событий.
+     * окончание протоколирования событий, и дожидается (не дольше {@code FLUSH_TIMEOUT}),
+     * пока он допишет в файл оставшуюся очередь.
      */
     public void stopLogging() {
         System.out.println("STOP_LOGGING invoked"); // monitor
         logEvent("Завершение протоколирования.");
         writer.interrupt();
+        try {
+            writer.join(FLUSH_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive())
+            System.out.println("Логописец не успел дописать очередь за " + FLUSH_TIMEOUT + " мс");
     }
 
     /*
@@ -172,10 +198,20 @@ public class Logger {
             case REG_REQUEST -> "<REG_REQUEST>";
             case EXIT_REQUEST -> "<EXIT_REQUEST>";
             case SHUT_REQUEST -> "<SHUT_REQUEST>";
+            case RESUME_REQUEST -> "<RESUME_REQUEST>";
+            case SESSION -> "<SESSION>";
+            case PRESENCE -> "<PRESENCE> ";
+            case SEARCH_REQUEST -> "<SEARCH_REQUEST> ";
+            case ACK -> "<ACK %d>".formatted(message.getId());
+            case STATS_REQUEST -> "<STATS_REQUEST>";
+            case IGNORE_REQUEST -> "<IGNORE_REQUEST> ";
+            case MUTE_REQUEST -> "<MUTE_REQUEST>";
             default -> "";
         });
 
-        if (message.getMessage() != null)
+        // токены сеансов в лог не попадают
+        if (message.getMessage() != null
+                && message.getType() != MessageType.RESUME_REQUEST && message.getType() != MessageType.SESSION)
             logged.append(message.getMessage());
 
         return logged.toString();
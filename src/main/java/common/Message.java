@@ -2,7 +2,10 @@ package common;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static common.MessageType.*;
 
@@ -21,19 +24,43 @@ public class Message implements Serializable {
     final private String sender;
     /**
      * Указатель получателя для персонального текстового (или информационного) сообщения,
-     * у публичного сообщения остаётся пустым.<p>
-     * Сервер, отправляя сообщения серверного типа, всегда явно устанавливает это поле
-     * (если имя адресата зарегистрировано). Клиент, впервые обнаружив в этом поле
-     * в полученном сообщении имя, которое собирается зарегистрировать, переходит
-     * из регистрационного режима в основной.
-     * Обнаружив же, что адресат полученного сообщения не совпадает с ранее сохранённым,
-     * Клиент понимает, что только что успешно сменил имя, и запоминает новое.
+     * у публичного сообщения и общей серверной рассылки остаётся пустым.<p>
+     * Сообщение неизменяемо: при рассылке одно и то же сообщение вкладывается в конверты
+     * {@link Delivery} для каждого получателя, и уже по имени получателя на конверте
+     * Клиент узнаёт об успешной регистрации или смене имени.
      */
-    private String addressee;
+    final private String addressee;
     /**
      * сообщаемая в сообщении строка; у служебных сообщений пусто
      */
     final private String message;
+    /**
+     * вложенные сообщения пакета; у всех прочих типов пусто
+     */
+    final private List<Message> enclosed;
+    /**
+     * номер, присвоенный клиентом текстовому сообщению, чтобы сервер мог отсеять его повтор;
+     * в подтверждении {@code ACK} – номер подтверждаемого сообщения; у прочих {@code 0}
+     */
+    final private long id;
+    /**
+     * момент отправки текстового сообщения по часам клиента-отправителя (мс от эпохи), у прочих {@code 0}
+     */
+    final private long sentAt;
+    /**
+     * момент приёма текстового сообщения сервером по его часам (мс от эпохи), у прочих {@code 0}
+     */
+    final private long receivedAt;
+    /**
+     * сквозной порядковый номер, присвоенный сервером принятому текстовому сообщению, у прочих {@code 0}
+     */
+    final private long seq;
+
+    /**
+     * Источник номеров сообщений. Начинается со случайного значения, чтобы номера
+     * от разных запусков клиента под одним именем не совпадали.
+     */
+    private static final AtomicLong idSource = new AtomicLong(ThreadLocalRandom.current().nextLong());
 
     /**
      * Внутренний конструктор сообщения через явное указание параметров.
@@ -43,19 +70,72 @@ public class Message implements Serializable {
      * @param message   текст сообщения.
      */
     private Message(MessageType type, String sender, String addressee, String message) {
+        this(type, sender, addressee, message, null);
+    }
+    /**
+     * Внутренний конструктор сообщения через явное указание параметров, включая вложения.
+     * @param type      тип сообщения.
+     * @param sender    отправитель сообщения.
+     * @param addressee адресат сообщения.
+     * @param message   текст сообщения.
+     * @param enclosed  вложенные сообщения пакета или {@code ничто}.
+     */
+    private Message(MessageType type, String sender, String addressee, String message, List<Message> enclosed) {
+        this(type, sender, addressee, message, enclosed, 0);
+    }
+    /**
+     * Внутренний конструктор сообщения через явное указание всех параметров.
+     * @param type      тип сообщения.
+     * @param sender    отправитель сообщения.
+     * @param addressee адресат сообщения.
+     * @param message   текст сообщения.
+     * @param enclosed  вложенные сообщения пакета или {@code ничто}.
+     * @param id        номер сообщения или {@code 0}.
+     */
+    private Message(MessageType type, String sender, String addressee, String message, List<Message> enclosed, long id) {
+        this(type, sender, addressee, message, enclosed, id, 0, 0, 0);
+    }
+    /**
+     * Внутренний конструктор сообщения со всеми параметрами, включая отметки времени и порядковый номер.
+     * @param type       тип сообщения.
+     * @param sender     отправитель сообщения.
+     * @param addressee  адресат сообщения.
+     * @param message    текст сообщения.
+     * @param enclosed   вложенные сообщения пакета или {@code ничто}.
+     * @param id         номер сообщения или {@code 0}.
+     * @param sentAt     момент отправки клиентом или {@code 0}.
+     * @param receivedAt момент приёма сервером или {@code 0}.
+     * @param seq        порядковый номер на сервере или {@code 0}.
+     */
+    private Message(MessageType type, String sender, String addressee, String message, List<Message> enclosed,
+                    long id, long sentAt, long receivedAt, long seq) {
         this.type = type;
         this.sender = sender;
         this.addressee = addressee;
         this.message = message;
+        this.enclosed = enclosed;
+        this.id = id;
+        this.sentAt = sentAt;
+        this.receivedAt = receivedAt;
+        this.seq = seq;
     }
     /**
-     * Устанавливает получателя и возвращает то же сообщение с изменённым полем.
-     * @param addressee устанавливаемое имя получателя.
-     * @return сообщение с установленным адресатом.
+     * Создаёт копию сообщения с отметкой сервера о приёме: моментом приёма и сквозным порядковым номером.
+     * @param seq        порядковый номер сообщения на сервере.
+     * @param receivedAt момент приёма (мс от эпохи).
+     * @return новое сообщение с теми же полями и отметками сервера.
      */
-    public Message setAddressee(String addressee) {
-        this.addressee = addressee;
-        return this;
+    public Message sequenced(long seq, long receivedAt) {
+        return new Message(type, sender, addressee, message, enclosed, id, sentAt, receivedAt, seq);
+    }
+
+    /**
+     * Создаёт копию сообщения с другим адресатом, сохраняя номер и отметки времени.
+     * @param addressee новый адресат.
+     * @return новое сообщение с тем же содержимым.
+     */
+    public Message readdressed(String addressee) {
+        return new Message(type, sender, addressee, message, enclosed, id, sentAt, receivedAt, seq);
     }
 
     /**
@@ -79,6 +159,17 @@ public class Message implements Serializable {
             case LIST_REQUEST -> "<LIST_REQUEST>\n";
             case EXIT_REQUEST -> "<EXIT_REQUEST>\n";
             case SHUT_REQUEST -> "<SHUT_REQUEST>\n";
+            case PING -> "<PING>\n";
+            case PONG -> "<PONG>\n";
+            case SESSION -> "<SESSION>\n";
+            case RESUME_REQUEST -> "<RESUME_REQUEST>\n";
+            case BATCH -> ">>> ";
+            case PRESENCE -> "<PRESENCE>\n";
+            case SEARCH_REQUEST -> "<SEARCH_REQUEST>\n";
+            case ACK -> "<ACK>\n";
+            case STATS_REQUEST -> "<STATS_REQUEST>\n";
+            case IGNORE_REQUEST -> "<IGNORE_REQUEST>\n";
+            case MUTE_REQUEST -> "<MUTE_REQUEST>\n";
         });
 
         if (sender != null)
@@ -87,6 +178,9 @@ public class Message implements Serializable {
         if (message != null)
             output.append(message);
 
+        for (Message inner : getEnclosed())
+            output.append("\n\n").append(inner);
+
         return output.toString();
     }
 
@@ -98,9 +192,15 @@ public class Message implements Serializable {
      * Если строка ввода начинается с токена, находит его и
      * определяет на его основе тип:
      * <ul>
-     * <li>"@имя_получателя " = персональное сообщение</li>
+     * <li>"@имя_получателя " = персональное сообщение
+     * ("@начало_имени* " – имя получателя дополняется сервером)</li>
      * <li>"/reg новое_имя" = запрос от участника на смену имени</li>
-     * <li>"/users " = запрос списка участников беседы</li>
+     * <li>"/users [начало_имени [страница]]" = запрос списка участников беседы
+     * (целиком либо постранично тех, чьё имя начинается на указанную строку)</li>
+     * <li>"/search слова" = запрос поиска по истории беседы</li>
+     * <li>"/stats" = запрос статистики сервера</li>
+     * <li>"/ignore [имя]" = запрос игнорировать участника или перестать (без имени – список игнорируемых)</li>
+     * <li>"/mute" = запрос заглушить общую беседу или вернуть её</li>
      * <li>"/exit " = запрос на выход из беседы</li>
      * <li>"/terminate " = запрос на выключение сервера</li>
      * <li>иначе: обычное текстовое сообщение</li>
@@ -109,7 +209,7 @@ public class Message implements Serializable {
      * @param sender    имя пользователя, под которым он участвует
      *                 или планирует участвовать в беседе.
      * @return  новое сообщение с типом и получателем, определёнными
-     * по токену.
+     * по токену; текстовым сообщениям присваивается новый номер и отметка времени отправки.
      *
      */
     public static Message fromClientInput(String inputText, String sender) {
@@ -117,7 +217,7 @@ public class Message implements Serializable {
         String addressee = null;
         String message = inputText;
         if (message.length() < 2)
-            return new Message(type, sender, null, message);
+            return numbered(type, sender, null, message);
         int spaceIndex = inputText.indexOf(" ");
         if (spaceIndex <= 0)
             spaceIndex = inputText.length();
@@ -137,7 +237,24 @@ public class Message implements Serializable {
                     if (sender.length() > Configurator.nickLengthLimit)
                         sender = sender.substring(0, Configurator.nickLengthLimit);
                 }
-                case "users" -> type = LIST_REQUEST;
+                case "users" -> {
+                    type = LIST_REQUEST;
+                    message = spaceIndex < inputText.length() ? inputText.substring(spaceIndex + 1).strip() : null;
+                    if ("".equals(message))
+                        message = null;
+                }
+                case "search" -> {
+                    type = SEARCH_REQUEST;
+                    message = spaceIndex < inputText.length() ? inputText.substring(spaceIndex + 1).strip() : "";
+                }
+                case "stats" -> type = STATS_REQUEST;
+                case "ignore" -> {
+                    type = IGNORE_REQUEST;
+                    message = spaceIndex < inputText.length() ? inputText.substring(spaceIndex + 1).strip() : null;
+                    if ("".equals(message))
+                        message = null;
+                }
+                case "mute" -> type = MUTE_REQUEST;
                 case "exit" -> type = EXIT_REQUEST;
                 case "terminate" -> type = SHUT_REQUEST;
                 default -> {
@@ -146,7 +263,9 @@ public class Message implements Serializable {
                 }
             }
         }
-        return new Message(type, sender, addressee, message);
+        return type == TXT_MSG || type == PRIVATE_MSG ?
+                numbered(type, sender, addressee, message) :
+                new Message(type, sender, addressee, message);
     }
 
     /**
@@ -159,6 +278,18 @@ public class Message implements Serializable {
         return new Message(SERVER_MSG, null, receiver, messageText);
     }
 
+    /**
+     * Создаёт частное сообщение с явно указанными отправителем и получателем
+     * (например, при восстановлении сохранённого для отсутствовавшего участника).
+     * @param messageText текст сообщения.
+     * @param sender      отправитель.
+     * @param addressee   получатель.
+     * @return  новое сообщение типа {@code PRIVATE_MSG}.
+     */
+    public static Message personal(String messageText, String sender, String addressee) {
+        return new Message(PRIVATE_MSG, sender, addressee, messageText);
+    }
+
     /**
      * Создаёт серверное сообщение для всех с заданным текстом.
      * @param messageText заданный текст.
@@ -179,6 +310,126 @@ public class Message implements Serializable {
             putName = putName.substring("/reg ".length()).strip();
         return new Message(REG_REQUEST, putName, null, null);
     }
+    /**
+     * Создаёт на серверной стороне проверочный сигнал для выявления оборвавшихся соединений.
+     * @return  новое сообщение типа {@code PING}.
+     */
+    public static Message ping() {
+        return new Message(PING, null, null, null);
+    }
+
+    /**
+     * Создаёт на клиентской стороне ответ на проверочный сигнал.
+     * @param sender имя отвечающего пользователя.
+     * @return  новое сообщение типа {@code PONG}.
+     */
+    public static Message pong(String sender) {
+        return new Message(PONG, sender, null, null);
+    }
+
+    /**
+     * Создаёт на серверной стороне сообщение с токеном возобновления сеанса для участника.
+     * @param token     токен возобновления.
+     * @param recipient зарегистрированное имя участника.
+     * @return  новое сообщение типа {@code SESSION}.
+     */
+    public static Message session(String token, String recipient) {
+        return new Message(SESSION, null, recipient, token);
+    }
+
+    /**
+     * Создаёт на клиентской стороне запрос на возобновление сеанса под прежним именем.
+     * @param name  имя, под которым был зарегистрирован участник.
+     * @param token полученный в том сеансе токен возобновления.
+     * @return  новое сообщение типа {@code RESUME_REQUEST}.
+     */
+    public static Message resuming(String name, String token) {
+        return new Message(RESUME_REQUEST, name, null, token);
+    }
+
+    /**
+     * Создаёт на серверной стороне пакет, вкладывающий несколько сообщений для одного получателя.
+     * @param caption   текст заголовка пакета.
+     * @param messages  вкладываемые сообщения в порядке их доставки.
+     * @param recipient адресат пакета.
+     * @return  новое сообщение типа {@code BATCH}.
+     */
+    public static Message batch(String caption, List<Message> messages, String recipient) {
+        return new Message(BATCH, null, recipient, caption, List.copyOf(messages));
+    }
+
+    /**
+     * Создаёт на клиентской стороне запрос списка участников с указанием версии состава,
+     * которая клиенту уже известна, чтобы получить только изменения после неё.
+     * @param sender       имя запрашивающего пользователя.
+     * @param knownVersion известная версия состава или {@code -1}, если никакая не известна.
+     * @return  новое сообщение типа {@code LIST_REQUEST}.
+     */
+    public static Message rosterRequest(String sender, long knownVersion) {
+        return new Message(LIST_REQUEST, sender, null, String.valueOf(knownVersion));
+    }
+
+    /**
+     * Создаёт на серверной стороне сообщение со сведениями о составе участников.
+     * @param presence  снимок состава или изменения в нём.
+     * @param recipient адресат сообщения.
+     * @return  новое сообщение типа {@code PRESENCE}.
+     */
+    public static Message presence(Presence presence, String recipient) {
+        return new Message(PRESENCE, null, recipient, presence.encode());
+    }
+
+    /**
+     * Создаёт на серверной стороне подтверждение приёма сообщения.
+     * @param id        номер подтверждаемого сообщения.
+     * @param recipient отправитель подтверждаемого сообщения.
+     * @return  новое сообщение типа {@code ACK}.
+     */
+    public static Message ack(long id, String recipient) {
+        return new Message(ACK, null, recipient, null, null, id);
+    }
+
+    /**
+     * Восстанавливает сообщение без вложений из упакованного вида {@link PackedMessage}.
+     * @param type       тип сообщения.
+     * @param sender     отправитель сообщения.
+     * @param addressee  адресат сообщения.
+     * @param message    текст сообщения.
+     * @param id         номер сообщения или {@code 0}.
+     * @param sentAt     момент отправки клиентом или {@code 0}.
+     * @param receivedAt момент приёма сервером или {@code 0}.
+     * @param seq        порядковый номер на сервере или {@code 0}.
+     * @return восстановленное сообщение.
+     */
+    static Message unpacked(MessageType type, String sender, String addressee, String message,
+                            long id, long sentAt, long receivedAt, long seq) {
+        return new Message(type, sender, addressee, message, null, id, sentAt, receivedAt, seq);
+    }
+
+    /**
+     * Создаёт текстовое сообщение с новым номером и текущим моментом отправки.
+     * @param type      тип сообщения.
+     * @param sender    отправитель сообщения.
+     * @param addressee адресат сообщения.
+     * @param message   текст сообщения.
+     * @return новое сообщение.
+     */
+    private static Message numbered(MessageType type, String sender, String addressee, String message) {
+        return new Message(type, sender, addressee, message, null, newId(), System.currentTimeMillis(), 0, 0);
+    }
+
+    /**
+     * Выдаёт новый ненулевой номер сообщения.
+     * @return номер.
+     */
+    private static long newId() {
+        long id;
+        do {
+            id = idSource.incrementAndGet();
+        } while (id == 0);
+        return id;
+    }
+
     /**
      * Сообщает, является ли указанная строка существующей и соответствующей требованиям к регистрируемому имени.
      * @param name строка.
@@ -204,11 +455,26 @@ public class Message implements Serializable {
      * @return {@code истинно}, если типа {@code SERVER_MSG};
      */
     public boolean isServerMessage() { return getType() == SERVER_MSG; }
+    /**
+     * Сообщает, исходит ли сообщение от сервера и адресовано ли оно конкретному участнику
+     * (то есть серверное сообщение, токен сеанса, пакет или сведения о составе).
+     * @return {@code истинно}, если типа {@code SERVER_MSG || SESSION || BATCH || PRESENCE};
+     */
+    public boolean isFromServer() {
+        return getType() == SERVER_MSG || getType() == SESSION || getType() == BATCH || getType() == PRESENCE;
+    }
     /**
      * Сообщает, является ли сообщение запросом.
-     * @return {@code истинно}, если не является ни серверным, ни переправляемым;
+     * @return {@code истинно}, если это запрос от клиента к серверу:
+     * регистрация, список, поиск, статистика, игнорирование, заглушение, выход, остановка или возобновление сеанса;
      */
-    public boolean isRequest() { return getType().ordinal() > 2; }
+    public boolean isRequest() {
+        return switch (getType()) {
+            case REG_REQUEST, LIST_REQUEST, SEARCH_REQUEST, STATS_REQUEST, IGNORE_REQUEST, MUTE_REQUEST,
+                    EXIT_REQUEST, SHUT_REQUEST, RESUME_REQUEST -> true;
+            default -> false;
+        };
+    }
     /**
      * Сообщает, является ли сообщение переправляемым.
      * @return {@code истинно}, если типа {@code TXT_MSG || PRIVATE_MSG};
@@ -229,15 +495,31 @@ public class Message implements Serializable {
     public String getMessage() {
         return message;
     }
+    public List<Message> getEnclosed() {
+        return enclosed == null ? List.of() : enclosed;
+    }
+    public long getId() {
+        return id;
+    }
+    public long getSentAt() {
+        return sentAt;
+    }
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+    public long getSeq() {
+        return seq;
+    }
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Message another = (Message) o;
-        return type == another.type &&
+        return type == another.type && id == another.id && seq == another.seq &&
                 Objects.equals(sender, another.sender) &&
                 Objects.equals(addressee, another.addressee) &&
-                Objects.equals(message, another.message);
+                Objects.equals(message, another.message) &&
+                Objects.equals(enclosed, another.enclosed);
     }
     @Override
     public int hashCode() {
@@ -0,0 +1,122 @@
+package common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Исходящий объектный поток долгоживущего соединения с учётом памяти. Объектный поток
+ * запоминает каждый записанный объект в своей таблице ссылок, чтобы при повторе отослать
+ * лишь ссылку, – так что без сброса таблица растёт, пока живёт соединение, и ни одно
+ * отосланное сообщение не может быть собрано сборщиком мусора. Этот поток сбрасывает
+ * таблицу (на приёмной стороне она при этом сбрасывается тоже), как только с прошлого
+ * сброса записано заданное число объектов или заданный объём байт.
+ */
+public class MessageOutput implements AutoCloseable {
+    /**
+     * Подсчитывающая прослойка между объектным потоком и нижележащим.
+     */
+    private static class Counting extends FilterOutputStream {
+        long count;
+
+        Counting(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            count += length;
+        }
+    }
+
+    /**
+     * Объектный поток, в который пишутся объекты.
+     */
+    private final ObjectOutputStream stream;
+    /**
+     * Счётчик байт, ушедших в нижележащий поток.
+     */
+    private final Counting counted;
+    /**
+     * Сколько объектов записывать между сбросами.
+     */
+    private final int resetObjects;
+    /**
+     * Сколько байт записывать между сбросами.
+     */
+    private final long resetBytes;
+    /**
+     * Сколько объектов записано с последнего сброса.
+     */
+    private int objectsSinceReset;
+    /**
+     * Сколько байт ушло в нижележащий поток к последнему сбросу.
+     */
+    private long bytesAtReset;
+    /**
+     * Сколько раз таблица ссылок сбрасывалась.
+     */
+    private long resets;
+
+    /**
+     * Открывает объектный поток поверх данного (заголовок потока записывается сразу).
+     * @param out          нижележащий поток.
+     * @param resetObjects сколько объектов записывать между сбросами.
+     * @param resetBytes   сколько байт записывать между сбросами.
+     * @throws IOException при ошибке записи заголовка.
+     */
+    public MessageOutput(OutputStream out, int resetObjects, long resetBytes) throws IOException {
+        counted = new Counting(out);
+        stream = new ObjectOutputStream(counted);
+        this.resetObjects = Math.max(1, resetObjects);
+        this.resetBytes = Math.max(1, resetBytes);
+        bytesAtReset = counted.count;
+    }
+
+    /**
+     * Записывает объект и, если пора, сбрасывает таблицу ссылок потока.
+     * @param object записываемый объект.
+     * @throws IOException при ошибке записи.
+     */
+    public synchronized void write(Object object) throws IOException {
+        stream.writeObject(object);
+        if (++objectsSinceReset >= resetObjects || counted.count - bytesAtReset >= resetBytes) {
+            stream.reset();
+            objectsSinceReset = 0;
+            bytesAtReset = counted.count;
+            resets++;
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        stream.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        stream.close();
+    }
+
+    /**
+     * Сколько байт записано за всё время.
+     * @return число байт.
+     */
+    public synchronized long getBytesWritten() {
+        return counted.count;
+    }
+    /**
+     * Сколько раз сбрасывалась таблица ссылок.
+     * @return число сбросов.
+     */
+    public synchronized long getResets() {
+        return resets;
+    }
+}
@@ -6,6 +6,9 @@ package common;
  * <p>
  * Клиент может посылать серверу любой тип сообщения, кроме первого
  * (каждый тип обрабатывается сервером по своему алгоритму).
+ * <p>
+ * Проверочные сигналы {@code PING} и {@code PONG} служат только для выявления
+ * оборвавшихся соединений и пользователю не показываются.
  */
 public enum MessageType {
     /**
@@ -43,5 +46,65 @@ public enum MessageType {
     /**
      * запрос от клиента на остановку работы сервера
      */
-    SHUT_REQUEST
+    SHUT_REQUEST,
+
+    /**
+     * проверочный сигнал от сервера, на который клиент должен ответить {@code PONG}
+     */
+    PING,
+
+    /**
+     * ответ клиента на проверочный сигнал, подтверждающий, что соединение живо
+     */
+    PONG,
+
+    /**
+     * сообщение от сервера, передающее зарегистрированному участнику токен возобновления сеанса
+     */
+    SESSION,
+
+    /**
+     * запрос от клиента на возобновление прерванного сеанса по токену под прежним именем
+     */
+    RESUME_REQUEST,
+
+    /**
+     * пакет от сервера, вкладывающий в себя несколько сообщений, доставляемых разом
+     * (например, пропущенных за время разрыва связи)
+     */
+    BATCH,
+
+    /**
+     * сведения от сервера о составе участников: полный снимок или изменения
+     * после версии, указанной клиентом в запросе {@code LIST_REQUEST} (см. {@link Presence})
+     */
+    PRESENCE,
+
+    /**
+     * запрос от клиента на поиск по истории беседы; в тексте передаются искомые слова
+     */
+    SEARCH_REQUEST,
+
+    /**
+     * подтверждение от сервера, что сообщение с указанным номером принято
+     * (в том числе если это повтор, который повторно не рассылается)
+     */
+    ACK,
+
+    /**
+     * запрос статистики сервера: задержек рассылки и состояния служб
+     */
+    STATS_REQUEST,
+
+    /**
+     * запрос от клиента игнорировать участника, имя которого передаётся в тексте, либо перестать
+     * его игнорировать, если он уже игнорируется; без имени – запрос списка игнорируемых
+     */
+    IGNORE_REQUEST,
+
+    /**
+     * запрос от клиента заглушить общую беседу (получать только личные и серверные сообщения)
+     * либо вернуть её, если она уже заглушена
+     */
+    MUTE_REQUEST
 }
@@ -0,0 +1,249 @@
+package common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.UnaryOperator;
+
+/**
+ * Упакованный вид сообщения для тех мест, где сообщения подолгу копятся во множестве:
+ * журналы пропущенного, почтовые ящики. Вместо объекта сообщения с тремя-четырьмя
+ * строками (у каждой свой заголовок и свой массив) хранится один массив байт и ссылка
+ * на имя отправителя, взятое из реестра, так что у всех сообщений одного автора
+ * оно общее. Поля расшифровываются из массива лишь при обращении к ним.
+ * <p>
+ * Раскладка массива: тип и признаки присутствия полей (1 байт: тип в младших пяти битах), номер
+ * (8 байт, если не нулевой), момент приёма сервером, разность момента отправки и момента
+ * приёма и порядковый номер – числами переменной длины, затем адресат и текст –
+ * длиной переменной длины и байтами UTF-8. Сообщения с вложениями не упаковываются.
+ */
+public final class PackedMessage {
+    /**
+     * Биты первого байта, занятые порядковым номером типа.
+     */
+    private static final int TYPE_MASK = 0x1F;
+    /**
+     * Признак: адресат присутствует.
+     */
+    private static final int HAS_ADDRESSEE = 1 << 5;
+    /**
+     * Признак: текст присутствует.
+     */
+    private static final int HAS_TEXT = 1 << 6;
+    /**
+     * Признак: номер сообщения не нулевой.
+     */
+    private static final int HAS_ID = 1 << 7;
+    /**
+     * Смещение первого поля за байтом типа и признаков.
+     */
+    private static final int FIELDS = 1;
+    /**
+     * Типы сообщений по порядковым номерам.
+     */
+    private static final MessageType[] types = MessageType.values();
+
+    /**
+     * Имя отправителя, общее с реестром.
+     */
+    private final String sender;
+    /**
+     * Все остальные поля сообщения.
+     */
+    private final byte[] packed;
+
+    private PackedMessage(String sender, byte[] packed) {
+        this.sender = sender;
+        this.packed = packed;
+    }
+
+    /**
+     * Упаковывает сообщение.
+     * @param message упаковываемое сообщение без вложений.
+     * @param names   источник общих экземпляров имён: по имени отправителя выдаёт равную
+     *                ему строку из реестра (или ту же, если в реестре такой нет).
+     * @return упакованное сообщение.
+     * @throws IllegalArgumentException если у сообщения есть вложения.
+     */
+    public static PackedMessage pack(Message message, UnaryOperator<String> names) {
+        if (!message.getEnclosed().isEmpty())
+            throw new IllegalArgumentException("Сообщение с вложениями не упаковывается: " + message.getType());
+        byte[] addressee = utf8(message.getAddressee());
+        byte[] text = utf8(message.getMessage());
+        int flags = (addressee != null ? HAS_ADDRESSEE : 0) | (text != null ? HAS_TEXT : 0)
+                | (message.getId() != 0 ? HAS_ID : 0);
+        long receivedAt = message.getReceivedAt();
+        long sentDelta = zigZag(message.getSentAt() - receivedAt);
+        int size = FIELDS + ((flags & HAS_ID) != 0 ? Long.BYTES : 0)
+                + varLength(receivedAt) + varLength(sentDelta) + varLength(message.getSeq())
+                + (addressee != null ? varLength(addressee.length) + addressee.length : 0)
+                + (text != null ? varLength(text.length) + text.length : 0);
+        byte[] packed = new byte[size];
+        packed[0] = (byte) (message.getType().ordinal() | flags);
+        int position = FIELDS;
+        if ((flags & HAS_ID) != 0) {
+            long id = message.getId();
+            for (int shift = 56; shift >= 0; shift -= 8)
+                packed[position++] = (byte) (id >>> shift);
+        }
+        position = putVar(packed, position, receivedAt);
+        position = putVar(packed, position, sentDelta);
+        position = putVar(packed, position, message.getSeq());
+        if (addressee != null)
+            position = putBytes(packed, position, addressee);
+        if (text != null)
+            putBytes(packed, position, text);
+        String sender = message.getSender();
+        return new PackedMessage(sender == null ? null : names.apply(sender), packed);
+    }
+
+    /**
+     * Записывает упакованное сообщение в поток как есть: имя отправителя и массив полей.
+     * @param out поток (например, снимка или журнала состояния сервера).
+     * @throws IOException при ошибке записи.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeBoolean(sender != null);
+        if (sender != null)
+            out.writeUTF(sender);
+        out.writeInt(packed.length);
+        out.write(packed);
+    }
+
+    /**
+     * Читает упакованное сообщение, записанное {@link #writeTo(DataOutput)}.
+     * @param in    поток.
+     * @param names источник общих экземпляров имён отправителей.
+     * @return упакованное сообщение.
+     * @throws IOException при ошибке чтения.
+     */
+    public static PackedMessage readFrom(DataInput in, UnaryOperator<String> names) throws IOException {
+        String sender = in.readBoolean() ? names.apply(in.readUTF()) : null;
+        byte[] packed = new byte[in.readInt()];
+        in.readFully(packed);
+        return new PackedMessage(sender, packed);
+    }
+
+    /**
+     * Восстанавливает сообщение целиком.
+     * @return сообщение, равное упакованному.
+     */
+    public Message unpack() {
+        return Message.unpacked(getType(), sender, getAddressee(), getMessage(),
+                getId(), getSentAt(), getReceivedAt(), getSeq());
+    }
+
+    public MessageType getType() {
+        return types[packed[0] & TYPE_MASK];
+    }
+    public String getSender() {
+        return sender;
+    }
+    public String getAddressee() {
+        if ((packed[0] & HAS_ADDRESSEE) == 0) return null;
+        return readString(textsStart());
+    }
+    public String getMessage() {
+        if ((packed[0] & HAS_TEXT) == 0) return null;
+        int position = textsStart();
+        if ((packed[0] & HAS_ADDRESSEE) != 0)
+            position = skipBytes(position);
+        return readString(position);
+    }
+    public long getId() {
+        if ((packed[0] & HAS_ID) == 0) return 0;
+        long id = 0;
+        for (int i = FIELDS; i < FIELDS + Long.BYTES; i++)
+            id = id << 8 | (packed[i] & 0xFF);
+        return id;
+    }
+    public long getReceivedAt() {
+        return getVar(numbersStart());
+    }
+    public long getSentAt() {
+        int position = skipVar(numbersStart());
+        long delta = getVar(position);
+        return getReceivedAt() + ((delta >>> 1) ^ -(delta & 1));
+    }
+    public long getSeq() {
+        return getVar(skipVar(skipVar(numbersStart())));
+    }
+
+    /**
+     * Объём упакованных полей в байтах.
+     * @return длина массива.
+     */
+    public int size() {
+        return packed.length;
+    }
+
+    @Override
+    public String toString() {
+        return unpack().toString();
+    }
+
+    /*
+        Внутренние вспомогательные методы.
+     */
+    private int numbersStart() {
+        return (packed[0] & HAS_ID) != 0 ? FIELDS + Long.BYTES : FIELDS;
+    }
+
+    private int textsStart() {
+        return skipVar(skipVar(skipVar(numbersStart())));
+    }
+
+    private long getVar(int position) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = packed[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private int skipVar(int position) {
+        while (packed[position++] < 0) ;
+        return position;
+    }
+
+    private int skipBytes(int position) {
+        int length = (int) getVar(position);
+        return skipVar(position) + length;
+    }
+
+    private String readString(int position) {
+        int length = (int) getVar(position);
+        return new String(packed, skipVar(position), length, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String string) {
+        return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int varLength(long value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) length++;
+        return length;
+    }
+
+    private static int putVar(byte[] target, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[position++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        target[position++] = (byte) value;
+        return position;
+    }
+
+    private static int putBytes(byte[] target, int position, byte[] bytes) {
+        position = putVar(target, position, bytes.length);
+        System.arraycopy(bytes, 0, target, position, bytes.length);
+        return position + bytes.length;
+    }
+}
@@ -0,0 +1,235 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Сведения о составе участников беседы, передаваемые сервером в сообщении типа {@code PRESENCE}.
+ * Это либо полный снимок состава на некоторую версию, либо перечень изменений
+ * (вход, выход, смена имени), переводящий состав от одной версии к другой.
+ * Версия состава на сервере только растёт, поэтому клиент, помнящий свою версию,
+ * может просить лишь изменения после неё.
+ * <p>
+ * В тексте сообщения сведения кодируются так: заголовок {@code S <версия>} для снимка
+ * или {@code D <исходная версия> <версия>} для изменений, перевод строки, затем
+ * записи подряд. Каждая запись – знак вида ({@code +} вход, {@code -} выход,
+ * {@code >} смена имени) и имя с длиной впереди: {@code +5:Алиса}; у смены имени
+ * за прежним именем сразу следует новое: {@code >4:Карл5:Клара}.
+ * Длина впереди позволяет не зависеть от того, какие символы допустимы в именах.
+ */
+public class Presence {
+    /**
+     * Вид изменения состава.
+     */
+    public enum Kind {
+        /**
+         * участник вошёл в беседу
+         */
+        JOIN('+'),
+        /**
+         * участник покинул беседу
+         */
+        LEAVE('-'),
+        /**
+         * участник сменил имя
+         */
+        RENAME('>');
+
+        /**
+         * Знак вида в закодированном тексте.
+         */
+        private final char sign;
+
+        Kind(char sign) {
+            this.sign = sign;
+        }
+
+        /**
+         * Определяет вид изменения по его знаку.
+         * @param sign знак из закодированного текста.
+         * @return вид изменения.
+         * @throws IllegalArgumentException если знак неизвестен.
+         */
+        static Kind of(char sign) {
+            for (Kind kind : values())
+                if (kind.sign == sign) return kind;
+            throw new IllegalArgumentException("Неизвестный вид изменения состава: " + sign);
+        }
+    }
+
+    /**
+     * Одно изменение состава участников.
+     */
+    public static class Change {
+        /**
+         * Вид изменения.
+         */
+        private final Kind kind;
+        /**
+         * Имя вошедшего или покинувшего участника, либо прежнее имя при смене имени.
+         */
+        private final String name;
+        /**
+         * Новое имя при смене имени; у прочих видов {@code ничто}.
+         */
+        private final String newName;
+
+        private Change(Kind kind, String name, String newName) {
+            this.kind = kind;
+            this.name = name;
+            this.newName = newName;
+        }
+
+        public static Change joined(String name) {
+            return new Change(Kind.JOIN, name, null);
+        }
+        public static Change left(String name) {
+            return new Change(Kind.LEAVE, name, null);
+        }
+        public static Change renamed(String oldName, String newName) {
+            return new Change(Kind.RENAME, oldName, newName);
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+        public String getName() {
+            return name;
+        }
+        public String getNewName() {
+            return newName;
+        }
+    }
+
+    /**
+     * Версия, от которой отсчитываются изменения, либо {@code -1} у снимка.
+     */
+    private final long base;
+    /**
+     * Версия состава, к которой приводят эти сведения.
+     */
+    private final long version;
+    /**
+     * Изменения по порядку; у снимка – входы всех присутствующих участников.
+     */
+    private final List<Change> changes;
+
+    private Presence(long base, long version, List<Change> changes) {
+        this.base = base;
+        this.version = version;
+        this.changes = changes;
+    }
+
+    /**
+     * Создаёт полный снимок состава.
+     * @param version версия состава.
+     * @param names   имена всех присутствующих участников.
+     * @return новый снимок.
+     */
+    public static Presence snapshot(long version, Collection<String> names) {
+        List<Change> joins = new ArrayList<>(names.size());
+        for (String name : names)
+            joins.add(Change.joined(name));
+        return new Presence(-1, version, joins);
+    }
+
+    /**
+     * Создаёт перечень изменений от одной версии к другой.
+     * @param base    версия, от которой отсчитываются изменения.
+     * @param version версия, к которой они приводят.
+     * @param changes изменения по порядку.
+     * @return новый перечень изменений.
+     */
+    public static Presence delta(long base, long version, List<Change> changes) {
+        return new Presence(base, version, List.copyOf(changes));
+    }
+
+    /**
+     * Кодирует сведения в текст для передачи в сообщении.
+     * @return закодированный текст.
+     */
+    public String encode() {
+        StringBuilder text = new StringBuilder(isSnapshot() ? "S " + version : "D " + base + " " + version);
+        text.append('\n');
+        for (Change change : changes) {
+            text.append(change.kind.sign);
+            appendName(text, change.name);
+            if (change.kind == Kind.RENAME)
+                appendName(text, change.newName);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Восстанавливает сведения из закодированного текста.
+     * @param text текст, полученный в сообщении.
+     * @return сведения о составе.
+     * @throws IllegalArgumentException если текст не соответствует формату.
+     */
+    public static Presence decode(String text) {
+        if (text == null)
+            throw new IllegalArgumentException("Нет сведений о составе");
+        int lineEnd = text.indexOf('\n');
+        if (lineEnd < 0)
+            throw new IllegalArgumentException("Нет заголовка сведений о составе");
+        String[] header = text.substring(0, lineEnd).split(" ");
+        long base;
+        long version;
+        try {
+            if (header.length == 2 && header[0].equals("S")) {
+                base = -1;
+                version = Long.parseLong(header[1]);
+            } else if (header.length == 3 && header[0].equals("D")) {
+                base = Long.parseLong(header[1]);
+                version = Long.parseLong(header[2]);
+            } else {
+                throw new IllegalArgumentException("Неверный заголовок сведений о составе: " + text.substring(0, lineEnd));
+            }
+            List<Change> changes = new ArrayList<>();
+            int[] position = {lineEnd + 1};
+            while (position[0] < text.length()) {
+                Kind kind = Kind.of(text.charAt(position[0]++));
+                String name = readName(text, position);
+                changes.add(kind == Kind.RENAME ?
+                        Change.renamed(name, readName(text, position)) : new Change(kind, name, null));
+            }
+            return new Presence(base, version, changes);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Искажённые сведения о составе: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Сообщает, является ли это полным снимком состава.
+     * @return {@code истинно} для снимка, {@code ложно} для перечня изменений.
+     */
+    public boolean isSnapshot() {
+        return base < 0;
+    }
+
+    public long getBase() {
+        return base;
+    }
+    public long getVersion() {
+        return version;
+    }
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    /*
+        Внутренние вспомогательные методы.
+     */
+    private static void appendName(StringBuilder text, String name) {
+        text.append(name.length()).append(':').append(name);
+    }
+
+    private static String readName(String text, int[] position) {
+        int colon = text.indexOf(':', position[0]);
+        int length = Integer.parseInt(text.substring(position[0], colon));
+        String name = text.substring(colon + 1, colon + 1 + length);
+        position[0] = colon + 1 + length;
+        return name;
+    }
+}
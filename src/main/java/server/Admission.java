@@ -0,0 +1,174 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Пропускной контроль подключений: ограничивает число одновременно обслуживаемых
+ * соединений и число соединений с одного адреса, а сверх общего предела держит
+ * ограниченную очередь ожидающих сокетов. Всё, что не помещается в эти рамки, отклоняется,
+ * так что лавина переподключений упирается в потолок, а не исчерпывает память и потоки.
+ */
+public class Admission {
+    /**
+     * Решение по новому подключению.
+     */
+    public enum Verdict {
+        /**
+         * подключение допущено к обслуживанию немедленно
+         */
+        ADMITTED,
+        /**
+         * подключение поставлено в очередь ожидания свободного места
+         */
+        QUEUED,
+        /**
+         * подключение отклонено
+         */
+        REJECTED
+    }
+
+    /**
+     * Наибольшее число одновременно обслуживаемых соединений.
+     */
+    private int maxConnections;
+    /**
+     * Наибольшее число соединений (обслуживаемых и ожидающих) с одного адреса.
+     */
+    private int maxPerAddress;
+    /**
+     * Наибольшая длина очереди ожидающих подключений.
+     */
+    private int queueCapacity;
+    /**
+     * Число обслуживаемых в данный момент соединений.
+     */
+    private int admitted;
+    /**
+     * Число отклонённых за время работы подключений.
+     */
+    private long rejected;
+    /**
+     * Число соединений (обслуживаемых и ожидающих) по адресам.
+     */
+    private final Map<InetAddress, Integer> perAddress = new HashMap<>();
+    /**
+     * Очередь подключений, ожидающих освобождения места.
+     */
+    private final ArrayDeque<Socket> waiting = new ArrayDeque<>();
+
+    /**
+     * Создаёт пропускной контроль с указанными ограничениями.
+     * @param maxConnections наибольшее число одновременно обслуживаемых соединений.
+     * @param maxPerAddress  наибольшее число соединений с одного адреса.
+     * @param queueCapacity  наибольшая длина очереди ожидания.
+     */
+    public Admission(int maxConnections, int maxPerAddress, int queueCapacity) {
+        setLimits(maxConnections, maxPerAddress, queueCapacity);
+    }
+
+    /**
+     * Меняет ограничения на ходу. Уже допущенные соединения не затрагиваются;
+     * если общий предел вырос, ожидающие будут допущены при следующем освобождении места.
+     * @param maxConnections наибольшее число одновременно обслуживаемых соединений.
+     * @param maxPerAddress  наибольшее число соединений с одного адреса.
+     * @param queueCapacity  наибольшая длина очереди ожидания.
+     */
+    public synchronized void setLimits(int maxConnections, int maxPerAddress, int queueCapacity) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.maxPerAddress = Math.max(1, maxPerAddress);
+        this.queueCapacity = Math.max(0, queueCapacity);
+    }
+
+    /**
+     * Принимает решение по новому подключению и учитывает его, если оно не отклонено.
+     * @param socket принятый сокет.
+     * @return допущено, поставлено в очередь или отклонено подключение.
+     */
+    public synchronized Verdict offer(Socket socket) {
+        InetAddress address = socket.getInetAddress();
+        int fromAddress = perAddress.getOrDefault(address, 0);
+        if (fromAddress >= maxPerAddress) {
+            rejected++;
+            return Verdict.REJECTED;
+        }
+        Verdict verdict;
+        if (admitted < maxConnections) {
+            admitted++;
+            verdict = Verdict.ADMITTED;
+        } else if (waiting.size() < queueCapacity) {
+            waiting.add(socket);
+            verdict = Verdict.QUEUED;
+        } else {
+            rejected++;
+            return Verdict.REJECTED;
+        }
+        perAddress.put(address, fromAddress + 1);
+        return verdict;
+    }
+
+    /**
+     * Снимает с учёта завершившееся соединение и допускает из очереди столько ожидающих,
+     * сколько теперь позволяет общий предел. Закрытые за время ожидания сокеты пропускаются.
+     * @param address адрес завершившегося соединения.
+     * @return сокеты, допущенные к обслуживанию из очереди (возможно, ни одного).
+     */
+    public synchronized List<Socket> release(InetAddress address) {
+        admitted--;
+        forget(address);
+        List<Socket> admittedNow = new ArrayList<>();
+        while (admitted < maxConnections && !waiting.isEmpty()) {
+            Socket next = waiting.poll();
+            if (next.isClosed()) {
+                forget(next.getInetAddress());
+                continue;
+            }
+            admitted++;
+            admittedNow.add(next);
+        }
+        return admittedNow;
+    }
+
+    /**
+     * Очищает очередь ожидания, закрывая все ожидающие сокеты (при остановке сервера).
+     */
+    public synchronized void closeWaiting() {
+        for (Socket socket : waiting) {
+            forget(socket.getInetAddress());
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        waiting.clear();
+    }
+
+    /**
+     * Учитывает подключение, отклонённое не самим пропускным контролем
+     * (например, при ошибке его запуска).
+     */
+    public synchronized void countRejected() {
+        rejected++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "соединений: %d из %d, в очереди: %d из %d, отклонено: %d".formatted(
+                admitted, maxConnections, waiting.size(), queueCapacity, rejected);
+    }
+
+    /**
+     * Уменьшает учтённое число соединений с адреса, удаляя запись, когда их не осталось.
+     * @param address адрес соединения.
+     */
+    private void forget(InetAddress address) {
+        perAddress.computeIfPresent(address, (key, count) -> count > 1 ? count - 1 : null);
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Обойма прямых буферов ввода-вывода по классам размеров (степени двойки от
+ * {@link #MIN_CLASS} до {@link #MAX_CLASS}). Соединения берут буфер только на время,
+ * пока у них есть данные в пути, и сразу возвращают его, так что простаивающее соединение
+ * буфера не держит, а выделение прямой памяти происходит лишь при промахе.
+ * Запрос больше наибольшего класса обслуживается разовым буфером, который не возвращается.
+ * Общий объём хранимых свободных буферов ограничен; сверх него возвращённые буферы
+ * отдаются сборщику мусора.
+ */
+public class BufferPool {
+    /**
+     * Наименьший класс размера буфера.
+     */
+    public static final int MIN_CLASS = 512;
+    /**
+     * Наибольший класс размера буфера.
+     */
+    public static final int MAX_CLASS = 64 * 1024;
+    /**
+     * Число классов размеров.
+     */
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_CLASS / MIN_CLASS) + 1;
+
+    /**
+     * Свободные буферы по классам размеров.
+     */
+    private final List<ConcurrentLinkedDeque<ByteBuffer>> free;
+    /**
+     * Сколько байт занимают свободные буферы в обойме.
+     */
+    private final AtomicLong retainedBytes = new AtomicLong();
+    /**
+     * Сколько буферов выдано и ещё не возвращено.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    /**
+     * Сколько запросов обслужено готовым буфером из обоймы.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * Сколько запросов потребовали выделения нового буфера.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * Наибольший объём свободных буферов, который обойма хранит.
+     */
+    private volatile long retainLimit;
+
+    /**
+     * Создаёт пустую обойму.
+     * @param retainLimit сколько байт свободных буферов хранить для повторного использования.
+     */
+    public BufferPool(long retainLimit) {
+        List<ConcurrentLinkedDeque<ByteBuffer>> classes = new ArrayList<>(CLASSES);
+        for (int i = 0; i < CLASSES; i++)
+            classes.add(new ConcurrentLinkedDeque<>());
+        free = List.copyOf(classes);
+        setRetainLimit(retainLimit);
+    }
+
+    /**
+     * Меняет на ходу предел хранимого объёма. Лишние уже хранимые буферы не освобождаются
+     * сразу, а просто перестают пополняться, пока объём не опустится ниже предела.
+     * @param retainLimit сколько байт свободных буферов хранить.
+     */
+    public void setRetainLimit(long retainLimit) {
+        this.retainLimit = Math.max(0, retainLimit);
+    }
+
+    /**
+     * Выдаёт очищенный прямой буфер ёмкостью не меньше запрошенной.
+     * @param size наименьшая нужная ёмкость.
+     * @return буфер, который нужно вернуть через {@link #release(ByteBuffer)}.
+     */
+    public ByteBuffer acquire(int size) {
+        outstanding.incrementAndGet();
+        if (size > MAX_CLASS) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocateDirect(size);
+        }
+        int sizeClass = classOf(size);
+        ByteBuffer buffer = free.get(sizeClass).pollFirst();
+        if (buffer != null) {
+            retainedBytes.addAndGet(-buffer.capacity());
+            hits.incrementAndGet();
+            return buffer.clear();
+        }
+        misses.incrementAndGet();
+        return ByteBuffer.allocateDirect(MIN_CLASS << sizeClass);
+    }
+
+    /**
+     * Возвращает буфер в обойму. Буфер после этого использовать нельзя.
+     * @param buffer ранее выданный буфер.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null) return;
+        outstanding.decrementAndGet();
+        int capacity = buffer.capacity();
+        if (capacity > MAX_CLASS || Integer.bitCount(capacity) != 1 || capacity < MIN_CLASS) return;
+        if (retainedBytes.get() + capacity > retainLimit) return;
+        retainedBytes.addAndGet(capacity);
+        // последним вернули – первым выдадим: этот буфер скорее всего ещё в кэше процессора
+        free.get(classOf(capacity)).offerFirst(buffer);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        long hit = hits.get(), miss = misses.get();
+        return "выдано: %d, попаданий: %d, промахов: %d (%.1f%%), хранится: %d КБ".formatted(
+                outstanding.get(), hit, miss, hit + miss == 0 ? 0.0 : 100.0 * miss / (hit + miss),
+                retainedBytes.get() / 1024);
+    }
+
+    /**
+     * Класс размера, вмещающий данную ёмкость.
+     * @param size ёмкость, не больше {@link #MAX_CLASS}.
+     * @return номер класса.
+     */
+    private static int classOf(int size) {
+        if (size <= MIN_CLASS) return 0;
+        return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_CLASS);
+    }
+}
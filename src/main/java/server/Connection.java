@@ -1,13 +1,18 @@
 package server;
 
 import common.Message;
+import common.MessageOutput;
+import common.MessageType;
 import common.Logger;
 
+import java.net.InetAddress;
 import java.net.Socket;
+import java.io.EOFException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static server.TextConstants.*;
 
@@ -15,6 +20,20 @@ import static server.TextConstants.*;
  * Исполняемая в самостоятельном потоке логика работы сервера с конкретным подключением.
  */
 public class Connection implements Runnable, AutoCloseable {
+    /**
+     * Ёмкость буферов, заимствуемых соединением для чтения и записи.
+     */
+    private static final int IO_BUFFER = 8 * 1024;
+    /**
+     * Сколько обычных сообщений может копиться в исходящей очереди, пока в соединение идёт запись;
+     * сверх этого отсылающий ждёт, как ждал бы медленного клиента при прямой записи.
+     */
+    private static final int OUTPUT_QUEUE = 1024;
+    /**
+     * Сколько миллисекунд закрытие ждёт отсылки прощального сообщения,
+     * прежде чем закрыть сокет, не дожидаясь зависшей записи.
+     */
+    private static final long CLOSE_TIMEOUT = 1000;
     /**
      * Сервер, установивший это Соединение.
      */
@@ -39,7 +58,19 @@ public class Connection implements Runnable, AutoCloseable {
     /**
      * Исходящий объектный поток на сокет.
      */
-    private ObjectOutputStream messageSender;
+    private MessageOutput messageSender;
+    /**
+     * Исходящая очередь с полосами срочных и обычных сообщений перед объектным потоком.
+     */
+    private Outbox outbox;
+    /**
+     * Исходящий поток канала под объектным потоком, если сокет принят через канал, иначе {@code ничто}.
+     */
+    private PooledOutputStream rawSender;
+    /**
+     * Входящий поток канала под объектным потоком, если сокет принят через канал, иначе {@code ничто}.
+     */
+    private PooledInputStream rawReceiver;
     /**
      * Показатель, находится ли Соединение в локальном режиме, то есть что обработка
      * полученного сообщения не передаётся Диспетчеру, а обрабатывается в локальном методе.
@@ -48,6 +79,11 @@ public class Connection implements Runnable, AutoCloseable {
      * Также переход в локальный режим требуется, когда Соединение ожидает подтверждения пароля.
      */
     private boolean localMode = true;
+    /**
+     * Сколько проверочных сигналов подряд осталось без ответа.
+     * Любое полученное от клиента сообщение обнуляет счётчик.
+     */
+    private final AtomicInteger missedBeats = new AtomicInteger();
 
     /**
      * Создаёт новое Соединение ассоциированного Сервера над указанным Сокетом.
@@ -70,9 +106,9 @@ public class Connection implements Runnable, AutoCloseable {
      */
     @Override
     public void run() {
+        host.connectionOpened(this);
         try (socket) {
-            messageSender = new ObjectOutputStream(socket.getOutputStream());
-            messageReceiver = new ObjectInputStream(socket.getInputStream());
+            openStreams();
 
             // регистрируем участника
             registerUser();
@@ -86,14 +122,17 @@ public class Connection implements Runnable, AutoCloseable {
                     try {
                         dispatcher.operateOn(receiveMessage(), this);
 
-                    } catch (SocketException e) {
+                    } catch (SocketException | EOFException e) {
                         error = "Соединение закрыто: " + e.getMessage();
-//                        e.printStackTrace();
-//                        socket.close();
-                    } catch (IOException | ClassNotFoundException e) {
+                        if (!isClosed())
+                            dispatcher.connectionLost(this);
+                    } catch (IOException e) {
+                        // поток сообщений испорчен, продолжать чтение из него бессмысленно
+                        error = "Ошибка чтения из соединения: " + e.getMessage();
+                        dispatcher.connectionLost(this);
+                    } catch (ClassNotFoundException e) {
                         error = "Ошибка обработки сообщения: " + e.getMessage();
                         e.printStackTrace();
-//                        break;
                     } finally {
                         if (error != null) {
                             System.out.println(error);
@@ -108,48 +147,139 @@ public class Connection implements Runnable, AutoCloseable {
             System.out.println(error);
             logger.logEvent(error);
 //            e.printStackTrace();
+        } finally {
+            closeStreams();
+            host.connectionClosed(this);
         }
-//        finally {
-//            try {
-//                close();
-//            } catch (Exception e) {
-//                e.printStackTrace();
-//            }
-//        }
 
         System.out.println("END running Connection " + this);   // monitor
     }
 
     /**
-     * Проводит регистрацию имени пользователя для данного соединения.
+     * Проводит регистрацию имени пользователя для данного соединения,
+     * либо, если клиент предъявил действительный токен, возобновляет его прерванный сеанс.
      */
     private void registerUser() {
         try {
             Message probeMessage = Message.fromServer("Соединение с ... " + host.HOST, this.toString());
-            sendMessage(probeMessage);
+            sendMessage(probeMessage, probeMessage.getAddressee());
             logger.logOutbound(probeMessage);
 
-            String sender = receiveMessage().getSender();
+            Message request = receiveMessage();
+            if (request.getType() == MessageType.RESUME_REQUEST
+                    && dispatcher.resumeUser(request.getSender(), request.getMessage(), this)) {
+                setGlobalMode();
+                return;
+            }
+            // если сеанс не возобновлён, запрошенное имя рассматривается как обычная регистрация
+            String sender = request.getSender();
             while(!dispatcher.addUser(sender, this)) {
                 Message warnMessage = Message.fromServer(REGISTRATION_WARNING.formatted(sender), this.toString());
-                sendMessage(warnMessage);
+                sendMessage(warnMessage, warnMessage.getAddressee());
                 logger.logOutbound(warnMessage);
                 sender = receiveMessage().getSender();
             }
             setGlobalMode();
             dispatcher.greetUser(sender);
         } catch (IOException | ClassNotFoundException e) {
-            e.printStackTrace();
+            // без регистрации дальнейшая работа соединения невозможна
+            if (!isClosed()) e.printStackTrace();
+            closeSocket();
+        }
+    }
+
+    /**
+     * Открывает объектные потоки сокета. Если сокет принят через канал, под ними лежат потоки,
+     * заимствующие буферы из обоймы Сервера лишь на время передачи данных. Перед исходящим
+     * потоком ставится очередь, которая пропускает срочные сообщения вперёд и объединяет
+     * накопившиеся за время записи в одну запись.
+     * @throws IOException при ошибке открытия потоков.
+     */
+    private void openStreams() throws IOException {
+        // сообщения и так объединяются перед записью, задержка Нейгла им только мешает
+        socket.setTcpNoDelay(true);
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            messageSender = new MessageOutput(socket.getOutputStream(),
+                    host.streamResetObjects, host.streamResetBytes);
+            outbox = new Outbox(messageSender, host.writes, OUTPUT_QUEUE);
+            messageReceiver = new ObjectInputStream(socket.getInputStream());
+            return;
         }
+        rawSender = new PooledOutputStream(channel, host.buffers, host.writes, IO_BUFFER);
+        messageSender = new MessageOutput(rawSender, host.streamResetObjects, host.streamResetBytes);
+        messageSender.flush();      // заголовок потока должен уйти до того, как клиент начнёт его ждать
+        outbox = new Outbox(messageSender, host.writes, OUTPUT_QUEUE);
+        rawReceiver = new PooledInputStream(channel, host.buffers, IO_BUFFER);
+        messageReceiver = new ObjectInputStream(rawReceiver);
+    }
+
+    /**
+     * Возвращает в обойму буферы, которые потоки могли ещё держать.
+     */
+    private void closeStreams() {
+        if (outbox != null) outbox.close();
+        if (rawReceiver != null) rawReceiver.close();
+        if (rawSender != null) rawSender.close();
     }
 
     /**
-     * Записывает в исходящий поток объект сообщения.
-     * @param message сообщение, которое отсылается.
+     * Ставит в исходящую очередь сообщение в конверте с именем получателя: служебные
+     * и серверные сообщения – в срочную полосу, переправляемые текстовые – в обычную.
+     * Само сообщение неизменяемо, поэтому его можно одновременно отсылать из разных потоков.
+     * В сокет сообщения отдаёт тот, кто застал очередь без писателя, вместе со всем, что
+     * накопилось, пока он писал. Поэтому при возврате сообщение может быть ещё в пути;
+     * ошибка его записи достанется писавшему или следующему отсылающему.
+     * @param message   сообщение, которое отсылается.
+     * @param recipient получатель, которому оно вручается.
      * @throws IOException при невозможности записать в поток.
      */
-    public void sendMessage(Message message) throws IOException {
-        messageSender.writeObject(message);
+    public void sendMessage(Message message, String recipient) throws IOException {
+        outbox.post(message, recipient);
+    }
+
+    /**
+     * Ставит сообщение в исходящую очередь, не дожидаясь записи: если очередь без писателя,
+     * сообщение отошлёт поток службы объединения записей. Для служебных рассылок
+     * (проверочных сигналов, уведомления о завершении), которые не должны ждать медленного клиента.
+     * @param message   сообщение, которое отсылается.
+     * @param recipient получатель, которому оно вручается.
+     * @throws IOException если исходящая очередь уже непригодна.
+     */
+    public void sendLater(Message message, String recipient) throws IOException {
+        if (outbox == null) throw new SocketException("Соединение ещё не открыто");
+        outbox.offer(message, recipient);
+    }
+
+    /**
+     * Закрывает соединение через исходящую очередь: прощальное сообщение (если есть) обгоняет
+     * неотосланную беседу, и сокет закрывается сразу после него, но не позже {@code CLOSE_TIMEOUT}.
+     * @param farewell  прощальное сообщение (стоп-сигнал) или {@code ничто}.
+     * @param recipient получатель, которому оно вручается.
+     */
+    public void sendAndClose(Message farewell, String recipient) {
+        if (outbox == null) {
+            closeSocket();
+            return;
+        }
+        outbox.postAndClose(farewell, recipient, this::closeSocket, CLOSE_TIMEOUT);
+    }
+
+    /**
+     * Дописывает в сокет всё, что осталось в исходящей очереди, дожидаясь и записи,
+     * которую ведёт другой поток, но не дольше указанного срока.
+     * Ошибку записи только протоколирует, поскольку вызывается при остановке сервера.
+     * @param deadline до какого момента ждать, по {@link System#nanoTime()}.
+     * @return {@code истинно}, если очередь опустела в срок.
+     */
+    public boolean drain(long deadline) {
+        if (outbox == null || isClosed()) return true;
+        try {
+            return outbox.drain(deadline);
+        } catch (IOException e) {
+            logger.logEvent("Не удалось опустошить буфер %s: %s".formatted(this, e.getMessage()));
+            return false;
+        }
     }
 
     /**
@@ -161,6 +291,7 @@ public class Connection implements Runnable, AutoCloseable {
      */
     private Message receiveMessage() throws IOException, ClassNotFoundException {
         Message gotMessage = (Message) messageReceiver.readObject();
+        missedBeats.set(0);
         if (gotMessage.isRequest())
             logger.logInbound(gotMessage);
         return gotMessage;
@@ -169,8 +300,8 @@ public class Connection implements Runnable, AutoCloseable {
     /**
      * Процедура подтверждения команды остановки: запрашивает пароль
      * у запросившего выключение участника и передаёт его серверу как
-     * токен к запросу на остановку сервера.
-     * Сообщения логируются, полученный пароль маскируется.
+     * токен к запросу на остановку сервера. Если вместо пароля приходит иное сообщение,
+     * запрос считается отклонённым. Сообщения логируются, полученный пароль маскируется.
      */
     public void getShut() {
         setLocalMode();
@@ -178,11 +309,12 @@ public class Connection implements Runnable, AutoCloseable {
         byte[] gotPassword = new byte[0];
         try {
             Message passwordRequest = Message.fromServer(PASSWORD_REQUEST, requesting);
-            sendMessage(passwordRequest);
+            sendMessage(passwordRequest, requesting);
             logger.logOutbound(passwordRequest);
-            gotPassword = receiveMessage().getMessage().getBytes();
+            gotPassword = receivePassword();
             // пароль не логируется
-            logger.logInbound(Message.fromClientInput("<****word>", requesting));
+            if (gotPassword.length > 0)
+                logger.logInbound(Message.fromClientInput("<****word>", requesting));
         } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         }
@@ -190,6 +322,23 @@ public class Connection implements Runnable, AutoCloseable {
         host.stopServer(gotPassword);
     }
 
+    /**
+     * Дожидается ответа на запрос пароля. Ответы на проверочные сигналы, пришедшие тем
+     * временем, пропускаются; любое другое сообщение, кроме текстового, считается отказом.
+     * @return байты пароля или пустой массив при отказе.
+     * @throws IOException если чтение из потока не удаётся.
+     * @throws ClassNotFoundException если полученный объект не определяется как сообщение.
+     */
+    private byte[] receivePassword() throws IOException, ClassNotFoundException {
+        Message reply;
+        do {
+            reply = receiveMessage();
+        } while (reply.getType() == MessageType.PONG);
+        if (reply.getType() != MessageType.TXT_MSG || reply.getMessage() == null)
+            return new byte[0];
+        return reply.getMessage().getBytes();
+    }
+
     /*
         Вспомогательные функции.
      */
@@ -220,6 +369,48 @@ public class Connection implements Runnable, AutoCloseable {
         socket.close();
     }
 
+    /**
+     * Сообщает, сколько проверочных сигналов подряд осталось без ответа.
+     * @return число пропущенных ответов.
+     */
+    int getMissedBeats() {
+        return missedBeats.get();
+    }
+
+    /**
+     * Засчитывает очередной разосланный проверочный сигнал как пока не отвеченный.
+     */
+    void countBeat() {
+        missedBeats.incrementAndGet();
+    }
+
+    /**
+     * Выдаёт сокет соединения (чтобы отказать в обслуживании, не запуская Соединение).
+     * @return сокет соединения.
+     */
+    Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Сообщает удалённый адрес соединения.
+     * @return адрес, с которого подключился клиент.
+     */
+    InetAddress getAddress() {
+        return socket.getInetAddress();
+    }
+
+    /**
+     * Закрывает сокет, протоколируя, а не пробрасывая, возможную ошибку.
+     */
+    public void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.logEvent("Ошибка закрытия сокета %s: %s".formatted(socket, e.getMessage()));
+        }
+    }
+
     @Override
     public String toString() {
         return "%s@%s:%d".formatted(
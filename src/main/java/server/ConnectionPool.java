@@ -0,0 +1,130 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Ограниченная обойма потоков, в которых работают Соединения. В отличие от неограниченной
+ * кэширующей обоймы, число потоков не превышает заданного потолка: сверх ядра потоки
+ * создаются по мере надобности и отмирают после простоя, а когда и потолок, и очередь
+ * заняты, Соединение не запускается, а передаётся обработчику отказа, который
+ * отвечает клиенту, что сервер занят. Так лавина подключений упирается в потолок,
+ * а не в исчерпание памяти при создании системных потоков.
+ */
+public class ConnectionPool {
+    /**
+     * Сколько секунд поток сверх ядра ждёт новой работы, прежде чем завершиться.
+     */
+    private static final long KEEP_ALIVE = 60;
+
+    /**
+     * Исполнитель, на котором запускаются Соединения.
+     */
+    private final ThreadPoolExecutor executor;
+    /**
+     * Число Соединений, которым отказано за время работы.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+    /**
+     * Наибольшая длина очереди Соединений, ожидающих свободного потока.
+     */
+    private final int queueCapacity;
+
+    /**
+     * Создаёт обойму соединений.
+     * @param coreSize      сколько потоков держать и при простое.
+     * @param maxSize       наибольшее число потоков.
+     * @param queueCapacity сколько Соединений может ждать свободного потока; при {@code 0}
+     *                      ожидания нет, и новое Соединение либо получает поток сразу, либо отклоняется.
+     * @param busy          обработчик отказа: получает Соединение, для которого не нашлось места.
+     */
+    public ConnectionPool(int coreSize, int maxSize, int queueCapacity, Consumer<Connection> busy) {
+        this.queueCapacity = Math.max(0, queueCapacity);
+        BlockingQueue<Runnable> queue = this.queueCapacity == 0 ?
+                new SynchronousQueue<>() : new ArrayBlockingQueue<>(this.queueCapacity);
+        AtomicInteger counter = new AtomicInteger();
+        int max = Math.max(1, maxSize);
+        executor = new ThreadPoolExecutor(Math.min(Math.max(0, coreSize), max), max,
+                KEEP_ALIVE, TimeUnit.SECONDS, queue,
+                task -> new Thread(task, "connection-" + counter.incrementAndGet()),
+                (task, pool) -> {
+                    rejected.incrementAndGet();
+                    busy.accept((Connection) task);
+                });
+    }
+
+    /**
+     * Меняет размеры обоймы на ходу; длина очереди задаётся только при создании.
+     * @param coreSize сколько потоков держать и при простое.
+     * @param maxSize  наибольшее число потоков.
+     */
+    public void setLimits(int coreSize, int maxSize) {
+        int max = Math.max(1, maxSize);
+        int core = Math.min(Math.max(0, coreSize), max);
+        // при уменьшении сначала ядро, при увеличении сначала максимум – иначе обойма отвергнет размер
+        if (max < executor.getMaximumPoolSize()) {
+            executor.setCorePoolSize(core);
+            executor.setMaximumPoolSize(max);
+        } else {
+            executor.setMaximumPoolSize(max);
+            executor.setCorePoolSize(core);
+        }
+    }
+
+    /**
+     * Запускает Соединение в потоке обоймы, а если места нет – передаёт его обработчику отказа.
+     * @param connection запускаемое Соединение.
+     */
+    public void execute(Connection connection) {
+        executor.execute(connection);
+    }
+
+    /**
+     * Прекращает приём новых Соединений; уже работающие продолжаются.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Ждёт завершения всех потоков обоймы после {@link #shutdown()}.
+     * @param timeout сколько ждать.
+     * @param unit    единицы времени ожидания.
+     * @return {@code истинно}, если все потоки завершились.
+     * @throws InterruptedException если ожидание прервано.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Прерывает все потоки обоймы.
+     */
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public String toString() {
+        return "потоков: %d из %d (ядро %d, наибольшее %d), активных: %d, в очереди: %d из %d, отклонено: %d".formatted(
+                executor.getPoolSize(), executor.getMaximumPoolSize(), executor.getCorePoolSize(),
+                executor.getLargestPoolSize(), getActiveCount(), getQueuedCount(), queueCapacity,
+                getRejectedCount());
+    }
+}
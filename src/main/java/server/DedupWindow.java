@@ -0,0 +1,98 @@
+package server;
+
+/**
+ * Окно последних номеров сообщений одного отправителя для отсева повторов.
+ * Номера хранятся в небольшой таблице с открытой адресацией (линейное пробирование),
+ * а порядок их поступления – в кольце той же длины, что и окно: когда окно заполнено,
+ * самый старый номер вытесняется из таблицы со сдвигом следующих за ним ячеек,
+ * так что и проверка, и добавление стоят O(1) без выделения памяти.
+ * Номер {@code 0} означает «без номера» и в окне не хранится.
+ */
+public class DedupWindow {
+    /**
+     * Таблица номеров; {@code 0} – пустая ячейка. Длина – степень двойки, не менее удвоенного окна.
+     */
+    private final long[] table;
+    /**
+     * Номера в порядке поступления (кольцо).
+     */
+    private final long[] order;
+    /**
+     * Позиция в кольце, куда встанет следующий номер.
+     */
+    private int next;
+    /**
+     * Число номеров в окне.
+     */
+    private int size;
+
+    /**
+     * Создаёт пустое окно.
+     * @param capacity сколько последних номеров помнить.
+     */
+    public DedupWindow(int capacity) {
+        capacity = Math.max(1, capacity);
+        order = new long[capacity];
+        table = new long[Integer.highestOneBit(capacity * 2 - 1) << 1];
+    }
+
+    /**
+     * Запоминает номер, если его ещё нет в окне.
+     * @param id номер сообщения.
+     * @return {@code истинно}, если номер новый (или это {@code 0}), {@code ложно} для повтора.
+     */
+    public synchronized boolean add(long id) {
+        if (id == 0) return true;
+        int slot = find(id);
+        if (table[slot] == id) return false;
+        if (size == order.length) {
+            remove(order[next]);
+            slot = find(id);
+        } else {
+            size++;
+        }
+        table[slot] = id;
+        order[next] = id;
+        next = (next + 1) % order.length;
+        return true;
+    }
+
+    /**
+     * Ищет ячейку номера: занятую им или первую пустую на его пути.
+     * @param id номер.
+     * @return индекс ячейки.
+     */
+    private int find(long id) {
+        int mask = table.length - 1;
+        int slot = hash(id) & mask;
+        while (table[slot] != 0 && table[slot] != id)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    /**
+     * Удаляет номер из таблицы, сдвигая назад следующие за ним ячейки той же цепочки,
+     * чтобы поиск остальных номеров не обрывался на образовавшейся пустоте.
+     * @param id удаляемый номер.
+     */
+    private void remove(long id) {
+        int mask = table.length - 1;
+        int hole = find(id);
+        if (table[hole] != id) return;
+        table[hole] = 0;
+        for (int slot = (hole + 1) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int home = hash(table[slot]) & mask;
+            // ячейку можно переставить в дыру, если её «дом» не лежит между дырой и ею самой
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                table[hole] = table[slot];
+                table[slot] = 0;
+                hole = slot;
+            }
+        }
+    }
+
+    private static int hash(long id) {
+        long mixed = id * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
+    }
+}
@@ -1,12 +1,19 @@
 package server;
 
+import common.LatencyHistogram;
 import common.Message;
 import common.Logger;
+import common.PackedMessage;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.io.IOException;
 import java.net.SocketException;
@@ -19,6 +26,52 @@ import static server.TextConstants.*;
  * выхода из разговора или команды на остановку сервера.
  */
 public class Dispatcher {
+    /**
+     * Участник в снимке реестра: имя, соединение и плотный номер в {@link Ignores}.
+     */
+    private static final class Member {
+        final String name;
+        final Connection connection;
+        final int id;
+
+        Member(String name, Connection connection, int id) {
+            this.name = name;
+            this.connection = connection;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Неизменяемый снимок реестра, по которому идёт рассылка: участники в массиве и номер
+     * каждого в нём, чтобы отправителя можно было пропустить по номеру без сравнения имён.
+     */
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Map.of(), null);
+
+        final Member[] members;
+        final Map<String, Integer> positions;
+
+        Snapshot(Map<String, Connection> registry, Ignores ignores) {
+            List<Member> listed = new ArrayList<>(registry.size());
+            registry.forEach((name, connection) -> listed.add(new Member(name, connection, ignores.idOf(name))));
+            members = listed.toArray(new Member[0]);
+            Map<String, Integer> indexed = new HashMap<>(members.length * 2);
+            for (int i = 0; i < members.length; i++)
+                indexed.put(members[i].name, i);
+            positions = Map.copyOf(indexed);
+        }
+
+        /**
+         * Сообщает номер участника в снимке.
+         * @param name имя участника или {@code ничто}.
+         * @return номер или {@code -1}, если такого участника в снимке нет.
+         */
+        int indexOf(String name) {
+            Integer position = name == null ? null : positions.get(name);
+            return position == null ? -1 : position;
+        }
+    }
+
 
     /**
      * Сервер, работающий с Диспетчером.
@@ -28,10 +81,73 @@ public class Dispatcher {
      * Реестр зарегистрированных участников беседы в виде карты "имя-соединение".
      */
     private final Map<String, Connection> users;
+    /**
+     * Снимок реестра для рассылки; пересобирается при каждом изменении реестра,
+     * так что рассылка очередного сообщения ничего не выделяет и не ищет в карте.
+     */
+    private volatile Snapshot roster = Snapshot.EMPTY;
     /**
      * Логировщик Сервера, протоколирующий события в этом Диспетчере.
      */
     private final Logger logger;
+    /**
+     * Реестр сеансов участников, позволяющий возобновлять их после обрыва связи.
+     */
+    private final Sessions sessions;
+    /**
+     * Почтовые ящики частных сообщений для участников, которые не в сети.
+     */
+    private final Inboxes inboxes;
+    /**
+     * Версионированный состав участников для выдачи клиентам изменений вместо полного списка.
+     */
+    private final PresenceLog presence;
+    /**
+     * Упорядоченный указатель имён из реестра для поиска и дополнения по началу имени.
+     */
+    private final NameIndex names;
+    /**
+     * Полнотекстовый указатель переправленных сообщений.
+     */
+    private final SearchIndex search;
+    /**
+     * Исполнитель, рассылающий одно сообщение многим получателям параллельно.
+     */
+    private final FanOut fanOut;
+    /**
+     * Отсылка общего сообщения участнику из снимка; одна на весь Диспетчер, чтобы рассылка
+     * не создавала замыкания на каждое сообщение.
+     */
+    private final FanOut.Action<Member, Message> toMember;
+    /**
+     * Отсылка общего сообщения участнику из снимка, если тот не игнорирует отправителя с данным номером.
+     */
+    private final FanOut.Action<Member, Message> toListener;
+    /**
+     * Списки игнорируемых и заглушённые беседы участников.
+     */
+    private final Ignores ignores;
+    /**
+     * Сводка уведомлений о входе, уходе и смене имени участников.
+     */
+    private final PresenceNotices notices;
+    /**
+     * Сколько имён перечислять в сводке каждого рода событий.
+     */
+    private static final int SUMMARY_NAMES = 10;
+    /**
+     * Сколько подходящих имён перечислять, когда начало имени адресата неоднозначно.
+     */
+    private static final int COMPLETION_CANDIDATES = 5;
+    /**
+     * Сквозной счётчик принятых текстовых сообщений, из которого им присваиваются порядковые номера.
+     */
+    private final MessageSequence sequence;
+    /**
+     * Длительность рассылки одного сообщения всем получателям в микросекундах:
+     * от передачи его Диспетчеру до записи последнему адресату.
+     */
+    private final LatencyHistogram fanOutTime = new LatencyHistogram();
 
     /**
      * Инициализирует новый Диспетчер с пустым списком участников.
@@ -41,6 +157,20 @@ public class Dispatcher {
         this.host = host;
         users = new ConcurrentHashMap<>();
         logger = host.logger;
+        sessions = host.sessions;
+        inboxes = host.inboxes;
+        presence = host.presence;
+        names = host.names;
+        search = host.search;
+        fanOut = host.fanOut;
+        ignores = host.ignores;
+        notices = host.notices;
+        sequence = host.sequence;
+        toMember = (member, message, sender) -> send(message, member);
+        toListener = (member, message, sender) -> {
+            if (!ignores.hides(member.id, sender, true))
+                send(message, member);
+        };
     }
 
 
@@ -49,7 +179,9 @@ public class Dispatcher {
      */
     /**
      * Фиксирует в реестре связь данного имени с данным соединением, если имя и соединение существуют,
-     * и такое имя на текущий момент не зафиксировано в списке актуальных.
+     * и такое имя на текущий момент не зафиксировано в списке актуальных и не закреплено
+     * за приостановленным сеансом.
+     * Если для этого имени в почтовом ящике копились частные сообщения, они высылаются одним пакетом.
      * @param userName   регистрируемое имя.
      * @param connection регистрируемое соединение.
      * @return  {@code ложно}, если предлагаемое имя уже зарегистрировано или не является допустимым
@@ -58,32 +190,55 @@ public class Dispatcher {
     public boolean addUser(String userName, Connection connection) {
         if (!Message.isAcceptableName(userName)
                 || connection == null || connection.isClosed()
-                || users.containsKey(userName)) {
+                || users.containsKey(userName)
+                || sessions.isReserved(userName)) {
             logger.logEvent(REGISTRATION_REJECTED.formatted(userName, connection));
             return false;
         }
         users.put(userName, connection);
+        ignores.register(userName);
+        refreshRoster();
+        names.add(userName);
         logger.logEvent(REGISTRATION_SUCCESS.formatted(userName, connection));
+        deliverMail(userName);
         return true;
     }
 
     /**
-     * Возвращает набор всех актуальных пользователей.
-     * @return набор подключённых в настоящий момент участников.
+     * Возобновляет сеанс участника на новом соединении, если предъявленный токен действителен
+     * для указанного имени. Участнику возвращается его имя и одним пакетом высылается всё
+     * пропущенное за время разрыва; остальным участникам ни об уходе, ни о возвращении не сообщается.
+     * Если прежнее соединение участника ещё числится в реестре, оно закрывается.
+     * @param userName   имя, под которым участник просит возобновления.
+     * @param token      предъявленный токен возобновления.
+     * @param connection новое соединение участника.
+     * @return {@code истинно}, если сеанс возобновлён.
      */
-    public Set<String> getUsers() {
-        return new HashSet<>(users.keySet());
+    public boolean resumeUser(String userName, String token, Connection connection) {
+        if (connection == null || connection.isClosed()) return false;
+        List<Message> missed = sessions.resume(userName, token);
+        if (missed == null) {
+            logger.logEvent(RESUME_REJECTED.formatted(userName, connection));
+            return false;
+        }
+        Connection previous = users.put(userName, connection);
+        ignores.register(userName);
+        refreshRoster();
+        names.add(userName);
+        if (previous != null && previous != connection)
+            previous.closeSocket();
+        logger.logEvent(RESUME_SUCCESS.formatted(userName, connection, missed.size()));
+        send(Message.batch(SESSION_RESUMED.formatted(missed.size()), missed, userName));
+        return true;
     }
 
     /**
-     * Возвращает набор актуальных участников за исключением одного указанного.
-     * @param aUser  участник, которого не нужно упоминать.
-     * @return набор актуальных участников кроме одного.
+     * Пересобирает снимок реестра для рассылки. Вызывается после каждого изменения реестра;
+     * пересборки идут по очереди, и каждая читает реестр уже после своего изменения,
+     * так что последний снимок отражает последнее состояние.
      */
-    public Set<String> getUsersBut(String aUser) {
-        return getUsers().stream()
-                .filter(x -> !x.equals(aUser))
-                .collect(Collectors.toSet());
+    private synchronized void refreshRoster() {
+        roster = users.isEmpty() ? Snapshot.EMPTY : new Snapshot(users, ignores);
     }
 
     /**
@@ -114,22 +269,47 @@ public class Dispatcher {
         Методы отсылки или рассылки сообщений участникам.
      */
     /**
-     * Отсылает данное сообщение участнику с данным именем. Поле адресата оставляет неизменным.
+     * Отсылает данное сообщение участнику с данным именем в конверте на его имя;
+     * само сообщение (и поле адресата в нём) не меняется.
      * Логирует только события, но не сообщения. В конечном итоге все сообщения отправляются
      * из Диспетчера через этот метод, который уже обращается к исходящему потоку нужного соединения.
      * @param message  данное сообщение.
      * @param username данное имя участника.
+     * @return {@code истинно}, если сообщение передано в соединение участника.
      */
-    private void send(Message message, String username) {
-        Connection channel = users.get(username);
+    private boolean send(Message message, String username) {
+        return send(message, username, users.get(username));
+    }
+
+    /**
+     * Отсылает данное сообщение участнику из снимка реестра, не обращаясь к реестру.
+     * @param message данное сообщение.
+     * @param member  участник из снимка.
+     */
+    private void send(Message message, Member member) {
+        send(message, member.name, member.connection);
+    }
+
+    /**
+     * Отсылает данное сообщение участнику через указанное соединение.
+     * Если соединение недоступно, а участник всё ещё зарегистрирован именно на нём, отключает его;
+     * если участник уже снят с реестра или переподключился (рассылка шла по устаревшему снимку),
+     * только протоколирует ошибку.
+     * @param message  данное сообщение.
+     * @param username имя участника.
+     * @param channel  соединение участника или {@code ничто}, если его нет.
+     * @return {@code истинно}, если сообщение передано в соединение.
+     */
+    private boolean send(Message message, String username, Connection channel) {
         String error = null;
         if (channel != null) {
             try {
-                channel.sendMessage(message);
+                channel.sendMessage(message, username);
             } catch (SocketException e) {
                 error = "Соединение с участником %s не доступно: %s".formatted(username, e.getMessage());
                 e.printStackTrace();
-                goodbyeUser(username);
+                if (users.get(username) == channel)
+                    goodbyeUser(username);
             } catch (IOException e) {
                 error = "Сообщение участнику %s не отправилось: %s".formatted(username, e.getMessage());
                 e.printStackTrace();
@@ -137,11 +317,28 @@ public class Dispatcher {
         } else {
             error = "Сообщение не может быть отправлено: участник %s не подключён.".formatted(username);
         }
-        if (error != null) {
+        if (error == null) return true;
+        System.out.println(error);
+        logger.logEvent(error);
+        return false;
+    }
+
+    /**
+     * Ставит служебное сообщение в исходящую очередь участника, не дожидаясь записи.
+     * Само сообщение не логируется. Непригодное соединение только протоколируется:
+     * его участника снимет пульс или поток чтения.
+     * @param message  служебное сообщение.
+     * @param username имя участника.
+     * @param channel  соединение участника.
+     */
+    private void sendLater(Message message, String username, Connection channel) {
+        try {
+            channel.sendLater(message, username);
+        } catch (IOException e) {
+            String error = "Сообщение участнику %s не отправилось: %s".formatted(username, e.getMessage());
             System.out.println(error);
             logger.logEvent(error);
         }
-
     }
 
     /**
@@ -172,41 +369,168 @@ public class Dispatcher {
     /**
      * Если сообщение публичное, рассылает его всем актуальным участникам, кроме его отправителя.
      * Если сообщение частное, отправляет его адресату.
-     * Логирует сообщение как пересланное.
+     * Получатели, игнорирующие отправителя (а для публичного – и заглушившие беседу), пропускаются
+     * до записи в их соединения, так что на них не тратится ни сериализация, ни запись в сокет.
+     * Логирует сообщение как пересланное и учитывает длительность рассылки.
+     * Публичное сообщение попадает в поисковый указатель сразу, а частное – только если оно отослано
+     * адресату или сохранено для него: отброшенное частное сообщение не должно находиться поиском.
      * @param message транслируемое сообщение.
      */
     private void forward(Message message) {
         if (!message.isTransferable()) return;
+        if (message.getAddressee() != null && message.getAddressee().endsWith("*")) {
+            // дополненное имя звёздочкой не оканчивается, так что повторного дополнения не будет
+            Message completed = completeAddressee(message);
+            if (completed != null) forward(completed);
+            return;
+        }
+        long start = System.nanoTime();
         logger.logTransferred(message);
-        if (message.getAddressee() == null)
-            getUsersBut(message.getSender())
-                    .forEach(user -> send(message, user));
-        else
-            send(message, false);
+        String sender = message.getSender();
+        String addressee = message.getAddressee();
+        if (addressee == null) {
+            search.add(message);
+            Snapshot current = roster;
+            int position = current.indexOf(sender);
+            int senderId = position < 0 ? ignores.idOf(sender) : current.members[position].id;
+            fanOut.deliver(current.members, position, message, senderId, toListener);
+            keepForSuspended(message, name -> !name.equals(sender) && !ignores.hides(name, sender, true));
+        } else if (ignores.hides(addressee, sender, false)) {
+            logger.logEvent(IGNORED_DROPPED.formatted(sender, addressee));
+        } else {
+            boolean kept = sessions.isReserved(addressee) && sessions.keepFor(packed(message), addressee);
+            if (!kept)
+                kept = users.containsKey(addressee) ? send(message, addressee) : keepOffline(message);
+            if (kept) search.add(message);
+        }
+        fanOutTime.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * Подтверждает отправителю приём сообщения и отсеивает повторы: сообщение с номером,
+     * уже поступавшим от этого отправителя, подтверждается, но повторно не рассылается.
+     * Сообщения без номера не подтверждаются и не отсеиваются. Подтверждения не логируются.
+     * @param message принятое текстовое сообщение.
+     * @return {@code истинно}, если сообщение нужно переправить.
+     */
+    private boolean acknowledge(Message message) {
+        if (message.getId() == 0) return true;
+        boolean fresh = sessions.firstSeen(message.getSender(), message.getId());
+        send(Message.ack(message.getId(), message.getSender()), false);
+        if (!fresh)
+            logger.logEvent(DUPLICATE_DROPPED.formatted(message.getId(), message.getSender()));
+        return fresh;
+    }
+
+    /**
+     * Дополняет начало имени адресата, заданное в виде {@code @начало*}, до полного имени.
+     * Если дополнение невозможно или неоднозначно, сообщает об этом отправителю.
+     * @param message частное сообщение с началом имени адресата.
+     * @return то же сообщение с полным именем адресата либо {@code ничто}, если дополнить не удалось.
+     */
+    private Message completeAddressee(Message message) {
+        String addressee = message.getAddressee();
+        String prefix = addressee.substring(0, addressee.length() - 1);
+        List<String> found = names.complete(prefix, COMPLETION_CANDIDATES);
+        if (found.size() == 1)
+            return message.readdressed(found.get(0));
+        send(Message.fromServer(found.isEmpty() ?
+                COMPLETION_NONE.formatted(prefix) :
+                COMPLETION_AMBIGUOUS.formatted(prefix, String.join(", ", found)), message.getSender()));
+        return null;
+    }
+
+    /**
+     * Заносит общее сообщение в журналы пропущенного приостановленных сеансов,
+     * упаковывая его один раз на всех и только если такие сеансы есть.
+     * @param message    общее сообщение.
+     * @param recipients каким участникам сообщение предназначено.
+     */
+    private void keepForSuspended(Message message, Predicate<String> recipients) {
+        if (sessions.hasSuspended())
+            sessions.keepForAll(packed(message), recipients);
+    }
+
+    /**
+     * Упаковывает сообщение для долгого хранения, беря имя отправителя из реестра,
+     * чтобы все хранимые сообщения одного автора ссылались на одну строку.
+     * @param message упаковываемое сообщение.
+     * @return упакованное сообщение.
+     */
+    private PackedMessage packed(Message message) {
+        return PackedMessage.pack(message, name -> {
+            Snapshot current = roster;
+            int position = current.indexOf(name);
+            return position < 0 ? name : current.members[position].name;
+        });
+    }
+
+    /**
+     * Сохраняет частное сообщение для участника, который не в сети, в его почтовый ящик
+     * и сообщает отправителю, будет ли оно доставлено.
+     * @param message частное сообщение.
+     * @return {@code истинно}, если сообщение сохранено.
+     */
+    private boolean keepOffline(Message message) {
+        String addressee = message.getAddressee();
+        String sender = message.getSender();
+        if (!Message.isAcceptableName(addressee)) {
+            send(Message.fromServer(NOT_DELIVERABLE.formatted(addressee), sender));
+            return false;
+        }
+        Inboxes.Outcome outcome = inboxes.store(packed(message));
+        String notice = switch (outcome) {
+            case STORED -> INBOX_STORED;
+            case FULL -> INBOX_FULL;
+            case FAILED -> INBOX_FAILED;
+            case REFUSED -> INBOX_REFUSED;
+        };
+        logger.logEvent(notice.formatted(addressee));
+        send(Message.fromServer(notice.formatted(addressee), sender));
+        return outcome == Inboxes.Outcome.STORED;
+    }
+
+    /**
+     * Высылает зарегистрировавшемуся участнику одним пакетом всё, что копилось в его почтовом ящике.
+     * @param userName имя участника.
+     */
+    private void deliverMail(String userName) {
+        try {
+            List<Message> mail = inboxes.collect(userName);
+            if (!mail.isEmpty())
+                send(Message.batch(INBOX_DELIVERED.formatted(mail.size()), mail, userName));
+        } catch (IOException e) {
+            String error = "Не удалось прочитать почтовый ящик %s: %s".formatted(userName, e.getMessage());
+            System.out.println(error);
+            logger.logEvent(error);
+        }
     }
 
     /**
      * Отсылает данное (серверное) сообщение всем актуальным участникам,
-     * при этом явно добавляя в него указание получателя.
+     * вкладывая одно и то же сообщение в конверт на имя каждого.
      * Логирует сообщение как одну общую рассылку.
      * @param message данное сообщение.
      */
     private void broadcast(Message message) {
         logger.logOutbound(message);
-        getUsers().forEach(user -> send(message.setAddressee(user), false));
+        fanOut.deliver(roster.members, -1, message, -1, toMember);
+        keepForSuspended(message, name -> true);
     }
 
     /**
      * Отсылает всем, кроме одного специфицированного, участникам одно сообщение (логируя его как общее,
-     * но явно проставляя получателей), а специфицированному участнику – другое сообщение.
+     * и вкладывая в конверты на имя каждого получателя), а специфицированному участнику – другое сообщение.
      * @param generalMessage сообщение, которое отсылается всем, кроме одного.
      * @param exclusiveOne   имя пользователя, получающего эксклюзивное сообщение.
-     * @param specialMessage специальное сообщение для специфицированного получателя.
+     * @param specialMessage специальное сообщение для специфицированного получателя, адресованное ему.
      */
     private void castWithExclusive(Message generalMessage, String exclusiveOne, Message specialMessage) {
         logger.logOutbound(generalMessage);
-        getUsersBut(exclusiveOne).forEach(user -> send(generalMessage.setAddressee(user), false));
-        send(specialMessage.setAddressee(exclusiveOne));
+        Snapshot current = roster;
+        fanOut.deliver(current.members, current.indexOf(exclusiveOne), generalMessage, -1, toMember);
+        keepForSuspended(generalMessage, name -> !name.equals(exclusiveOne));
+        send(specialMessage);
     }
 
     /*
@@ -222,30 +546,141 @@ public class Dispatcher {
     public void operateOn(Message gotMessage, Connection source) {
         String sender = gotMessage.getSender();
         switch (gotMessage.getType()) {
-            case TXT_MSG, PRIVATE_MSG -> forward(gotMessage);
-            case LIST_REQUEST -> sendUserList(sender);
+            case TXT_MSG, PRIVATE_MSG -> {
+                if (acknowledge(gotMessage))
+                    forward(gotMessage.sequenced(sequence.next(), System.currentTimeMillis()));
+            }
+            case LIST_REQUEST -> sendUserList(sender, gotMessage.getMessage());
+            case SEARCH_REQUEST -> sendSearchResults(sender, gotMessage.getMessage());
+            case STATS_REQUEST -> send(Message.fromServer(statistics(), sender));
+            case IGNORE_REQUEST -> ignore(sender, gotMessage.getMessage());
+            case MUTE_REQUEST -> send(Message.fromServer(ignores.toggleMute(sender) ? MUTE_ON : MUTE_OFF, sender));
             case REG_REQUEST -> changeName(sender, source);
             case EXIT_REQUEST -> goodbyeUser(sender);
             case SHUT_REQUEST -> source.getShut();
+            case PONG -> { }    // ответ на проверочный сигнал уже учтён Соединением при чтении
         }
     }
 
     /**
-     * Рассылает всем участникам уведомление о завершении работы
-     * и отключает их всех.
+     * Рассылает всем участникам стоп-сигнал с уведомлением о завершении работы,
+     * не закрывая пока соединений. Стоп-сигналы только ставятся в исходящие очереди,
+     * так что медленный клиент не задерживает остановку; доставляет их ограниченное
+     * по времени опустошение очередей.
+     */
+    public void announceClosing() {
+        users.forEach((username, connection) -> {
+            Message stopSign = Message.stopSign(CLOSING_TXT, username);
+            sendLater(stopSign, username, connection);
+            logger.logOutbound(stopSign);
+        });
+    }
+
+    /**
+     * Закрывает соединения всех участников и очищает реестр.
+     * Предполагается, что уведомление о завершении уже разослано {@link #announceClosing()}.
+     * Реестр очищается до закрытия сокетов, чтобы их потоки не приняли закрытие за обрыв связи.
+     * Сеансы участников, получивших уведомление, закрываются, чтобы после перезапуска их имена
+     * не оставались закреплены; приостановленные сеансы сохраняются.
      */
     public void closeSession() {
-        getUsers().forEach(username -> disconnect(username, CLOSING_TXT));
+        Set<Connection> connections = new HashSet<>(users.values());
+        users.keySet().forEach(sessions::close);
+        users.clear();
+        refreshRoster();
+        names.clear();
+        ignores.clear();
+        connections.forEach(Connection::closeSocket);
+    }
+
+    /**
+     * Возвращает в состав сеансы, восстановленные после перезапуска сервера: они приостановлены,
+     * имена закреплены за ними, а пропущенное копится, пока участники не возобновят их.
+     * Вызывается до начала приёма подключений.
+     * @return сколько сеансов ожидает возобновления.
+     */
+    public int restoreSessions() {
+        List<String> restored = sessions.suspendAll();
+        restored.forEach(presence::joined);
+        return restored.size();
+    }
+
+    /**
+     * Проверка пульса: закрывает сеансы, не возобновлённые в отведённый срок (уведомляя
+     * участников об уходе их владельцев), приостанавливает сеансы участников, не ответивших
+     * на указанное число сигналов подряд, а остальным засчитывает и рассылает очередной
+     * проверочный сигнал. Сигналы только ставятся в исходящие очереди, так что участник,
+     * запись которому зависла, не задерживает проверку остальных. Сигналы не логируются.
+     * @param missLimit допустимое число пропущенных подряд ответов.
+     */
+    public void checkPulse(int missLimit) {
+        for (String expired : sessions.expire()) {
+            logger.logEvent(SESSION_EXPIRED.formatted(expired));
+            ignores.release(expired);
+            announceLeaving(expired);
+        }
+        users.forEach((username, connection) -> {
+            if (connection.getMissedBeats() >= missLimit) {
+                logger.logEvent(PEER_SILENT.formatted(username, missLimit));
+                suspendUser(username, connection);
+            } else {
+                connection.countBeat();
+                sendLater(Message.ping(), username, connection);
+            }
+        });
     }
 
     /**
-     * Уведомляет всех подключённых участников о подключении нового.
-     * А новоподключённому высылает привет и инструкцию.
+     * Обрабатывает обрыв связи, обнаруженный Соединением при чтении:
+     * сеанс зарегистрированного участника приостанавливает,
+     * незарегистрированное соединение просто закрывает.
+     * @param connection оборвавшееся соединение.
+     */
+    public void connectionLost(Connection connection) {
+        String username = getUserForConnection(connection);
+        if (username == null) {
+            connection.closeSocket();
+            return;
+        }
+        logger.logEvent(CONNECTION_LOST.formatted(username));
+        suspendUser(username, connection);
+    }
+
+    /**
+     * Снимает участника, связь с которым потеряна, с реестра и закрывает его соединение
+     * (через исходящую очередь, не дольше срока закрытия, если запись в него зависла), а его сеанс приостанавливает в ожидании возобновления, ничего не сообщая остальным.
+     * Если сеанс приостановить нельзя (ожидание отключено настройками), участник
+     * отключается окончательно с уведомлением остальных.
+     * @param username   имя участника.
+     * @param connection соединение, с которым потеряна связь.
+     */
+    private void suspendUser(String username, Connection connection) {
+        if (!users.remove(username, connection)) return;
+        refreshRoster();
+        names.remove(username);
+        connection.sendAndClose(null, username);
+        if (sessions.suspend(username)) {
+            logger.logEvent(SESSION_SUSPENDED.formatted(username));
+        } else {
+            ignores.release(username);
+            announceLeaving(username);
+        }
+    }
+
+    /**
+     * Уведомляет всех подключённых участников о подключении нового (или вносит его в сводку
+     * уведомлений, если окно сводки открыто). А новоподключённому высылает привет и инструкцию.
      * @param greeted новозарегистрированное имя.
      */
     public void greetUser(String greeted) {
-        castWithExclusive(Message.fromServer(ENTER_USER.formatted(greeted)), greeted,
-                Message.fromServer(welcomeText(greeted)));
+        presence.joined(greeted);
+        Message welcome = Message.fromServer(welcomeText(greeted), greeted);
+        if (notices.joined(greeted, this::announceSummary))
+            send(welcome);
+        else
+            castWithExclusive(Message.fromServer(ENTER_USER.formatted(greeted)), greeted, welcome);
+        // токен не логируется
+        send(Message.session(sessions.open(greeted), greeted), false);
     }
 
     /**
@@ -254,10 +689,33 @@ public class Dispatcher {
      * @param username имя участника, покидающего чат.
      */
     public void goodbyeUser(String username) {
-        if (disconnect(username, CONNECTION_CLOSING))
+        sessions.close(username);
+        if (disconnect(username, CONNECTION_CLOSING)) {
+            ignores.release(username);
+            announceLeaving(username);
+        }
+    }
+
+    /**
+     * Отмечает окончательный уход участника в составе и уведомляет об этом остальных
+     * (или вносит уход в сводку уведомлений, если окно сводки открыто).
+     * @param username имя ушедшего.
+     */
+    private void announceLeaving(String username) {
+        presence.left(username);
+        if (!notices.left(username, this::announceSummary))
             broadcast(Message.fromServer(USER_LEAVING.formatted(username)));
     }
 
+    /**
+     * Рассылает всем сводку событий состава, накопившихся за окно; пустая сводка не рассылается.
+     */
+    private void announceSummary() {
+        PresenceNotices.Summary summary = notices.take();
+        if (!summary.isEmpty())
+            broadcast(Message.fromServer(summaryText(summary)));
+    }
+
     /**
      * Меняет, если это возможно, регистрированное имя для соединения,
      * с которого пришёл такой запрос. Если по какой-то причине это не получается,
@@ -269,41 +727,121 @@ public class Dispatcher {
         String oldName = getUserForConnection(connection);
         if (addUser(newName, connection)) {
             users.remove(oldName);
-            broadcast(Message.fromServer(CHANGE_SUCCESS.formatted(oldName, newName)));
+            ignores.rename(oldName, newName);
+            refreshRoster();
+            names.remove(oldName);
+            sessions.rename(oldName, newName);
+            presence.renamed(oldName, newName);
+            if (!notices.renamed(oldName, newName, this::announceSummary))
+                broadcast(Message.fromServer(CHANGE_SUCCESS.formatted(oldName, newName)));
         } else {
             send(Message.fromServer(CHANGE_FAILED.formatted(newName), oldName));
         }
     }
 
     /**
-     * Отключает указанного участника от беседы: закрывает ассоциированное с ним соединение
-     * и удаляет его из реестра участников.
+     * Отключает указанного участника от беседы: удаляет его из реестра участников,
+     * отсылает ему стоп-сигнал и закрывает ассоциированное с ним соединение. Закрытие идёт через
+     * исходящую очередь: стоп-сигнал обгоняет неотосланную беседу и не теряется при закрытии сокета.
+     * Участник удаляется из реестра прежде всего остального, поэтому ошибка записи
+     * в уже оборванное соединение не приводит к повторному отключению.
      * @param username имя участника, покидающего чат.
      * @param farewell текст прощального сообщения отключаемому.
      * @return {@code истинно}, если такой участник был найден и теперь отключён.
      */
     private boolean disconnect(String username, String farewell) {
-        try {
-            send(Message.stopSign(farewell, username));
-            getConnectionForUser(username).close();
-            users.remove(username);
-            return true;
-        } catch (Exception e) {
+        Connection connection = username == null ? null : users.get(username);
+        if (connection == null || !users.remove(username, connection)) {
             String error = DISCONNECT_FAILED.formatted(username);
             System.out.println(error);
             logger.logEvent(error);
-            e.printStackTrace();
             return false;
         }
+        refreshRoster();
+        names.remove(username);
+        Message stopSign = Message.stopSign(farewell, username);
+        connection.sendAndClose(stopSign, username);
+        logger.logOutbound(stopSign);
+        return true;
     }
 
     /**
-     * Отсылает и логирует серверное сообщение со сведениями о подключённых
-     * в текущий момент участниках тому, кто запросил этот список.
+     * Отвечает на запрос списка участников. Запрос без параметров или с числом (известной клиенту
+     * версией состава) получает сведения о составе: изменения после этой версии, либо полный снимок,
+     * если версия не указана или слишком стара. Запрос с началом имени (имена начинаются с буквы,
+     * так что с числом оно не спутается) и, возможно, номером страницы получает соответствующую
+     * страницу имён из указателя.
      * @param requesting участник, запросивший список.
+     * @param parameters параметры запроса в текстовом виде или {@code ничто}.
+     */
+    private void sendUserList(String requesting, String parameters) {
+        String query = parameters == null ? "" : parameters.strip();
+        if (query.isEmpty() || !Character.isLetter(query.charAt(0))) {
+            long known;
+            try {
+                known = query.isEmpty() ? -1 : Long.parseLong(query);
+            } catch (NumberFormatException e) {
+                known = -1;
+            }
+            send(Message.presence(presence.since(known), requesting));
+            return;
+        }
+        String[] words = query.split("\\s+");
+        int page = 1;
+        if (words.length > 1) {
+            try {
+                page = Math.max(1, Integer.parseInt(words[words.length - 1]));
+            } catch (NumberFormatException ignored) {
+                // номер страницы не указан – первая страница
+            }
+        }
+        send(Message.fromServer(namesPage(words[0], page), requesting));
+    }
+
+
+    /**
+     * Отсылает запросившему сообщения беседы, содержащие все слова запроса, от новых к старым.
+     * Частные сообщения попадают в выдачу, только если запросивший – их отправитель или адресат.
+     * @param requesting участник, запросивший поиск.
+     * @param query      слова запроса.
+     */
+    private void sendSearchResults(String requesting, String query) {
+        String text;
+        try {
+            List<SearchIndex.Doc> found = search.find(requesting, query == null ? "" : query);
+            text = found.isEmpty() ? SEARCH_NOTHING.formatted(query) :
+                    SEARCH_FOUND.formatted(query, found.size(),
+                            found.stream().map(SearchIndex.Doc::toString).collect(Collectors.joining("\n")));
+        } catch (IOException e) {
+            String error = "Поиск по запросу «%s» не удался: %s".formatted(query, e.getMessage());
+            System.out.println(error);
+            logger.logEvent(error);
+            e.printStackTrace();
+            text = SEARCH_FAILED.formatted(query);
+        }
+        send(Message.fromServer(text, requesting));
+    }
+
+    /**
+     * Включает или выключает игнорирование участника запросившим, а без имени –
+     * сообщает запросившему, кого он игнорирует.
+     * @param requesting участник, приславший запрос.
+     * @param target     имя игнорируемого или {@code ничто}.
      */
-    private void sendUserList(String requesting) {
-        send(Message.fromServer(getUserListing(), requesting));
+    private void ignore(String requesting, String target) {
+        String text;
+        if (target == null || target.isBlank()) {
+            List<String> ignored = ignores.ignoredBy(requesting);
+            text = ignored.isEmpty() ? IGNORE_NOBODY : IGNORE_LIST.formatted(String.join(", ", ignored));
+        } else if (target.equals(requesting)) {
+            text = IGNORE_SELF;
+        } else if (ignores.idOf(target) < 0 || ignores.idOf(requesting) < 0) {
+            text = IGNORE_UNKNOWN.formatted(target);
+        } else {
+            text = ignores.toggleIgnore(requesting, target) ?
+                    IGNORE_ON.formatted(target, target) : IGNORE_OFF.formatted(target);
+        }
+        send(Message.fromServer(text, requesting));
     }
 
 
@@ -313,21 +851,70 @@ public class Dispatcher {
 
     /**
      * Выдаёт текстовой блок для приветствия новоподключённого, в котором сообщает адрес сервера,
-     * список подключённых к комнате и перечень доступных команд (кроме команды остановки сервера).
+     * число подключённых к комнате и перечень доступных команд (кроме команды остановки сервера).
+     * Сам список участников не приводится: клиент получает его по запросу и дальше поддерживает
+     * у себя, запрашивая только изменения.
      * @param greeted новоподкючённый.
      * @return  форматированный текстовой блок-приветствие.
      */
     private String welcomeText(String greeted) {
-        return WELCOME_TEXT.formatted(greeted, host.HOST, host.PORT, getUserListing());
+        return WELCOME_TEXT.formatted(greeted, host.HOST, host.PORT, presence.size());
     }
+
+    /**
+     * Выдаёт текстовой блок статистики сервера: сколько сообщений принято, сколько участников
+     * в сети, загрузку обоймы соединений и обоймы буферов, перцентили длительности рассылки, состояние
+     * поискового указателя, списков игнорируемых, сводки уведомлений о составе и журнала состояния.
+     * @return  форматированный текстовой блок статистики.
+     */
+    public String statistics() {
+        return SERVER_STATS.formatted(sequence.current(), users.size(), host.connections, host.buffers,
+                host.writes, fanOutTime.summary("мкс"), search, ignores, notices, host.state);
+    }
+
+    /**
+     * Выдаёт текст сводки событий состава за окно: сколько участников вошло, ушло и сменило имя,
+     * с перечнем не более {@code SUMMARY_NAMES} имён каждого рода.
+     * @param summary итог окна.
+     * @return текст сводки.
+     */
+    private String summaryText(PresenceNotices.Summary summary) {
+        List<String> parts = new ArrayList<>(3);
+        if (!summary.joined.isEmpty())
+            parts.add(SUMMARY_JOINED.formatted(summary.joined.size(), listed(summary.joined)));
+        if (!summary.left.isEmpty())
+            parts.add(SUMMARY_LEFT.formatted(summary.left.size(), listed(summary.left)));
+        if (!summary.renamed.isEmpty())
+            parts.add(SUMMARY_RENAMED.formatted(summary.renamed.size(), listed(summary.renamed.entrySet().stream()
+                    .map(entry -> entry.getKey() + " → " + entry.getValue()).toList())));
+        return PRESENCE_SUMMARY.formatted(String.join("; ", parts));
+    }
+
+    /**
+     * Перечисляет через запятую не более {@code SUMMARY_NAMES} элементов, упоминая число остальных.
+     * @param items элементы.
+     * @return перечень.
+     */
+    private static String listed(List<String> items) {
+        if (items.size() <= SUMMARY_NAMES)
+            return String.join(", ", items);
+        return String.join(", ", items.subList(0, SUMMARY_NAMES)) + SUMMARY_MORE.formatted(items.size() - SUMMARY_NAMES);
+    }
+
     /**
-     * Выдаёт текстовое представление реестра зарегистрированных пользователей.
-     * @return текстовой блок о количестве участников и их именах.
+     * Выдаёт текст страницы имён, начинающихся на данную строку, с подсказкой,
+     * как запросить следующую страницу, если она есть.
+     * @param prefix начало имени.
+     * @param page   номер страницы, начиная с 1.
+     * @return текстовой блок со страницей имён.
      */
-    private String getUserListing() {
-        return getUsers().stream()
-                .collect(Collectors.joining(
-                        "\n", "Подключено участников: %d:\n".formatted(getUsers().size()), ""));
+    private String namesPage(String prefix, int page) {
+        List<String> found = names.page(prefix, page);
+        if (found.isEmpty())
+            return USERS_NOT_FOUND.formatted(prefix, page);
+        boolean more = found.size() > names.getPageSize();
+        String listing = String.join("\n", more ? found.subList(0, found.size() - 1) : found);
+        return USERS_FOUND.formatted(prefix, page, listing) + (more ? USERS_MORE.formatted(prefix, page + 1) : "");
     }
 
 
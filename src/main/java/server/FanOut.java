@@ -0,0 +1,219 @@
+package server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Исполнитель рассылки одного сообщения многим получателям. Список получателей делится
+ * на куски, которые параллельно обходят потоки постоянной обоймы (первый кусок – сам
+ * вызывающий поток), и вызывающий дожидается окончания всей рассылки. Поэтому следующее
+ * сообщение того же отправителя начинает рассылаться только после предыдущего, и порядок
+ * сообщений у каждого получателя сохраняется, а запись одному получателю по-прежнему
+ * не пересекается с другими благодаря замку его Соединения.
+ * <p>
+ * Куски не распределяются заранее: вызывающий поток и потоки обоймы разбирают их по очереди
+ * из одного общего на всю рассылку задания, так что рассылка порождает один объект,
+ * а не задачу и её результат на каждый кусок.
+ * <p>
+ * Небольшие рассылки (не длиннее куска) обходятся на месте, без передачи в обойму.
+ * Так же на месте обходятся рассылки, начатые из потока самой обоймы (например, уведомление
+ * об уходе участника, с которым оборвалась связь во время записи), чтобы обойма не ждала сама себя.
+ */
+public class FanOut implements AutoCloseable {
+    /**
+     * Сколько миллисекунд при остановке ждать окончания начатых рассылок.
+     */
+    private static final long CLOSE_TIMEOUT = 500;
+
+    /**
+     * Отсылка одного сообщения одному получателю. Передаётся в рассылку готовым экземпляром,
+     * а сообщение и номер отправителя – отдельными аргументами, чтобы на каждое сообщение
+     * не создавалось нового замыкания.
+     * @param <T> тип описания получателя.
+     * @param <M> тип сообщения.
+     */
+    @FunctionalInterface
+    public interface Action<T, M> {
+        /**
+         * Отсылает сообщение одному получателю.
+         * @param recipient получатель.
+         * @param message   сообщение.
+         * @param sender    номер отправителя, переданный в рассылку.
+         */
+        void send(T recipient, M message, int sender);
+    }
+
+    /**
+     * Одна рассылка: получатели, сообщение и счётчики кусков. Один и тот же экземпляр
+     * передаётся в обойму несколько раз; каждый исполнитель берёт ещё не взятые куски,
+     * пока они не кончатся, а последний закончивший кусок будит ждущего вызывающего.
+     */
+    private static final class Round<T, M> implements Runnable {
+        final T[] recipients;
+        final int skip;
+        final M message;
+        final int sender;
+        final Action<? super T, ? super M> action;
+        final int chunk;
+        final int chunks;
+        final Thread caller = Thread.currentThread();
+        /**
+         * Номер следующего не взятого куска.
+         */
+        final AtomicInteger next = new AtomicInteger();
+        /**
+         * Число обойдённых кусков.
+         */
+        final AtomicInteger finished = new AtomicInteger();
+
+        Round(T[] recipients, int skip, M message, int sender, Action<? super T, ? super M> action, int chunk) {
+            this.recipients = recipients;
+            this.skip = skip;
+            this.message = message;
+            this.sender = sender;
+            this.action = action;
+            this.chunk = chunk;
+            chunks = (recipients.length + chunk - 1) / chunk;
+        }
+
+        @Override
+        public void run() {
+            for (int taken = next.getAndIncrement(); taken < chunks; taken = next.getAndIncrement()) {
+                int from = taken * chunk;
+                try {
+                    walk(recipients, from, Math.min(recipients.length, from + chunk), skip, message, sender, action);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (finished.incrementAndGet() == chunks) LockSupport.unpark(caller);
+                }
+            }
+        }
+
+        /**
+         * Ждёт, пока будут обойдены все куски, в том числе взятые потоками обоймы.
+         */
+        void await() {
+            boolean interrupted = false;
+            while (finished.get() < chunks) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) interrupted = true;
+            }
+            if (interrupted) caller.interrupt();
+        }
+    }
+
+    /**
+     * Поток обоймы рассылки; по классу потока узнаётся, что рассылка начата изнутри обоймы.
+     */
+    private static class Worker extends Thread {
+        Worker(Runnable task, String name) {
+            super(task, name);
+            setDaemon(true);
+        }
+    }
+
+    /**
+     * Постоянная обойма потоков, обходящих куски списков получателей.
+     */
+    private final ThreadPoolExecutor pool;
+    /**
+     * Наибольшее число получателей в одном куске.
+     */
+    private volatile int chunkSize;
+
+    /**
+     * Создаёт исполнитель рассылки с обоймой указанного размера.
+     * @param poolSize  число потоков обоймы.
+     * @param chunkSize наибольшее число получателей в одном куске.
+     */
+    public FanOut(int poolSize, int chunkSize) {
+        AtomicInteger counter = new AtomicInteger();
+        int size = Math.max(1, poolSize);
+        pool = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                task -> new Worker(task, "fan-out-" + counter.incrementAndGet()));
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Меняет размер обоймы и куска на ходу.
+     * @param poolSize  число потоков обоймы.
+     * @param chunkSize наибольшее число получателей в одном куске.
+     */
+    public void setLimits(int poolSize, int chunkSize) {
+        int size = Math.max(1, poolSize);
+        // при уменьшении сначала ядро, при увеличении сначала максимум – иначе обойма отвергнет размер
+        if (size < pool.getCorePoolSize()) {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        } else {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        }
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * Отсылает сообщение каждому получателю, кроме одного пропускаемого,
+     * и возвращается, когда отосланы все. Массив получателей не копируется,
+     * поэтому вызывающий не должен менять его во время рассылки.
+     * Ошибки отсылки одному получателю не прерывают рассылку остальным:
+     * действие само должно их обрабатывать.
+     * @param recipients получатели.
+     * @param skip       номер пропускаемого получателя в массиве или {@code -1}.
+     * @param message    рассылаемое сообщение.
+     * @param sender     номер отправителя, передаваемый действию.
+     * @param action     отсылка одному получателю.
+     * @param <T>        тип описания получателя.
+     * @param <M>        тип сообщения.
+     */
+    public <T, M> void deliver(T[] recipients, int skip, M message, int sender, Action<? super T, ? super M> action) {
+        int chunk = chunkSize;
+        if (recipients.length <= chunk || Thread.currentThread() instanceof Worker || pool.isShutdown()) {
+            walk(recipients, 0, recipients.length, skip, message, sender, action);
+            return;
+        }
+        Round<T, M> round = new Round<>(recipients, skip, message, sender, action, chunk);
+        int helpers = Math.min(round.chunks - 1, pool.getMaximumPoolSize());
+        try {
+            for (int i = 0; i < helpers; i++)
+                pool.execute(round);
+        } catch (RejectedExecutionException e) {
+            // обойма останавливается: непринятые куски разберёт вызывающий поток
+        }
+        round.run();
+        round.await();
+    }
+
+    public int getPoolSize() {
+        return pool.getCorePoolSize();
+    }
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Останавливает обойму, дав начатым рассылкам недолго закончиться.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+                pool.shutdownNow();
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T, M> void walk(T[] recipients, int from, int to, int skip,
+                                    M message, int sender, Action<? super T, ? super M> action) {
+        for (int i = from; i < to; i++)
+            if (i != skip) action.send(recipients[i], message, sender);
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Пульс сервера: с заданным интервалом поручает Диспетчеру разослать участникам
+ * проверочные сигналы и отключить тех, кто пропустил слишком много ответов подряд.
+ * Так выявляются клиенты, пропавшие без закрытия соединения (уснувший ноутбук,
+ * истёкшая трансляция адресов), которые иначе оставались бы в реестре навсегда.
+ */
+public class Heartbeat {
+    /**
+     * Диспетчер, рассылающий сигналы и отключающий молчащих участников.
+     */
+    private final Dispatcher dispatcher;
+    /**
+     * Поток, отсчитывающий интервалы.
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Текущее расписание рассылки сигналов.
+     */
+    private ScheduledFuture<?> beating;
+    /**
+     * Сколько сигналов подряд участник может оставить без ответа, прежде чем будет отключён.
+     */
+    private volatile int missLimit;
+
+    /**
+     * Создаёт и запускает пульс для указанного Диспетчера.
+     * @param dispatcher Диспетчер сервера.
+     * @param interval   интервал между сигналами в миллисекундах.
+     * @param missLimit  допустимое число пропущенных подряд ответов.
+     */
+    public Heartbeat(Dispatcher dispatcher, long interval, int missLimit) {
+        this.dispatcher = dispatcher;
+        setRate(interval, missLimit);
+    }
+
+    /**
+     * Меняет интервал и допустимое число пропусков на ходу, перезапуская расписание.
+     * @param interval  интервал между сигналами в миллисекундах.
+     * @param missLimit допустимое число пропущенных подряд ответов.
+     */
+    public synchronized void setRate(long interval, int missLimit) {
+        if (timer.isShutdown()) return;
+        this.missLimit = Math.max(1, missLimit);
+        if (beating != null)
+            beating.cancel(false);
+        long period = Math.max(100, interval);
+        beating = timer.scheduleAtFixedRate(this::beat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Останавливает пульс.
+     */
+    public synchronized void stop() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Одно биение: проверка участников и рассылка сигналов.
+     * Ошибка не должна останавливать расписание, поэтому здесь перехватывается.
+     */
+    private void beat() {
+        try {
+            dispatcher.checkPulse(missLimit);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Списки игнорируемых и заглушённые беседы участников. Каждому участнику, пока он в сети
+ * или его сеанс приостановлен, присваивается плотный номер – наименьший свободный, так что
+ * номера занимают отрезок от нуля до числа участников. Список игнорируемых участника хранится
+ * битовым множеством по этим номерам, а заглушившие общую беседу отмечены в одном общем
+ * множестве; поэтому при рассылке проверка получателя – это проверка одного-двух битов.
+ * <p>
+ * Множества неизменяемы после публикации: изменение (редкое, по команде участника) собирает
+ * новое множество и новый массив множеств, так что рассылка читает их без блокировок.
+ */
+public class Ignores {
+    /**
+     * Пустое множество для тех, кто никого не игнорирует.
+     */
+    private static final BitSet NOBODY = new BitSet();
+
+    /**
+     * Номера участников по именам.
+     */
+    private final Map<String, Integer> ids = new HashMap<>();
+    /**
+     * Имена участников по номерам; у свободного номера {@code ничто}.
+     */
+    private final List<String> holders = new ArrayList<>();
+    /**
+     * Освободившиеся номера, раздаваемые заново прежде новых.
+     */
+    private final BitSet free = new BitSet();
+    /**
+     * Списки игнорируемых по номеру участника: множество номеров тех, чьих сообщений он не получает.
+     */
+    private volatile BitSet[] ignoring = new BitSet[0];
+    /**
+     * Номера участников, заглушивших общую беседу.
+     */
+    private volatile BitSet muted = new BitSet();
+    /**
+     * Сколько доставок не состоялось из-за игнорирования или заглушения.
+     */
+    private final LongAdder withheld = new LongAdder();
+
+    /**
+     * Присваивает участнику номер, если у него ещё нет номера.
+     * @param name имя участника.
+     * @return номер участника.
+     */
+    public synchronized int register(String name) {
+        Integer known = ids.get(name);
+        if (known != null) return known;
+        int id = free.nextSetBit(0);
+        if (id < 0) {
+            id = holders.size();
+            holders.add(name);
+            BitSet[] grown = Arrays.copyOf(ignoring, id + 1);
+            grown[id] = NOBODY;
+            ignoring = grown;
+        } else {
+            free.clear(id);
+            holders.set(id, name);
+        }
+        ids.put(name, id);
+        return id;
+    }
+
+    /**
+     * Освобождает номер окончательно ушедшего участника: его список игнорируемых забывается,
+     * а сам он вычёркивается из чужих списков, чтобы номер достался следующему чистым.
+     * @param name имя участника.
+     */
+    public synchronized void release(String name) {
+        Integer id = name == null ? null : ids.remove(name);
+        if (id == null) return;
+        holders.set(id, null);
+        free.set(id);
+        BitSet[] changed = ignoring.clone();
+        changed[id] = NOBODY;
+        for (int i = 0; i < changed.length; i++) {
+            if (changed[i].get(id)) {
+                BitSet without = (BitSet) changed[i].clone();
+                without.clear(id);
+                changed[i] = without;
+            }
+        }
+        ignoring = changed;
+        if (muted.get(id)) muted = flipped(muted, id);
+    }
+
+    /**
+     * Переносит номер участника на его новое имя, так что списки игнорируемых следуют за ним.
+     * Номер, уже присвоенный новому имени при его регистрации, освобождается.
+     * @param oldName прежнее имя.
+     * @param newName новое имя.
+     */
+    public synchronized void rename(String oldName, String newName) {
+        Integer id = oldName == null ? null : ids.get(oldName);
+        if (id == null) return;
+        release(newName);
+        ids.remove(oldName);
+        ids.put(newName, id);
+        holders.set(id, newName);
+    }
+
+    /**
+     * Забывает всех участников.
+     */
+    public synchronized void clear() {
+        ids.clear();
+        holders.clear();
+        free.clear();
+        ignoring = new BitSet[0];
+        muted = new BitSet();
+    }
+
+    /**
+     * Сообщает номер участника.
+     * @param name имя участника или {@code ничто}.
+     * @return номер либо {@code -1}, если у участника номера нет.
+     */
+    public synchronized int idOf(String name) {
+        Integer id = name == null ? null : ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Включает или выключает игнорирование одного участника другим.
+     * @param who  кто игнорирует.
+     * @param whom кого игнорирует.
+     * @return {@code истинно}, если теперь игнорирует, {@code ложно}, если перестал.
+     * @throws IllegalArgumentException если у кого-то из них нет номера.
+     */
+    public synchronized boolean toggleIgnore(String who, String whom) {
+        int id = idOf(who), target = idOf(whom);
+        if (id < 0 || target < 0)
+            throw new IllegalArgumentException("Участник без номера: " + (id < 0 ? who : whom));
+        BitSet[] changed = ignoring.clone();
+        changed[id] = flipped(changed[id], target);
+        ignoring = changed;
+        return changed[id].get(target);
+    }
+
+    /**
+     * Включает или выключает заглушение общей беседы для участника.
+     * @param who участник.
+     * @return {@code истинно}, если теперь беседа заглушена.
+     * @throws IllegalArgumentException если у участника нет номера.
+     */
+    public synchronized boolean toggleMute(String who) {
+        int id = idOf(who);
+        if (id < 0) throw new IllegalArgumentException("Участник без номера: " + who);
+        muted = flipped(muted, id);
+        return muted.get(id);
+    }
+
+    /**
+     * Перечисляет тех, кого игнорирует участник.
+     * @param who участник.
+     * @return имена игнорируемых.
+     */
+    public synchronized List<String> ignoredBy(String who) {
+        int id = idOf(who);
+        List<String> listed = new ArrayList<>();
+        if (id < 0) return listed;
+        BitSet set = ignoring[id];
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1))
+            listed.add(holders.get(i));
+        return listed;
+    }
+
+    /**
+     * Проверяет, не должен ли получатель получить сообщение отправителя, и учитывает несостоявшуюся
+     * доставку. Блокировок не берёт: вызывается на каждого получателя при рассылке.
+     * @param recipient номер получателя.
+     * @param sender    номер отправителя или {@code -1}, если его нет.
+     * @param common    общее ли сообщение (только такие глушит заглушение беседы).
+     * @return {@code истинно}, если сообщение получателю не доставляется.
+     */
+    public boolean hides(int recipient, int sender, boolean common) {
+        if (recipient < 0) return false;
+        BitSet[] current = ignoring;
+        boolean hidden = common && muted.get(recipient)
+                || sender >= 0 && recipient < current.length && current[recipient].get(sender);
+        if (hidden) withheld.increment();
+        return hidden;
+    }
+
+    /**
+     * То же, что {@link #hides(int, int, boolean)}, по именам – для редких проверок вне рассылки.
+     * @param recipient имя получателя.
+     * @param sender    имя отправителя.
+     * @param common    общее ли сообщение.
+     * @return {@code истинно}, если сообщение получателю не доставляется.
+     */
+    public boolean hides(String recipient, String sender, boolean common) {
+        return hides(idOf(recipient), idOf(sender), common);
+    }
+
+    /**
+     * Копирует множество с одним изменённым битом.
+     * @param set исходное множество.
+     * @param bit номер бита.
+     * @return новое множество.
+     */
+    private static BitSet flipped(BitSet set, int bit) {
+        BitSet copy = (BitSet) set.clone();
+        copy.flip(bit);
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int ignoringCount = 0;
+        for (BitSet set : ignoring)
+            if (!set.isEmpty()) ignoringCount++;
+        return "номеров: %d, игнорирующих: %d, заглушивших беседу: %d, не доставлено: %d"
+                .formatted(ids.size(), ignoringCount, muted.cardinality(), withheld.sum());
+    }
+}
@@ -0,0 +1,564 @@
+package server;
+
+import common.Message;
+import common.PackedMessage;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+/**
+ * Почтовые ящики для частных сообщений участникам, которые не в сети.
+ * Ящик ограничен числом сообщений и их суммарным объёмом. Первые сообщения ящика
+ * хранятся в памяти, а когда их становится много, следующие дописываются в конец
+ * файла ящика, так что и поиск ящика, и сохранение в него стоят O(1) на сообщение.
+ * В памяти сообщения хранятся в упакованном виде {@link PackedMessage}.
+ * Число ящиков тоже ограничено, так что нельзя завести файлов без счёта, пиша несуществующим адресатам,
+ * а ящик, в который дольше срока хранения ничего не клали, выбрасывается, чтобы выдуманные имена
+ * не занимали места навсегда: просроченные ящики ищутся, когда места под новый ящик нет
+ * (не чаще раза в {@code SWEEP_INTERVAL}), и при восстановлении.
+ * <p>
+ * Общий замок набора держится только на учёт: место под сообщение резервируется под ним,
+ * а дописывание в файл идёт под замком одного ящика через канал, открытый при первом сбросе
+ * и закрываемый при выдаче ящика, так что медленный диск не задерживает сохранение другим адресатам.
+ * Содержимое ящика выдаётся целиком, когда его владелец регистрируется.
+ * <p>
+ * Ящики переживают перезапуск сервера ({@link StateJournal}): сохранение и выдача
+ * записываются в журнал состояния. Файлы ящиков и так лежат на диске, поэтому
+ * для сброшенного в файл сообщения в журнал попадает лишь отметка о нём, и только после
+ * того, как оно дописано. Файлы, оставшиеся без ящика, удаляются при восстановлении ({@link #reconcile()}).
+ */
+public class Inboxes implements StateJournal.Part, AutoCloseable {
+    /**
+     * Результат попытки сохранить сообщение.
+     */
+    public enum Outcome {
+        /**
+         * сообщение сохранено
+         */
+        STORED,
+        /**
+         * ящик переполнен, сообщение не сохранено
+         */
+        FULL,
+        /**
+         * сообщение не удалось сохранить из-за ошибки записи
+         */
+        FAILED,
+        /**
+         * у адресата нет ящика, а заводить новый нельзя: ящиков слишком много
+         */
+        REFUSED
+    }
+
+    /**
+     * Ящик одного участника.
+     */
+    private static class Inbox {
+        /**
+         * Сообщения, хранимые в памяти (самые ранние), в упакованном виде.
+         */
+        final ArrayDeque<PackedMessage> held = new ArrayDeque<>();
+        /**
+         * Число сообщений в ящике, включая сброшенные в файл.
+         */
+        int count;
+        /**
+         * Оценка суммарного объёма сообщений ящика в байтах.
+         */
+        long bytes;
+        /**
+         * Сбрасывались ли сообщения ящика в файл.
+         */
+        boolean spilled;
+        /**
+         * Сколько сообщений, место под которые уже учтено, ещё дописываются в файл.
+         */
+        int appending;
+        /**
+         * Объём дописываемых сообщений в байтах.
+         */
+        long appendingBytes;
+        /**
+         * Открытый на дописывание файл ящика либо {@code ничто}; используется под замком ящика.
+         */
+        FileChannel file;
+        /**
+         * Когда (мс от эпохи) в ящик последний раз положено сообщение.
+         */
+        long touched;
+    }
+
+    /**
+     * Каталог для файлов ящиков.
+     */
+    private final Path directory;
+    /**
+     * Роды записей журнала состояния.
+     */
+    private static final byte STORE = 1, COLLECT = 2;
+    /**
+     * Окончание имён файлов ящиков.
+     */
+    private static final String SUFFIX = ".inbox";
+    /**
+     * Не чаще чем раз в столько миллисекунд ищутся просроченные ящики, когда места под новый нет.
+     */
+    private static final long SWEEP_INTERVAL = 60_000;
+
+    /**
+     * Ящики по именам адресатов.
+     */
+    private final Map<String, Inbox> inboxes = new HashMap<>();
+    /**
+     * Наибольшее число ящиков.
+     */
+    private int boxesLimit;
+    /**
+     * Срок хранения ящика в миллисекундах с последнего положенного в него сообщения.
+     */
+    private long ttl;
+    /**
+     * Раньше какого момента (мс от эпохи) искать просроченные ящики незачем.
+     */
+    private long nextSweep;
+    /**
+     * Наибольшее число сообщений в ящике.
+     */
+    private int countLimit;
+    /**
+     * Наибольший суммарный объём сообщений ящика в байтах.
+     */
+    private long bytesLimit;
+    /**
+     * Сколько сообщений ящика держать в памяти, прежде чем сбрасывать следующие в файл.
+     */
+    private int memoryLimit;
+    /**
+     * Журнал состояния, в который записываются изменения ящиков, либо {@code ничто}.
+     */
+    private StateJournal journal;
+
+    /**
+     * Создаёт пустой набор ящиков.
+     * @param directory   каталог для файлов ящиков (создаётся при первой необходимости).
+     * @param boxesLimit  наибольшее число ящиков.
+     * @param ttl         срок хранения ящика в миллисекундах с последнего положенного в него сообщения.
+     * @param countLimit  наибольшее число сообщений в ящике.
+     * @param bytesLimit  наибольший объём сообщений ящика в байтах.
+     * @param memoryLimit сколько сообщений ящика держать в памяти.
+     */
+    public Inboxes(Path directory, int boxesLimit, long ttl, int countLimit, long bytesLimit, int memoryLimit) {
+        this.directory = directory;
+        setLimits(boxesLimit, ttl, countLimit, bytesLimit, memoryLimit);
+    }
+
+    /**
+     * Меняет ограничения на ходу. Уже сохранённые сообщения и заведённые ящики не затрагиваются.
+     * @param boxesLimit  наибольшее число ящиков.
+     * @param ttl         срок хранения ящика в миллисекундах с последнего положенного в него сообщения.
+     * @param countLimit  наибольшее число сообщений в ящике.
+     * @param bytesLimit  наибольший объём сообщений ящика в байтах.
+     * @param memoryLimit сколько сообщений ящика держать в памяти.
+     */
+    public synchronized void setLimits(int boxesLimit, long ttl, int countLimit, long bytesLimit, int memoryLimit) {
+        this.boxesLimit = Math.max(0, boxesLimit);
+        this.ttl = Math.max(0, ttl);
+        nextSweep = 0;
+        this.countLimit = Math.max(0, countLimit);
+        this.bytesLimit = Math.max(0, bytesLimit);
+        this.memoryLimit = Math.max(0, memoryLimit);
+    }
+
+    /**
+     * Сохраняет частное сообщение в ящик его адресата. Ящик заводится, только если их
+     * меньше предела (если нет, сначала выбрасываются просроченные). Сообщение, не уместившееся в памяти, дописывается в файл ящика
+     * уже вне общего замка.
+     * @param message частное сообщение для отсутствующего участника.
+     * @return сохранено ли сообщение, и если нет, то почему.
+     */
+    public Outcome store(PackedMessage message) {
+        String addressee = message.getAddressee();
+        long size = sizeOf(message);
+        long now = System.currentTimeMillis();
+        Inbox inbox;
+        synchronized (this) {
+            inbox = inboxes.get(addressee);
+            if (inbox == null) {
+                if (inboxes.size() >= boxesLimit) expire(now);
+                if (inboxes.size() >= boxesLimit) return Outcome.REFUSED;
+                inbox = new Inbox();
+                inboxes.put(addressee, inbox);
+            }
+            if (inbox.count >= countLimit || inbox.bytes + size > bytesLimit) {
+                if (inbox.count == 0) inboxes.remove(addressee);
+                return Outcome.FULL;
+            }
+            inbox.count++;
+            inbox.bytes += size;
+            inbox.touched = Math.max(inbox.touched, now);
+            if (!inbox.spilled && inbox.held.size() < memoryLimit) {
+                inbox.held.add(message);
+                recordStore(true, now, message);
+                return Outcome.STORED;
+            }
+            inbox.spilled = true;
+            inbox.appending++;
+            inbox.appendingBytes += size;
+        }
+        boolean written = append(addressee, inbox, message);
+        synchronized (this) {
+            if (written) {
+                recordStore(false, now, message);
+            } else {
+                inbox.count--;
+                inbox.bytes -= size;
+                if (inbox.count == 0) {
+                    inboxes.remove(addressee);
+                    discardFile(addressee, inbox);
+                }
+            }
+            inbox.appending--;
+            inbox.appendingBytes -= size;
+            if (inbox.appending == 0) notifyAll();
+        }
+        return written ? Outcome.STORED : Outcome.FAILED;
+    }
+
+    /**
+     * Извлекает всё содержимое ящика участника в порядке поступления, опустошая ящик.
+     * Если в ящик как раз дописываются сообщения, сначала дожидается их.
+     * @param name имя участника.
+     * @return сохранённые для него сообщения (возможно, ни одного).
+     * @throws IOException если сброшенную в файл часть ящика прочитать не удалось
+     * или ожидание прервано; ящик в этом случае остаётся нетронутым.
+     */
+    public synchronized List<Message> collect(String name) throws IOException {
+        Inbox inbox;
+        while ((inbox = inboxes.get(name)) != null && inbox.appending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Ожидание дописывания ящика прервано");
+            }
+        }
+        if (inbox == null) return List.of();
+        List<Message> collected = new ArrayList<>(inbox.count);
+        for (PackedMessage packed : inbox.held)
+            collected.add(packed.unpack());
+        if (inbox.spilled) {
+            closeFile(inbox);
+            Path file = fileFor(name);
+            collected.addAll(read(file));
+            Files.deleteIfExists(file);
+        }
+        inboxes.remove(name);
+        if (journal != null)
+            journal.record(this, out -> {
+                out.writeByte(COLLECT);
+                out.writeUTF(name);
+            });
+        return collected;
+    }
+
+    /**
+     * Сверяет восстановленные ящики с файлами на диске. Удаляет файлы, которым не соответствует
+     * ни один ящик со сброшенными сообщениями (остатки ящиков, выданных перед аварийной
+     * остановкой, или неудавшихся сбросов), а ящик, чей файл пропал, сводит к сообщениям в памяти.
+     * Заодно выбрасывает ящики, срок хранения которых истёк, пока сервер не работал.
+     * Вызывается после восстановления состояния, до приёма подключений.
+     * @return сколько файлов удалено.
+     * @throws IOException если каталог ящиков не удалось просмотреть.
+     */
+    public synchronized int reconcile() throws IOException {
+        expire(System.currentTimeMillis());
+        Set<String> expected = new HashSet<>();
+        for (Iterator<Map.Entry<String, Inbox>> entries = inboxes.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<String, Inbox> entry = entries.next();
+            Inbox inbox = entry.getValue();
+            if (inbox.spilled) {
+                Path file = fileFor(entry.getKey());
+                if (Files.exists(file)) {
+                    expected.add(file.getFileName().toString());
+                    continue;
+                }
+                inbox.spilled = false;
+                inbox.count = inbox.held.size();
+                inbox.bytes = 0;
+                for (PackedMessage message : inbox.held)
+                    inbox.bytes += sizeOf(message);
+            }
+            if (inbox.count == 0) entries.remove();
+        }
+        if (!Files.isDirectory(directory)) return 0;
+        int removed = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files)
+                if (!expected.contains(file.getFileName().toString()) && Files.deleteIfExists(file))
+                    removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Закрывает открытые файлы ящиков; сами файлы остаются на диске.
+     */
+    @Override
+    public synchronized void close() {
+        for (Inbox inbox : inboxes.values())
+            closeFile(inbox);
+    }
+
+    /*
+        Сохранение состояния.
+     */
+    @Override
+    public byte tag() {
+        return 3;
+    }
+
+    @Override
+    public void journalTo(StateJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public void save(DataOutputStream out) throws IOException {
+        out.writeInt(inboxes.size());
+        for (Map.Entry<String, Inbox> entry : inboxes.entrySet()) {
+            Inbox inbox = entry.getValue();
+            out.writeUTF(entry.getKey());
+            // дописываемые сообщения попадут в журнал после снимка и будут учтены при воспроизведении
+            out.writeInt(inbox.count - inbox.appending);
+            out.writeLong(inbox.bytes - inbox.appendingBytes);
+            out.writeBoolean(inbox.spilled);
+            out.writeLong(inbox.touched);
+            out.writeInt(inbox.held.size());
+            for (PackedMessage message : inbox.held)
+                message.writeTo(out);
+        }
+    }
+
+    @Override
+    public void load(DataInputStream in) throws IOException {
+        inboxes.clear();
+        for (int count = in.readInt(); count > 0; count--) {
+            Inbox inbox = new Inbox();
+            inboxes.put(in.readUTF().intern(), inbox);
+            inbox.count = in.readInt();
+            inbox.bytes = in.readLong();
+            inbox.spilled = in.readBoolean();
+            inbox.touched = in.readLong();
+            for (int held = in.readInt(); held > 0; held--)
+                inbox.held.add(PackedMessage.readFrom(in, String::intern));
+        }
+    }
+
+    /**
+     * Воспроизводит запись журнала. Сброшенное в файл сообщение уже лежит в файле ящика,
+     * так что учитываются лишь его число и объём.
+     * @param in тело записи.
+     * @throws IOException при ошибке чтения.
+     */
+    @Override
+    public void replay(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case STORE -> {
+                boolean held = in.readBoolean();
+                long time = in.readLong();
+                PackedMessage message = PackedMessage.readFrom(in, String::intern);
+                Inbox inbox = inboxes.computeIfAbsent(message.getAddressee().intern(), name -> new Inbox());
+                inbox.touched = Math.max(inbox.touched, time);
+                if (held)
+                    inbox.held.add(message);
+                else
+                    inbox.spilled = true;
+                inbox.count++;
+                inbox.bytes += sizeOf(message);
+            }
+            case COLLECT -> inboxes.remove(in.readUTF());
+            default -> throw new IOException("Неизвестная запись журнала почтовых ящиков");
+        }
+    }
+
+    /*
+        Внутренние вспомогательные методы.
+     */
+    /**
+     * Записывает в журнал сохранение сообщения.
+     * @param held    осталось ли сообщение в памяти (иначе оно уже дописано в файл).
+     * @param time    момент сохранения (мс от эпохи).
+     * @param message сообщение.
+     */
+    private void recordStore(boolean held, long time, PackedMessage message) {
+        if (journal != null)
+            journal.record(this, out -> {
+                out.writeByte(STORE);
+                out.writeBoolean(held);
+                out.writeLong(time);
+                message.writeTo(out);
+            });
+    }
+
+    /**
+     * Выбрасывает ящики, в которые дольше срока хранения ничего не клали, вместе с их файлами.
+     * Ящики, в которые как раз дописываются сообщения, не трогаются. Пока не наступил
+     * {@link #nextSweep}, ничего не делает. Вызывается под замком набора.
+     * @param now текущий момент (мс от эпохи).
+     * @return сколько ящиков выброшено.
+     */
+    private int expire(long now) {
+        if (now < nextSweep) return 0;
+        int removed = 0;
+        long earliest = Long.MAX_VALUE;
+        for (Iterator<Map.Entry<String, Inbox>> entries = inboxes.entrySet().iterator(); entries.hasNext(); ) {
+            Map.Entry<String, Inbox> entry = entries.next();
+            Inbox inbox = entry.getValue();
+            long deadline = inbox.touched > Long.MAX_VALUE - ttl ? Long.MAX_VALUE : inbox.touched + ttl;
+            if (deadline > now || inbox.appending > 0) {
+                earliest = Math.min(earliest, deadline);
+                continue;
+            }
+            String name = entry.getKey();
+            entries.remove();
+            if (inbox.spilled) discardFile(name, inbox);
+            if (journal != null)
+                journal.record(this, out -> {
+                    out.writeByte(COLLECT);
+                    out.writeUTF(name);
+                });
+            removed++;
+        }
+        nextSweep = Math.max(earliest, now + SWEEP_INTERVAL);
+        return removed;
+    }
+
+    /**
+     * Оценивает объём сообщения для учёта в ограничении ящика.
+     * @param message упакованное сообщение.
+     * @return примерный объём в байтах: упакованные поля и имя отправителя.
+     */
+    private static long sizeOf(PackedMessage message) {
+        return message.size() + 2L * message.getSender().length();
+    }
+
+    /**
+     * Путь к файлу ящика участника.
+     * @param name имя участника.
+     * @return путь к файлу.
+     */
+    private Path fileFor(String name) {
+        return directory.resolve(URLEncoder.encode(name, StandardCharsets.UTF_8) + SUFFIX);
+    }
+
+    /**
+     * Дописывает сообщение в конец файла ящика под замком этого ящика, открывая файл при первом сбросе.
+     * Сообщение записывается так же, как в журнал ({@link PackedMessage#writeTo}), со всеми
+     * номерами и отметками времени. Если запись не удалась, отрезает её недописанный остаток,
+     * чтобы не испортить файл.
+     * @param addressee имя адресата.
+     * @param inbox     ящик адресата.
+     * @param message   сообщение.
+     * @return {@code истинно}, если сообщение дописано.
+     */
+    private boolean append(String addressee, Inbox inbox, PackedMessage message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(message.size() + 64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            message.writeTo(out);
+        } catch (IOException e) {
+            return false;
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        synchronized (inbox) {
+            long end = -1;
+            try {
+                if (inbox.file == null) {
+                    Files.createDirectories(directory);
+                    inbox.file = FileChannel.open(fileFor(addressee),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                end = inbox.file.size();
+                while (record.hasRemaining())
+                    inbox.file.write(record);
+                return true;
+            } catch (IOException e) {
+                if (end >= 0) {
+                    try {
+                        inbox.file.truncate(end);
+                    } catch (IOException ignored) {
+                    }
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Закрывает файл ящика, если он открыт.
+     * @param inbox ящик.
+     */
+    private static void closeFile(Inbox inbox) {
+        synchronized (inbox) {
+            if (inbox.file == null) return;
+            try {
+                inbox.file.close();
+            } catch (IOException ignored) {
+            }
+            inbox.file = null;
+        }
+    }
+
+    /**
+     * Закрывает и удаляет файл опустевшего ящика.
+     * @param addressee имя адресата.
+     * @param inbox     ящик.
+     */
+    private void discardFile(String addressee, Inbox inbox) {
+        closeFile(inbox);
+        try {
+            Files.deleteIfExists(fileFor(addressee));
+        } catch (IOException ignored) {
+            // останется сиротой и будет удалён при следующем восстановлении
+        }
+    }
+
+    /**
+     * Читает все сообщения из файла ящика. Оборванная последняя запись (сервер упал посреди
+     * дописывания) отбрасывается.
+     * @param file файл ящика.
+     * @return прочитанные сообщения.
+     * @throws IOException при ошибке чтения.
+     */
+    private static List<Message> read(Path file) throws IOException {
+        List<Message> messages = new ArrayList<>();
+        if (!Files.exists(file)) return messages;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true)
+                messages.add(PackedMessage.readFrom(in, UnaryOperator.identity()).unpack());
+        } catch (EOFException e) {
+            return messages;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Сквозной счётчик принятых текстовых сообщений, из которого им присваиваются порядковые номера.
+ * Номера не повторяются и после перезапуска сервера: счётчик заранее резервирует номера
+ * блоками по {@code BLOCK} и записывает в журнал состояния только границу резерва,
+ * так что журнал пополняется одной записью на блок, а не на каждое сообщение.
+ * После перезапуска счёт продолжается с последней записанной границы; номера, выданные
+ * из недоиспользованного блока, пропадают, но не повторяются.
+ */
+public class MessageSequence implements StateJournal.Part {
+    /**
+     * Сколько номеров резервируется одной записью журнала.
+     */
+    private static final int BLOCK = 1024;
+
+    /**
+     * Последний выданный номер.
+     */
+    private final AtomicLong issued = new AtomicLong();
+    /**
+     * Граница резерва: номера до неё включительно можно выдавать без записи в журнал.
+     */
+    private volatile long reserved;
+    /**
+     * Журнал, в который записываются границы резерва, либо {@code ничто}.
+     */
+    private StateJournal journal;
+
+    /**
+     * Выдаёт очередной номер.
+     * @return номер, больший всех выданных прежде, в том числе до перезапуска.
+     */
+    public long next() {
+        long number = issued.incrementAndGet();
+        if (number > reserved) reserve(number);
+        return number;
+    }
+
+    /**
+     * Сообщает последний выданный номер.
+     * @return последний выданный номер.
+     */
+    public long current() {
+        return issued.get();
+    }
+
+    /**
+     * Отодвигает границу резерва за указанный номер и записывает её в журнал.
+     * @param number номер, который должен оказаться в резерве.
+     */
+    private synchronized void reserve(long number) {
+        if (number <= reserved) return;
+        long bound = (number / BLOCK + 1) * BLOCK;
+        reserved = bound;
+        if (journal != null)
+            journal.record(this, out -> out.writeLong(bound));
+    }
+
+    @Override
+    public byte tag() {
+        return 1;
+    }
+
+    @Override
+    public void journalTo(StateJournal journal) {
+        this.journal = journal;
+    }
+
+    @Override
+    public void save(DataOutputStream out) throws IOException {
+        out.writeLong(reserved);
+    }
+
+    @Override
+    public void load(DataInputStream in) throws IOException {
+        restart(in.readLong());
+    }
+
+    @Override
+    public void replay(DataInputStream in) throws IOException {
+        restart(Math.max(reserved, in.readLong()));
+    }
+
+    /**
+     * Продолжает счёт с восстановленной границы резерва.
+     * @param bound граница резерва.
+     */
+    private void restart(long bound) {
+        reserved = bound;
+        issued.set(bound);
+    }
+}
@@ -0,0 +1,101 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Упорядоченный указатель имён зарегистрированных участников для поиска по началу имени.
+ * Имена, начинающиеся на данную строку, образуют в упорядоченном множестве непрерывный
+ * отрезок, так что его начало находится за O(log n), а страница выдачи – за время,
+ * пропорциональное её номеру и размеру, без перебора всего реестра.
+ */
+public class NameIndex {
+    /**
+     * Символ, заведомо больший любого символа имени: верхняя граница отрезка имён с данным началом.
+     */
+    private static final char PREFIX_END = Character.MAX_VALUE;
+
+    /**
+     * Имена в естественном порядке строк.
+     */
+    private final NavigableSet<String> names = new ConcurrentSkipListSet<>();
+    /**
+     * Сколько имён выдавать на одной странице.
+     */
+    private volatile int pageSize;
+
+    /**
+     * Создаёт пустой указатель.
+     * @param pageSize сколько имён выдавать на одной странице.
+     */
+    public NameIndex(int pageSize) {
+        setPageSize(pageSize);
+    }
+
+    /**
+     * Меняет размер страницы выдачи на ходу.
+     * @param pageSize сколько имён выдавать на одной странице.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = Math.max(1, pageSize);
+    }
+
+    public void add(String name) {
+        names.add(name);
+    }
+    public void remove(String name) {
+        if (name != null) names.remove(name);
+    }
+    public void clear() {
+        names.clear();
+    }
+
+    /**
+     * Выдаёт указанную страницу имён, начинающихся на данную строку, и ещё одно имя сверх неё,
+     * если оно есть, – по нему вызывающий узнаёт, что за этой страницей есть следующая.
+     * @param prefix начало имени.
+     * @param page   номер страницы, начиная с 1.
+     * @return имена страницы (не более {@link #getPageSize()} + 1).
+     */
+    public List<String> page(String prefix, int page) {
+        int size = pageSize;
+        long skip = (long) Math.max(0, page - 1) * size;
+        Iterator<String> matching = withPrefix(prefix).iterator();
+        for (long i = 0; i < skip && matching.hasNext(); i++)
+            matching.next();
+        return take(matching, size + 1);
+    }
+
+    /**
+     * Дополняет начало имени: выдаёт первые по порядку имена, которые с него начинаются.
+     * @param prefix начало имени.
+     * @param limit  наибольшее число выдаваемых имён.
+     * @return подходящие имена (не более {@code limit}).
+     */
+    public List<String> complete(String prefix, int limit) {
+        return take(withPrefix(prefix).iterator(), limit);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Отрезок имён, начинающихся на данную строку.
+     * @param prefix начало имени.
+     * @return живое представление отрезка указателя.
+     */
+    private NavigableSet<String> withPrefix(String prefix) {
+        return names.subSet(prefix, true, prefix + PREFIX_END, false);
+    }
+
+    private static List<String> take(Iterator<String> iterator, int limit) {
+        List<String> taken = new ArrayList<>(Math.min(limit, 16));
+        while (taken.size() < limit && iterator.hasNext())
+            taken.add(iterator.next());
+        return taken;
+    }
+}
@@ -0,0 +1,343 @@
+package server;
+
+import common.Delivery;
+import common.Message;
+import common.MessageOutput;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Исходящая очередь одного Соединения с двумя полосами: срочной – для служебных и серверных
+ * сообщений (стоп-сигналов, запросов пароля, ответов на регистрацию, проверочных сигналов,
+ * подтверждений) – и обычной – для переправляемых текстовых сообщений беседы. Срочная полоса
+ * всегда опустошается первой, так что служебное сообщение не ждёт за тысячами строк беседы,
+ * а обгоняет ещё не отосланные; каждый такой обгон учитывается.
+ * <p>
+ * Отправители лишь ставят сообщение в полосу. Сериализует и отдаёт в сокет тот из них, кто
+ * застал очередь без писателя: он забирает срочные и порцию обычных сообщений, пишет их одной
+ * записью и повторяет, пока очередь не опустеет, а остальные тем временем возвращаются сразу.
+ * Если в {@link WriteCoalescer} задано окно ожидания, обычное сообщение после простоя
+ * отсылается по истечении окна вместе с присоединившимися к нему; срочное не ждёт.
+ * Обычная полоса ограничена: отправитель сверх предела ждёт, пока писатель её не разгрузит.
+ * <p>
+ * Соединение закрывается тоже через очередь ({@link #postAndClose}): прощальный стоп-сигнал
+ * становится в срочную полосу, а сокет закрывает писатель, отослав срочную полосу, – так
+ * стоп-сигнал обгоняет неотосланную беседу, а не пропадает вместе с ней. Если писатель завис
+ * на запись медленному клиенту, соединение закрывается по истечении отведённого срока.
+ */
+public class Outbox {
+    /**
+     * Сколько обычных сообщений писатель берёт за раз, прежде чем снова проверить срочную полосу.
+     */
+    private static final int BULK_BATCH = 64;
+
+    /**
+     * Сообщение в полосе вместе с получателем и порядковым номером постановки.
+     */
+    private static final class Entry {
+        final Delivery delivery;
+        final long order;
+
+        Entry(Delivery delivery, long order) {
+            this.delivery = delivery;
+            this.order = order;
+        }
+    }
+
+    /**
+     * Объектный поток Соединения, в который сериализуются сообщения.
+     */
+    private final MessageOutput output;
+    /**
+     * Служба объединения записей: окно ожидания и учёт.
+     */
+    private final WriteCoalescer coalescer;
+    /**
+     * Сколько обычных сообщений может ждать, пока идёт запись.
+     */
+    private final int bulkLimit;
+    /**
+     * Срочная полоса.
+     */
+    private final ArrayDeque<Entry> urgent = new ArrayDeque<>();
+    /**
+     * Обычная полоса.
+     */
+    private final ArrayDeque<Entry> bulk = new ArrayDeque<>();
+    /**
+     * Сколько сообщений поставлено за всё время; отсюда порядковые номера постановки.
+     */
+    private long posted;
+    /**
+     * Отсылает ли сейчас какой-нибудь поток накопленное.
+     */
+    private boolean writing;
+    /**
+     * Назначена ли отложенная отсылка.
+     */
+    private boolean scheduled;
+    /**
+     * Ошибка, которой закончилась запись; после неё очередь непригодна.
+     */
+    private IOException failure;
+    /**
+     * Закрыта ли очередь.
+     */
+    private boolean closed;
+    /**
+     * Закрытие соединения, назначенное после отсылки срочной полосы, либо {@code ничто}.
+     */
+    private Runnable closing;
+
+    /**
+     * Создаёт пустую очередь над объектным потоком Соединения.
+     * @param output    объектный поток.
+     * @param coalescer служба объединения записей.
+     * @param bulkLimit сколько обычных сообщений может ждать, пока идёт запись.
+     */
+    public Outbox(MessageOutput output, WriteCoalescer coalescer, int bulkLimit) {
+        this.output = output;
+        this.coalescer = coalescer;
+        this.bulkLimit = Math.max(1, bulkLimit);
+    }
+
+    /**
+     * Сообщает, идёт ли сообщение срочной полосой.
+     * @param message сообщение.
+     * @return {@code истинно} для всех сообщений, кроме переправляемых текстовых.
+     */
+    static boolean isUrgent(Message message) {
+        return !message.isTransferable();
+    }
+
+    /**
+     * Ставит сообщение в его полосу и, если очередь без писателя, отсылает накопленное сам.
+     * @param message   сообщение.
+     * @param recipient получатель, на чьё имя вкладывается конверт.
+     * @throws IOException если прежняя запись не удалась, очередь закрыта или запись сейчас не удалась.
+     */
+    public void post(Message message, String recipient) throws IOException {
+        boolean sendNow;
+        synchronized (this) {
+            check();
+            boolean isUrgent = isUrgent(message);
+            (isUrgent ? urgent : bulk).add(new Entry(new Delivery(message, recipient), ++posted));
+            if (!isUrgent) awaitRoom();
+            if (writing) return;
+            if (isUrgent || !coalescer.isDelaying()) {
+                sendNow = true;
+            } else {
+                sendNow = false;
+                if (!scheduled) {
+                    scheduled = true;
+                    coalescer.schedule(this::sendScheduled);
+                }
+            }
+        }
+        if (sendNow) send();
+    }
+
+    /**
+     * Ставит сообщение в его полосу, не становясь писателем: если очередь без писателя,
+     * отсылку выполняет поток службы объединения записей. Так вызывающий (поток пульса,
+     * процедура остановки) не ждёт записи медленному клиенту. Обычная полоса при этом
+     * не ограничивается: метод предназначен для служебных сообщений.
+     * @param message   сообщение.
+     * @param recipient получатель, на чьё имя вкладывается конверт.
+     * @throws IOException если прежняя запись не удалась или очередь закрыта.
+     */
+    public void offer(Message message, String recipient) throws IOException {
+        synchronized (this) {
+            check();
+            (isUrgent(message) ? urgent : bulk).add(new Entry(new Delivery(message, recipient), ++posted));
+            if (writing || scheduled) return;
+            scheduled = true;
+        }
+        coalescer.execute(this::sendScheduled);
+    }
+
+    /**
+     * Ставит в срочную полосу прощальное сообщение и назначает закрытие соединения сразу после
+     * отсылки срочной полосы; обычные сообщения, ещё не отосланные к этому моменту, отбрасываются.
+     * Если очередь без писателя, отсылает и закрывает сам, иначе это сделает писатель.
+     * Если к исходу срока соединение всё ещё не закрыто (писатель завис на записи), оно
+     * закрывается принудительно, что прерывает и зависшую запись.
+     * @param message   прощальное сообщение или {@code ничто}, если только закрыть.
+     * @param recipient получатель, на чьё имя вкладывается конверт.
+     * @param closer    закрытие соединения; по истечении срока может выполниться повторно.
+     * @param timeout   сколько миллисекунд ждать отсылки, прежде чем закрыть принудительно.
+     */
+    public void postAndClose(Message message, String recipient, Runnable closer, long timeout) {
+        synchronized (this) {
+            if (failure != null || closed) {
+                closer.run();
+                return;
+            }
+            if (message != null)
+                urgent.add(new Entry(new Delivery(message, recipient), ++posted));
+            closing = closer;
+            coalescer.deadline(closer, timeout);
+            if (writing) return;
+        }
+        try {
+            send();
+        } catch (IOException ignored) {
+            // соединение закрыто обработчиком ошибки записи
+        }
+    }
+
+    /**
+     * Отсылает накопленное, пока очередь не опустеет: каждый раз все срочные сообщения
+     * и следом порцию обычных. Если запись уже идёт в другом потоке, сразу возвращается:
+     * тот поток отошлёт и накопленное этим. Если назначено закрытие соединения, выполняет
+     * его, как только отослана срочная полоса.
+     * @throws IOException при ошибке записи.
+     */
+    public void send() throws IOException {
+        synchronized (this) {
+            if (writing || closed) return;
+            check();
+            writing = true;
+        }
+        try {
+            while (true) {
+                List<Entry> batch;
+                Runnable closer = null;
+                synchronized (this) {
+                    scheduled = false;
+                    batch = take();
+                    if (batch.isEmpty()) {
+                        writing = false;
+                        if (closing != null) {
+                            closer = closing;
+                            closing = null;
+                            closed = true;
+                            bulk.clear();
+                        }
+                    }
+                    notifyAll();
+                }
+                if (closer != null) closer.run();
+                if (batch.isEmpty()) return;
+                for (Entry entry : batch)
+                    output.write(entry.delivery);
+                output.flush();
+                coalescer.recordFrames(batch.size());
+            }
+        } catch (IOException e) {
+            Runnable closer;
+            synchronized (this) {
+                failure = e;
+                writing = false;
+                urgent.clear();
+                bulk.clear();
+                closer = closing;
+                closing = null;
+                notifyAll();
+            }
+            if (closer != null) closer.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Опустошает очередь: отсылает накопленное сам, если писателя нет, а если запись идёт
+     * в другом потоке, ждёт, пока тот не опустошит обе полосы и не отпустит очередь.
+     * Отложенные окном ожидания сообщения отсылаются, не дожидаясь окна.
+     * @param deadline до какого момента ждать, по {@link System#nanoTime()}.
+     * @return {@code истинно}, если очередь опустела (или закрыта после назначенного закрытия);
+     * {@code ложно}, если срок вышел раньше.
+     * @throws IOException при ошибке записи.
+     */
+    public boolean drain(long deadline) throws IOException {
+        while (true) {
+            send();
+            synchronized (this) {
+                if (failure != null) throw failure;
+                if (closed) return urgent.isEmpty() && bulk.isEmpty();
+                if (!writing) {
+                    if (urgent.isEmpty() && bulk.isEmpty()) return true;
+                    continue;
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) return false;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Закрывает очередь, отбрасывая неотосланное.
+     */
+    public synchronized void close() {
+        closed = true;
+        urgent.clear();
+        bulk.clear();
+        notifyAll();
+    }
+
+    /*
+        Внутренние вспомогательные методы.
+     */
+    /**
+     * Забирает для записи все срочные сообщения и порцию обычных (если не назначено закрытие),
+     * учитывая, сколько срочных обогнали поставленные раньше них обычные.
+     * @return сообщения в порядке записи.
+     */
+    private List<Entry> take() {
+        int bulkTaken = closing != null ? 0 : Math.min(bulk.size(), BULK_BATCH);
+        List<Entry> batch = new ArrayList<>(urgent.size() + bulkTaken);
+        Entry oldestBulk = bulk.peekFirst();
+        for (Entry entry : urgent) {
+            if (oldestBulk != null && oldestBulk.order < entry.order)
+                coalescer.countOvertake();
+            batch.add(entry);
+        }
+        urgent.clear();
+        for (int i = 0; i < bulkTaken; i++)
+            batch.add(bulk.poll());
+        return batch;
+    }
+
+    /**
+     * Ждёт, пока писатель не разгрузит переполненную обычную полосу.
+     * @throws IOException если ожидание прервано или запись не удалась.
+     */
+    private void awaitRoom() throws IOException {
+        try {
+            while (writing && bulk.size() > bulkLimit && failure == null && !closed)
+                wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("Ожидание записи прервано");
+        }
+        check();
+    }
+
+    /**
+     * Отложенная отсылка в потоке службы объединения; ошибка записи запоминается
+     * и достанется следующему отправителю.
+     */
+    private void sendScheduled() {
+        try {
+            send();
+        } catch (IOException ignored) {
+            // запомнена в failure
+        }
+    }
+
+    private void check() throws IOException {
+        if (failure != null) throw failure;
+        if (closed) throw new SocketException("Socket closed");
+    }
+}
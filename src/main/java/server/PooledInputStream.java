@@ -0,0 +1,129 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Входящий поток поверх канала сокета, читающий с упреждением в прямой буфер из обоймы.
+ * Буфер заимствуется только когда сообщение уже в пути и возвращается, как только
+ * прочитанное выбрано до конца. В простое, ожидая первый байт следующего сообщения,
+ * поток читает этот байт без заимствования, так что простаивающее соединение буфера не держит.
+ */
+public class PooledInputStream extends InputStream {
+    /**
+     * Канал, из которого читаются данные.
+     */
+    private final ReadableByteChannel channel;
+    /**
+     * Обойма, из которой берутся буферы.
+     */
+    private final BufferPool pool;
+    /**
+     * Какой ёмкости буфер брать.
+     */
+    private final int bufferSize;
+    /**
+     * Однобайтовый буфер для ожидания начала сообщения.
+     */
+    private final ByteBuffer single = ByteBuffer.allocate(1);
+    /**
+     * Буфер с прочитанными, но ещё не выбранными данными, либо {@code ничто}.
+     */
+    private ByteBuffer buffer;
+
+    /**
+     * Создаёт поток над каналом.
+     * @param channel    канал сокета в блокирующем режиме.
+     * @param pool       обойма буферов.
+     * @param bufferSize ёмкость заимствуемого буфера.
+     */
+    public PooledInputStream(ReadableByteChannel channel, BufferPool pool, int bufferSize) {
+        this.channel = channel;
+        this.pool = pool;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (buffer != null) {
+            int b = buffer.get() & 0xFF;
+            releaseIfDrained();
+            return b;
+        }
+        single.clear();
+        int got = fill(single);
+        return got < 0 ? -1 : single.get(0) & 0xFF;
+    }
+
+    @Override
+    public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (buffer == null) {
+            // крупное чтение идёт сразу в массив вызывающего, мелкое – через буфер с упреждением
+            if (length >= bufferSize)
+                return readDirectly(bytes, offset, length);
+            buffer = pool.acquire(bufferSize);
+            int got;
+            try {
+                got = fill(buffer);
+            } catch (IOException e) {
+                releaseBuffer();
+                throw e;
+            }
+            if (got < 0) {
+                releaseBuffer();
+                return -1;
+            }
+            buffer.flip();
+        }
+        int portion = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, portion);
+        releaseIfDrained();
+        return portion;
+    }
+
+    @Override
+    public synchronized int available() {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    @Override
+    public synchronized void close() {
+        releaseBuffer();
+    }
+
+    private int readDirectly(byte[] bytes, int offset, int length) throws IOException {
+        return fill(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Дожидается из канала хотя бы одного байта. Ошибки канала пробрасываются
+     * как {@link java.net.SocketException}, как их выдавал бы поток самого сокета.
+     * @param target куда читать.
+     * @return число прочитанных байт или {@code -1} в конце потока.
+     * @throws IOException при ошибке чтения.
+     */
+    private int fill(ByteBuffer target) throws IOException {
+        try {
+            int got;
+            do {
+                got = channel.read(target);
+            } while (got == 0);
+            return got;
+        } catch (IOException e) {
+            throw PooledOutputStream.asSocketException(e);
+        }
+    }
+
+    private void releaseIfDrained() {
+        if (!buffer.hasRemaining())
+            releaseBuffer();
+    }
+
+    private void releaseBuffer() {
+        pool.release(buffer);
+        buffer = null;
+    }
+}
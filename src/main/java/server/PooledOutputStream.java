@@ -0,0 +1,150 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Исходящий поток поверх канала сокета, который собирает записываемое в прямых буферах
+ * из обоймы и при сбросе отдаёт каналу все накопленные буферы одной собирающей записью.
+ * Буферы берутся при записи и возвращаются в обойму, как только их содержимое отослано,
+ * так что между сбросами поток буферов не держит, а запись из прямых буферов обходится
+ * без промежуточного копирования в кэш временных буферов пишущего потока.
+ * Сколько системных вызовов понадобилось каждому сбросу, учитывает {@link WriteCoalescer}.
+ */
+public class PooledOutputStream extends OutputStream {
+    /**
+     * Канал, в который пишутся данные.
+     */
+    private final GatheringByteChannel channel;
+    /**
+     * Обойма, из которой берутся буферы.
+     */
+    private final BufferPool pool;
+    /**
+     * Служба объединения записей, ведущая учёт системных вызовов.
+     */
+    private final WriteCoalescer coalescer;
+    /**
+     * Какой ёмкости буфер брать.
+     */
+    private final int bufferSize;
+    /**
+     * Заполненные буферы, ждущие сброса, по порядку.
+     */
+    private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<>();
+    /**
+     * Буфер, в который сейчас пишется, либо {@code ничто}.
+     */
+    private ByteBuffer buffer;
+    /**
+     * Закрыт ли поток.
+     */
+    private boolean closed;
+
+    /**
+     * Создаёт поток над каналом.
+     * @param channel    канал сокета в блокирующем режиме.
+     * @param pool       обойма буферов.
+     * @param coalescer  служба объединения записей.
+     * @param bufferSize ёмкость заимствуемого буфера.
+     */
+    public PooledOutputStream(GatheringByteChannel channel, BufferPool pool, WriteCoalescer coalescer,
+                              int bufferSize) {
+        this.channel = channel;
+        this.pool = pool;
+        this.coalescer = coalescer;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        ensureRoom().put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer target = ensureRoom();
+            int portion = Math.min(length, target.remaining());
+            target.put(bytes, offset, portion);
+            offset += portion;
+            length -= portion;
+        }
+    }
+
+    /**
+     * Отдаёт каналу всё накопленное одной собирающей записью и возвращает буферы в обойму.
+     * Ошибки канала пробрасываются как {@link SocketException}, как их выдавал бы поток
+     * самого сокета, чтобы вызывающие по-прежнему отличали обрыв связи.
+     * @throws IOException при ошибке записи в канал.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (buffer != null && buffer.position() > 0) {
+            queued.add(buffer.flip());
+            buffer = null;
+        }
+        if (queued.isEmpty()) return;
+        ByteBuffer[] batch = queued.toArray(new ByteBuffer[0]);
+        ByteBuffer last = batch[batch.length - 1];
+        int syscalls = 0;
+        try {
+            while (last.hasRemaining()) {
+                channel.write(batch);
+                syscalls++;
+            }
+        } catch (IOException e) {
+            throw asSocketException(e);
+        } finally {
+            coalescer.recordWrites(syscalls);
+            releaseQueued();
+        }
+    }
+
+    /**
+     * Закрывает поток, возвращая буферы в обойму без записи; сам канал закрывается вместе с сокетом.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        releaseQueued();
+        pool.release(buffer);
+        buffer = null;
+    }
+
+    /**
+     * Выдаёт буфер, в котором есть место, при необходимости заимствуя новый
+     * и ставя заполненный в очередь на сброс.
+     * @return буфер для записи.
+     * @throws IOException если поток закрыт.
+     */
+    private ByteBuffer ensureRoom() throws IOException {
+        if (closed) throw new IOException("Поток закрыт");
+        if (buffer != null && !buffer.hasRemaining()) {
+            queued.add(buffer.flip());
+            buffer = null;
+        }
+        if (buffer == null)
+            buffer = pool.acquire(bufferSize);
+        return buffer;
+    }
+
+    private void releaseQueued() {
+        for (ByteBuffer done : queued)
+            pool.release(done);
+        queued.clear();
+    }
+
+    static SocketException asSocketException(IOException e) {
+        if (e instanceof SocketException socketException) return socketException;
+        SocketException translated = new SocketException(e instanceof ClosedChannelException ? "Socket closed" :
+                e.getMessage() != null ? e.getMessage() : e.toString());
+        translated.initCause(e);
+        return translated;
+    }
+}
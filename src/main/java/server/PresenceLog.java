@@ -0,0 +1,127 @@
+package server;
+
+import common.Presence;
+import common.Presence.Change;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Версионированный состав участников беседы. Каждый вход, выход или смена имени
+ * увеличивает версию на единицу и заносится в кольцевой журнал последних изменений.
+ * Клиент, сообщивший известную ему версию, получает только изменения после неё,
+ * а полный снимок – лишь тогда, когда его версия вытеснена из журнала
+ * (или когда снимок оказывается короче перечня изменений).
+ */
+public class PresenceLog {
+    /**
+     * Имена присутствующих участников в алфавитном порядке.
+     */
+    private final Set<String> present = new TreeSet<>();
+    /**
+     * Кольцевой журнал изменений: изменение, приведшее к версии {@code v},
+     * хранится в ячейке {@code v % journal.length}.
+     */
+    private Change[] journal;
+    /**
+     * Сколько последних изменений хранится в журнале.
+     */
+    private int journaled;
+    /**
+     * Текущая версия состава. Начинается с отметки времени запуска, умноженной на 2<sup>20</sup>,
+     * чтобы версии, запомненные клиентами до перезапуска сервера, оказались старше
+     * любой версии нового запуска и клиенты получили полный снимок.
+     */
+    private long version = System.currentTimeMillis() << 20;
+
+    /**
+     * Создаёт пустой состав.
+     * @param capacity сколько последних изменений хранить в журнале.
+     */
+    public PresenceLog(int capacity) {
+        journal = new Change[Math.max(1, capacity)];
+    }
+
+    /**
+     * Меняет ёмкость журнала на ходу, сохраняя столько последних изменений, сколько в неё помещается.
+     * @param capacity сколько последних изменений хранить в журнале.
+     */
+    public synchronized void setCapacity(int capacity) {
+        capacity = Math.max(1, capacity);
+        if (capacity == journal.length) return;
+        Change[] resized = new Change[capacity];
+        int kept = Math.min(journaled, capacity);
+        for (long v = version - kept + 1; v <= version; v++)
+            resized[(int) (v % capacity)] = journal[(int) (v % journal.length)];
+        journal = resized;
+        journaled = kept;
+    }
+
+    /**
+     * Отмечает вход участника.
+     * @param name имя вошедшего.
+     */
+    public synchronized void joined(String name) {
+        if (present.add(name))
+            record(Change.joined(name));
+    }
+
+    /**
+     * Отмечает выход участника. Выход того, кто не числится в составе, не учитывается.
+     * @param name имя покинувшего беседу.
+     */
+    public synchronized void left(String name) {
+        if (present.remove(name))
+            record(Change.left(name));
+    }
+
+    /**
+     * Отмечает смену имени участника.
+     * @param oldName прежнее имя.
+     * @param newName новое имя.
+     */
+    public synchronized void renamed(String oldName, String newName) {
+        if (!present.remove(oldName)) {
+            joined(newName);
+            return;
+        }
+        present.add(newName);
+        record(Change.renamed(oldName, newName));
+    }
+
+    /**
+     * Выдаёт сведения, приводящие состав клиента от известной ему версии к текущей.
+     * @param known версия, известная клиенту, или отрицательное число, если никакая не известна.
+     * @return изменения после известной версии, либо полный снимок, если они недоступны
+     * или снимок короче.
+     */
+    public synchronized Presence since(long known) {
+        long behind = version - known;
+        if (known < 0 || behind < 0 || behind > journaled || behind > present.size())
+            return Presence.snapshot(version, present);
+        List<Change> changes = new ArrayList<>((int) behind);
+        for (long v = known + 1; v <= version; v++)
+            changes.add(journal[(int) (v % journal.length)]);
+        return Presence.delta(known, version, changes);
+    }
+
+    /**
+     * Сообщает число присутствующих участников.
+     * @return размер состава.
+     */
+    public synchronized int size() {
+        return present.size();
+    }
+
+    /**
+     * Заносит изменение в журнал, увеличивая версию.
+     * @param change изменение.
+     */
+    private void record(Change change) {
+        version++;
+        journal[(int) (version % journal.length)] = change;
+        journaled = Math.min(journaled + 1, journal.length);
+    }
+}
@@ -0,0 +1,247 @@
+package server;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Сводка уведомлений о составе беседы. Первое событие (вход, уход, смена имени) после затишья
+ * объявляется сразу, как и прежде, и открывает окно; события, случившиеся в окне, не рассылаются
+ * по одному, а копятся и по его истечении уходят всем одной сводкой, после чего окно открывается
+ * снова, пока события не прекратятся. Так при массовом переподключении каждый участник получает
+ * по сводке на окно, а не по уведомлению на каждого из тысяч входящих.
+ * <p>
+ * Сводка сообщает итог окна: вошедший и тут же ушедший в ней не упоминается вовсе, ушедший
+ * и вернувшийся – тоже, а смена имени вошедшего в том же окне показывается как вход под новым именем.
+ */
+public class PresenceNotices implements AutoCloseable {
+    /**
+     * Итог окна: кто вошёл, кто ушёл и кто как сменил имя.
+     */
+    public static final class Summary {
+        final List<String> joined;
+        final List<String> left;
+        final Map<String, String> renamed;
+
+        private Summary(Set<String> joined, Set<String> left, Map<String, String> renamed) {
+            this.joined = List.copyOf(joined);
+            this.left = List.copyOf(left);
+            this.renamed = Map.copyOf(renamed);
+        }
+
+        boolean isEmpty() {
+            return joined.isEmpty() && left.isEmpty() && renamed.isEmpty();
+        }
+    }
+
+    /**
+     * Поток, отсчитывающий окна.
+     */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "presence-notices");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Длительность окна в миллисекундах; {@code 0} – каждое событие объявляется сразу.
+     */
+    private volatile long window;
+    /**
+     * Открыто ли окно: если да, события копятся до сводки.
+     */
+    private boolean open;
+    /**
+     * Вошедшие в текущем окне.
+     */
+    private final Set<String> joined = new LinkedHashSet<>();
+    /**
+     * Ушедшие в текущем окне.
+     */
+    private final Set<String> left = new LinkedHashSet<>();
+    /**
+     * Смены имени в текущем окне: прежнее имя – последнее новое.
+     */
+    private final Map<String, String> renamed = new LinkedHashMap<>();
+    /**
+     * Сколько событий объявлено сразу.
+     */
+    private final LongAdder immediate = new LongAdder();
+    /**
+     * Сколько событий вошло в сводки.
+     */
+    private final LongAdder summarized = new LongAdder();
+    /**
+     * Сколько сводок разослано.
+     */
+    private final LongAdder summaries = new LongAdder();
+
+    /**
+     * Создаёт сводку уведомлений.
+     * @param window длительность окна в миллисекундах.
+     */
+    public PresenceNotices(long window) {
+        setWindow(window);
+    }
+
+    /**
+     * Меняет длительность окна на ходу; уже открытое окно дорабатывает прежний срок.
+     * @param window длительность окна в миллисекундах.
+     */
+    public void setWindow(long window) {
+        this.window = Math.max(0, window);
+    }
+
+    /**
+     * Учитывает вход участника.
+     * @param name  имя вошедшего.
+     * @param flush рассылка сводки по истечении окна (забирает её через {@link #take()}).
+     * @return {@code истинно}, если событие отложено до сводки; {@code ложно}, если его
+     * нужно объявить сразу.
+     */
+    public synchronized boolean joined(String name, Runnable flush) {
+        if (!hold(flush)) return false;
+        if (!left.remove(name))
+            joined.add(name);
+        return true;
+    }
+
+    /**
+     * Учитывает окончательный уход участника.
+     * @param name  имя ушедшего.
+     * @param flush рассылка сводки по истечении окна.
+     * @return {@code истинно}, если событие отложено до сводки.
+     */
+    public synchronized boolean left(String name, Runnable flush) {
+        if (!hold(flush)) return false;
+        String original = originalName(name);
+        if (original != null) {
+            renamed.remove(original);
+            name = original;
+        }
+        if (!joined.remove(name))
+            left.add(name);
+        return true;
+    }
+
+    /**
+     * Учитывает смену имени участником.
+     * @param oldName прежнее имя.
+     * @param newName новое имя.
+     * @param flush   рассылка сводки по истечении окна.
+     * @return {@code истинно}, если событие отложено до сводки.
+     */
+    public synchronized boolean renamed(String oldName, String newName, Runnable flush) {
+        if (!hold(flush)) return false;
+        if (joined.remove(oldName)) {
+            joined.add(newName);
+            return true;
+        }
+        String original = originalName(oldName);
+        if (original == null) original = oldName;
+        if (original.equals(newName))
+            renamed.remove(original);
+        else
+            renamed.put(original, newName);
+        return true;
+    }
+
+    /**
+     * Забирает накопленный итог окна, очищая его.
+     * @return итог окна, возможно пустой.
+     */
+    public synchronized Summary take() {
+        Summary summary = new Summary(joined, left, renamed);
+        joined.clear();
+        left.clear();
+        renamed.clear();
+        if (!summary.isEmpty()) summaries.increment();
+        return summary;
+    }
+
+    /**
+     * Останавливает отсчёт окон; недосланная сводка отбрасывается.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /*
+        Внутренние вспомогательные методы.
+     */
+    /**
+     * Решает судьбу очередного события: если окно открыто, событие откладывается до сводки,
+     * иначе объявляется сразу и открывает окно.
+     * @param flush рассылка сводки.
+     * @return {@code истинно}, если событие откладывается.
+     */
+    private boolean hold(Runnable flush) {
+        if (open) {
+            summarized.increment();
+            return true;
+        }
+        immediate.increment();
+        if (window > 0 && schedule(flush))
+            open = true;
+        return false;
+    }
+
+    /**
+     * Назначает конец окна.
+     * @param flush рассылка сводки.
+     * @return {@code ложно}, если отсчёт уже остановлен.
+     */
+    private boolean schedule(Runnable flush) {
+        try {
+            timer.schedule(() -> tick(flush), window, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Конец окна: если в нём что-то накопилось, окно продлевается и сводка рассылается,
+     * иначе окно закрывается. Ошибка рассылки перехватывается, чтобы не пропасть молча в планировщике.
+     * @param flush рассылка сводки.
+     */
+    private void tick(Runnable flush) {
+        synchronized (this) {
+            if (joined.isEmpty() && left.isEmpty() && renamed.isEmpty()) {
+                open = false;
+                return;
+            }
+            if (window == 0 || !schedule(flush))
+                open = false;
+        }
+        try {
+            flush.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Находит прежнее имя участника, сменившего имя в текущем окне.
+     * @param current текущее имя.
+     * @return прежнее имя или {@code ничто}, если в этом окне имя не менялось.
+     */
+    private String originalName(String current) {
+        for (Map.Entry<String, String> entry : renamed.entrySet())
+            if (entry.getValue().equals(current)) return entry.getKey();
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "объявлено сразу: %d, сведено: %d, сводок: %d, окно: %d мс"
+                .formatted(immediate.sum(), summarized.sum(), summaries.sum(), window);
+    }
+}
@@ -0,0 +1,880 @@
+package server;
+
+import common.Logger;
+import common.Message;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import static server.TextConstants.*;
+
+/**
+ * Полнотекстовый поиск по переправленным сообщениям беседы: инвертированный указатель
+ * «слово → номера сообщений», разбитый на сегменты.
+ * <p>
+ * Пересылка сообщения лишь кладёт его вместе с моментом пересылки в ограниченное кольцо,
+ * которое разбирает отдельный поток-индексатор, так что на пересылку поиск не влияет
+ * и ничего на сообщение не выделяет. Если кольцо полно, сообщение не индексируется;
+ * о первом таком пропуске за {@code DROP_REPORT_INTERVAL} сообщается в лог.
+ * Индексатор пополняет сегмент в памяти; набрав заданное число сообщений, сегмент
+ * сбрасывается на диск и больше не меняется. Фоновый поток сливает каждые несколько
+ * сегментов одного уровня в один сегмент следующего уровня, так что сегментов
+ * остаётся логарифмически мало. При запуске сегменты подхватываются из каталога.
+ * <p>
+ * Номера сообщений растут со временем, поэтому выдача от больших номеров к меньшим –
+ * это выдача от новых к старым. Частные сообщения видны в выдаче только их отправителю
+ * и адресату.
+ */
+public class SearchIndex {
+    /**
+     * Всё, что не буква и не цифра, разделяет слова.
+     */
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+    /**
+     * Слова длиннее этого обрезаются.
+     */
+    private static final int MAX_TERM = 64;
+    /**
+     * Больше этого числа сообщений в одном сегменте при слиянии не набирается.
+     */
+    private static final int MAX_MERGED_DOCS = 1_000_000;
+    /**
+     * Сколько миллисекунд при остановке ждать индексатора и слияния.
+     */
+    private static final long CLOSE_TIMEOUT = 1000;
+    /**
+     * Не чаще чем раз в столько наносекунд в лог сообщается о пропущенных сообщениях.
+     */
+    private static final long DROP_REPORT_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+    /**
+     * Расширение файлов сегментов.
+     */
+    private static final String SUFFIX = ".seg";
+    private static final long[] NONE = new long[0];
+    private static final DateTimeFormatter shownTime =
+            DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * Проиндексированное сообщение.
+     */
+    public static class Doc {
+        final long id;
+        final long time;
+        final String sender;
+        /**
+         * Адресат частного сообщения; у общего {@code ничто}.
+         */
+        final String addressee;
+        final String text;
+
+        Doc(long id, long time, String sender, String addressee, String text) {
+            this.id = id;
+            this.time = time;
+            this.sender = sender;
+            this.addressee = addressee;
+            this.text = text;
+        }
+
+        /**
+         * Сообщает, может ли участник видеть это сообщение в выдаче.
+         * @param user имя участника.
+         * @return {@code истинно} для общего сообщения, а для частного – только его отправителю и адресату.
+         */
+        boolean visibleTo(String user) {
+            return addressee == null || user.equals(sender) || user.equals(addressee);
+        }
+
+        @Override
+        public String toString() {
+            return "[%s] %s%s: %s".formatted(shownTime.format(Instant.ofEpochMilli(time)), sender,
+                    addressee == null ? "" : " → " + addressee, text);
+        }
+    }
+
+    /**
+     * Сегмент указателя: номера сообщений в нём и в его списках возрастают.
+     */
+    private abstract static class Segment {
+        /**
+         * Уровень сегмента: 0 у сброшенного из памяти, у слитого – на единицу больше, чем у исходных.
+         */
+        final int level;
+
+        Segment(int level) {
+            this.level = level;
+        }
+
+        /**
+         * Список номеров сообщений, содержащих слово.
+         * @param term слово.
+         * @return возрастающие номера (возможно, ни одного).
+         * @throws IOException при ошибке чтения с диска.
+         */
+        abstract long[] postings(String term) throws IOException;
+
+        /**
+         * Сообщение по его номеру.
+         * @param id номер сообщения из этого сегмента.
+         * @return сообщение.
+         * @throws IOException при ошибке чтения с диска.
+         */
+        abstract Doc doc(long id) throws IOException;
+
+        abstract int size();
+    }
+
+    /**
+     * Сегмент в памяти: пополняемый индексатором или собираемый при слиянии.
+     */
+    private static class MemorySegment extends Segment {
+        final List<Doc> docs = new ArrayList<>();
+        final Map<String, Postings> postings = new HashMap<>();
+
+        MemorySegment(int level) {
+            super(level);
+        }
+
+        synchronized void add(Doc doc) {
+            docs.add(doc);
+            for (String term : terms(doc.text))
+                postings.computeIfAbsent(term, key -> new Postings()).add(doc.id);
+        }
+
+        @Override
+        synchronized long[] postings(String term) {
+            Postings found = postings.get(term);
+            return found == null ? NONE : Arrays.copyOf(found.ids, found.count);
+        }
+
+        @Override
+        synchronized Doc doc(long id) {
+            int low = 0, high = docs.size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                long middleId = docs.get(middle).id;
+                if (middleId < id) low = middle + 1;
+                else if (middleId > id) high = middle - 1;
+                else return docs.get(middle);
+            }
+            return null;
+        }
+
+        @Override
+        synchronized int size() {
+            return docs.size();
+        }
+
+        /**
+         * Записывает сегмент в файл (через временный файл и переименование).
+         * Формат: уровень и число сообщений; сообщения; списки номеров; словарь
+         * «слово → смещение и длина списка»; смещения сообщений; в конце – смещение словаря.
+         * @param directory каталог сегментов.
+         * @return открытый сегмент на диске.
+         * @throws IOException при ошибке записи.
+         */
+        synchronized DiskSegment writeTo(Path directory) throws IOException {
+            Files.createDirectories(directory);
+            Path target = directory.resolve("%020d-%020d%s".formatted(
+                    docs.get(0).id, docs.get(docs.size() - 1).id, SUFFIX));
+            Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(level);
+                out.writeInt(docs.size());
+                long[] docOffsets = new long[docs.size() + 1];
+                for (int i = 0; i < docs.size(); i++) {
+                    docOffsets[i] = out.size();
+                    Doc doc = docs.get(i);
+                    out.writeLong(doc.id);
+                    out.writeLong(doc.time);
+                    writeString(out, doc.sender);
+                    writeString(out, doc.addressee);
+                    writeString(out, doc.text);
+                }
+                docOffsets[docs.size()] = out.size();
+                Map<String, Postings> sorted = new TreeMap<>(postings);
+                Map<String, Long> offsets = new HashMap<>();
+                for (Map.Entry<String, Postings> term : sorted.entrySet()) {
+                    offsets.put(term.getKey(), (long) out.size());
+                    Postings ids = term.getValue();
+                    for (int i = 0; i < ids.count; i++)
+                        out.writeLong(ids.ids[i]);
+                }
+                long dictionary = out.size();
+                out.writeInt(sorted.size());
+                for (Map.Entry<String, Postings> term : sorted.entrySet()) {
+                    writeString(out, term.getKey());
+                    out.writeLong(offsets.get(term.getKey()));
+                    out.writeInt(term.getValue().count);
+                }
+                for (int i = 0; i < docs.size(); i++)
+                    out.writeLong(docs.get(i).id);
+                for (long offset : docOffsets)
+                    out.writeLong(offset);
+                out.writeLong(dictionary);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return DiskSegment.open(target);
+        }
+    }
+
+    /**
+     * Растущий список номеров сообщений.
+     */
+    private static class Postings {
+        long[] ids = new long[4];
+        int count;
+
+        void add(long id) {
+            if (count == ids.length)
+                ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = id;
+        }
+    }
+
+    /**
+     * Неизменный сегмент на диске. В памяти держатся только словарь и смещения сообщений,
+     * сами списки и сообщения читаются из файла по смещению.
+     */
+    private static class DiskSegment extends Segment {
+        final Path file;
+        final FileChannel channel;
+        /**
+         * Слово → смещение его списка в файле и длина списка.
+         */
+        final Map<String, long[]> dictionary;
+        /**
+         * Номера сообщений сегмента по возрастанию.
+         */
+        final long[] ids;
+        /**
+         * Смещения сообщений; последнее – конец области сообщений.
+         */
+        final long[] offsets;
+
+        private DiskSegment(int level, Path file, FileChannel channel, Map<String, long[]> dictionary,
+                            long[] ids, long[] offsets) {
+            super(level);
+            this.file = file;
+            this.channel = channel;
+            this.dictionary = dictionary;
+            this.ids = ids;
+            this.offsets = offsets;
+        }
+
+        /**
+         * Открывает сегмент из файла, читая его словарь и смещения сообщений.
+         * @param file файл сегмента.
+         * @return открытый сегмент.
+         * @throws IOException если файл не читается или повреждён.
+         */
+        static DiskSegment open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                ByteBuffer header = read(channel, 0, 2 * Integer.BYTES);
+                int level = header.getInt();
+                int docCount = header.getInt();
+                long dictionaryStart = read(channel, size - Long.BYTES, Long.BYTES).getLong();
+                ByteBuffer tail = read(channel, dictionaryStart, (int) (size - Long.BYTES - dictionaryStart));
+                int termCount = tail.getInt();
+                Map<String, long[]> dictionary = new HashMap<>(termCount * 2);
+                for (int i = 0; i < termCount; i++) {
+                    String term = readString(tail);
+                    dictionary.put(term, new long[] {tail.getLong(), tail.getInt()});
+                }
+                long[] ids = new long[docCount];
+                for (int i = 0; i < docCount; i++)
+                    ids[i] = tail.getLong();
+                long[] offsets = new long[docCount + 1];
+                for (int i = 0; i <= docCount; i++)
+                    offsets[i] = tail.getLong();
+                if (docCount == 0)
+                    throw new IOException("Пустой сегмент " + file);
+                return new DiskSegment(level, file, channel, dictionary, ids, offsets);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e instanceof IOException io ? io : new IOException("Повреждён сегмент " + file, e);
+            }
+        }
+
+        @Override
+        long[] postings(String term) throws IOException {
+            long[] entry = dictionary.get(term);
+            if (entry == null) return NONE;
+            int count = (int) entry[1];
+            ByteBuffer buffer = read(channel, entry[0], count * Long.BYTES);
+            long[] found = new long[count];
+            buffer.asLongBuffer().get(found);
+            return found;
+        }
+
+        @Override
+        Doc doc(long id) throws IOException {
+            int index = Arrays.binarySearch(ids, id);
+            if (index < 0) return null;
+            ByteBuffer buffer = read(channel, offsets[index], (int) (offsets[index + 1] - offsets[index]));
+            return new Doc(buffer.getLong(), buffer.getLong(),
+                    readString(buffer), readString(buffer), readString(buffer));
+        }
+
+        /**
+         * Читает все сообщения сегмента по порядку (для слияния).
+         * @return сообщения сегмента.
+         * @throws IOException при ошибке чтения.
+         */
+        List<Doc> docs() throws IOException {
+            List<Doc> docs = new ArrayList<>(ids.length);
+            for (long id : ids)
+                docs.add(doc(id));
+            return docs;
+        }
+
+        @Override
+        int size() {
+            return ids.length;
+        }
+
+        long firstId() {
+            return ids[0];
+        }
+
+        long lastId() {
+            return ids[ids.length - 1];
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Каталог файлов сегментов.
+     */
+    private final Path directory;
+    /**
+     * Сегменты по возрастанию номеров: на диске и ещё не сброшенные из памяти. Защищены {@link #lock}.
+     */
+    private final List<Segment> segments = new ArrayList<>();
+    /**
+     * Пополняемый сегмент в памяти. Заменяется под {@link #lock}.
+     */
+    private MemorySegment active = new MemorySegment(0);
+    /**
+     * Замок списка сегментов: поиск читает под общим замком, замена сегментов – под исключительным,
+     * так что сегмент не закрывается, пока по нему идёт поиск.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * Кольцо сообщений, ждущих индексирования; его монитор защищает и остальные поля кольца.
+     */
+    private final Message[] ring;
+    /**
+     * Моменты пересылки сообщений кольца, на тех же местах.
+     */
+    private final long[] ringTimes;
+    /**
+     * Место первого ждущего сообщения в кольце.
+     */
+    private int ringHead;
+    /**
+     * Сколько сообщений ждёт в кольце.
+     */
+    private int ringSize;
+    /**
+     * Остановлен ли приём сообщений; индексатор доразбирает кольцо и завершается.
+     */
+    private boolean stopped;
+    /**
+     * Поток-индексатор, разбирающий кольцо.
+     */
+    private final Thread indexer;
+    /**
+     * Логировщик, в который сообщается о пропусках.
+     */
+    private final Logger logger;
+    /**
+     * Поток фонового слияния сегментов.
+     */
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "search-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Номер следующего индексируемого сообщения. Меняется только индексатором.
+     */
+    private long nextId = 1;
+    /**
+     * Число сообщений, не проиндексированных из-за переполнения кольца или остановки.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+    /**
+     * Когда (по {@link System#nanoTime()}) в последний раз сообщалось о пропуске.
+     */
+    private final AtomicLong droppedReported = new AtomicLong(System.nanoTime() - DROP_REPORT_INTERVAL);
+    /**
+     * Сколько сообщений набирать в памяти перед сбросом сегмента на диск.
+     */
+    private volatile int segmentDocs;
+    /**
+     * Сколько сегментов одного уровня сливать в один.
+     */
+    private volatile int mergeFactor;
+    /**
+     * Наибольшее число сообщений в выдаче.
+     */
+    private volatile int resultLimit;
+
+    /**
+     * Создаёт указатель, подхватывая сегменты, ранее сброшенные в каталог.
+     * @param directory     каталог файлов сегментов.
+     * @param queueCapacity длина кольца индексатора.
+     * @param segmentDocs   сколько сообщений набирать в памяти перед сбросом на диск.
+     * @param mergeFactor   сколько сегментов одного уровня сливать в один.
+     * @param resultLimit   наибольшее число сообщений в выдаче.
+     * @param logger        логировщик, в который сообщается о пропусках.
+     */
+    public SearchIndex(Path directory, int queueCapacity, int segmentDocs, int mergeFactor, int resultLimit,
+                       Logger logger) {
+        this.directory = directory;
+        this.logger = logger;
+        setLimits(segmentDocs, mergeFactor, resultLimit);
+        ring = new Message[Math.max(1, queueCapacity)];
+        ringTimes = new long[ring.length];
+        load();
+        indexer = new Thread(this::drain, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Меняет параметры указателя на ходу.
+     * @param segmentDocs сколько сообщений набирать в памяти перед сбросом на диск.
+     * @param mergeFactor сколько сегментов одного уровня сливать в один.
+     * @param resultLimit наибольшее число сообщений в выдаче.
+     */
+    public void setLimits(int segmentDocs, int mergeFactor, int resultLimit) {
+        this.segmentDocs = Math.max(1, segmentDocs);
+        this.mergeFactor = Math.max(2, mergeFactor);
+        this.resultLimit = Math.max(1, resultLimit);
+    }
+
+    /**
+     * Кладёт переправляемое сообщение в кольцо на индексирование. Не блокирует:
+     * если кольцо полно или указатель остановлен, сообщение пропускается.
+     * @param message переправляемое сообщение (общее или частное).
+     */
+    public void add(Message message) {
+        long time = System.currentTimeMillis();
+        synchronized (ring) {
+            if (!stopped && ringSize < ring.length) {
+                int tail = (ringHead + ringSize) % ring.length;
+                ring[tail] = message;
+                ringTimes[tail] = time;
+                if (ringSize++ == 0) ring.notify();
+                return;
+            }
+        }
+        reportDropped(dropped.incrementAndGet());
+    }
+
+    /**
+     * Ищет сообщения, содержащие все слова запроса и видимые запросившему, от новых к старым.
+     * @param requester имя запросившего участника.
+     * @param query     слова запроса.
+     * @return найденные сообщения (не более заданного предела), самые новые первыми.
+     * @throws IOException при ошибке чтения сегмента с диска.
+     */
+    public List<Doc> find(String requester, String query) throws IOException {
+        Set<String> terms = terms(query);
+        List<Doc> found = new ArrayList<>();
+        if (terms.isEmpty()) return found;
+        int limit = resultLimit;
+        lock.readLock().lock();
+        try {
+            List<Segment> all = new ArrayList<>(segments);
+            all.add(active);
+            for (int s = all.size() - 1; s >= 0 && found.size() < limit; s--) {
+                Segment segment = all.get(s);
+                long[] matching = intersect(segment, terms);
+                for (int i = matching.length - 1; i >= 0 && found.size() < limit; i--) {
+                    Doc doc = segment.doc(matching[i]);
+                    if (doc != null && doc.visibleTo(requester))
+                        found.add(doc);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    /**
+     * Останавливает индексатор, дав ему разобрать кольцо (не дольше {@code CLOSE_TIMEOUT},
+     * после чего остаток отбрасывается), сбрасывает на диск сегмент из памяти,
+     * дожидается слияния и закрывает файлы сегментов.
+     */
+    public void close() {
+        synchronized (ring) {
+            stopped = true;
+            ring.notifyAll();
+        }
+        merger.shutdown();
+        try {
+            indexer.join(CLOSE_TIMEOUT);
+            if (indexer.isAlive()) {
+                synchronized (ring) {
+                    dropped.addAndGet(ringSize);
+                    Arrays.fill(ring, null);
+                    ringSize = 0;
+                }
+                indexer.join(CLOSE_TIMEOUT);
+            }
+            flush();
+            if (!merger.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+                merger.shutdownNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments)
+                if (segment instanceof DiskSegment disk)
+                    disk.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return "сегментов: %d, в памяти: %d, пропущено: %d".formatted(
+                    segments.size(), active.size(), dropped.get());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /*
+        Внутренние вспомогательные методы.
+     */
+    /**
+     * Тело потока-индексатора: берёт сообщения из кольца по одному и индексирует их,
+     * пока указатель не остановлен и кольцо не опустело.
+     */
+    private void drain() {
+        while (true) {
+            Message message;
+            long time;
+            synchronized (ring) {
+                while (ringSize == 0) {
+                    if (stopped) return;
+                    try {
+                        ring.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                message = ring[ringHead];
+                time = ringTimes[ringHead];
+                ring[ringHead] = null;
+                ringHead = (ringHead + 1) % ring.length;
+                ringSize--;
+            }
+            try {
+                index(message, time);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Сообщает об ошибке указателя на консоль и в лог.
+     * @param error текст ошибки.
+     * @param cause исключение, чей стек нужно вывести, либо {@code ничто}.
+     */
+    private void report(String error, Exception cause) {
+        System.out.println(error);        // monitor
+        logger.logEvent(error);
+        if (cause != null) cause.printStackTrace();
+    }
+
+    /**
+     * Сообщает в лог о пропуске, если это первый пропуск за {@code DROP_REPORT_INTERVAL}.
+     * @param total сколько сообщений пропущено всего.
+     */
+    private void reportDropped(long total) {
+        long now = System.nanoTime();
+        long last = droppedReported.get();
+        if (now - last >= DROP_REPORT_INTERVAL && droppedReported.compareAndSet(last, now))
+            logger.logEvent(SEARCH_DROPPED.formatted(total, TimeUnit.NANOSECONDS.toSeconds(DROP_REPORT_INTERVAL)));
+    }
+
+    /**
+     * Индексирует одно сообщение (в потоке индексатора) и сбрасывает сегмент, если он набран.
+     * @param message сообщение.
+     * @param time    момент его пересылки.
+     */
+    private void index(Message message, long time) {
+        active.add(new Doc(nextId++, time, message.getSender(), message.getAddressee(), message.getMessage()));
+        if (active.size() >= segmentDocs)
+            flush();
+    }
+
+    /**
+     * Замораживает сегмент из памяти (оставляя его доступным для поиска), записывает его на диск
+     * и подменяет записанным, после чего поручает фоновому потоку слияние.
+     * Вызывается индексатором либо при остановке, когда индексатор уже завершён.
+     */
+    private void flush() {
+        MemorySegment frozen;
+        lock.writeLock().lock();
+        try {
+            if (active.size() == 0) return;
+            frozen = active;
+            segments.add(frozen);
+            active = new MemorySegment(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        try {
+            DiskSegment written = frozen.writeTo(directory);
+            replace(List.of(frozen), written);
+        } catch (IOException e) {
+            // сегмент остаётся в памяти и по-прежнему доступен для поиска
+            report(SEARCH_SEGMENT_NOT_WRITTEN.formatted(e.getMessage()), e);
+            return;
+        }
+        try {
+            merger.execute(this::merge);
+        } catch (RejectedExecutionException e) {
+            // указатель останавливается, слияние подождёт следующего запуска
+        }
+    }
+
+    /**
+     * Пока находятся {@code mergeFactor} подряд идущих сегментов одного уровня на диске,
+     * сливает их в один сегмент следующего уровня и удаляет исходные файлы.
+     */
+    private void merge() {
+        List<DiskSegment> group;
+        while (!(group = mergeable()).isEmpty()) {
+            MemorySegment merged = new MemorySegment(group.get(0).level + 1);
+            try {
+                for (DiskSegment segment : group)
+                    for (Doc doc : segment.docs())
+                        merged.add(doc);
+                DiskSegment written = merged.writeTo(directory);
+                replace(group, written);
+            } catch (IOException e) {
+                report(SEARCH_SEGMENTS_NOT_MERGED.formatted(e.getMessage()), e);
+                return;
+            }
+            for (DiskSegment segment : group) {
+                segment.close();
+                try {
+                    Files.deleteIfExists(segment.file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Ищет группу сегментов для слияния: первые {@code mergeFactor} подряд идущих
+     * сегментов на диске одного уровня, начиная с самого низкого уровня.
+     * @return группа сегментов либо пустой список, если сливать нечего.
+     */
+    private List<DiskSegment> mergeable() {
+        int factor = mergeFactor;
+        lock.readLock().lock();
+        try {
+            List<DiskSegment> best = List.of();
+            List<DiskSegment> run = new ArrayList<>();
+            for (Segment segment : segments) {
+                if (!(segment instanceof DiskSegment disk)) {
+                    run.clear();
+                    continue;
+                }
+                if (!run.isEmpty() && run.get(0).level != disk.level)
+                    run.clear();
+                run.add(disk);
+                if (run.size() == factor) {
+                    int docs = run.stream().mapToInt(DiskSegment::size).sum();
+                    if (docs <= MAX_MERGED_DOCS && (best.isEmpty() || run.get(0).level < best.get(0).level))
+                        best = List.copyOf(run);
+                    run.remove(0);
+                }
+            }
+            return best;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Подменяет подряд идущие сегменты одним.
+     * @param replaced заменяемые сегменты в порядке их следования.
+     * @param with     сегмент, встающий на их место.
+     */
+    private void replace(List<? extends Segment> replaced, Segment with) {
+        lock.writeLock().lock();
+        try {
+            int index = segments.indexOf(replaced.get(0));
+            segments.subList(index, index + replaced.size()).clear();
+            segments.add(index, with);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Подхватывает сегменты из каталога. Сегменты, чей диапазон номеров покрыт
+     * другим (остатки прерванного слияния), и недописанные временные файлы удаляются.
+     */
+    private void load() {
+        if (!Files.isDirectory(directory)) return;
+        List<DiskSegment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX + ".tmp")) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    try {
+                        found.add(DiskSegment.open(file));
+                    } catch (IOException e) {
+                        report(SEARCH_SEGMENT_UNREADABLE.formatted(file.getFileName(), e.getMessage()), null);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            report(SEARCH_DIRECTORY_UNREADABLE.formatted(e.getMessage()), e);
+        }
+        // по началу диапазона, а при равном начале – более широкий первым
+        found.sort((a, b) -> a.firstId() != b.firstId() ?
+                Long.compare(a.firstId(), b.firstId()) : Long.compare(b.lastId(), a.lastId()));
+        long covered = 0;
+        for (DiskSegment segment : found) {
+            if (segment.firstId() <= covered) {
+                segment.close();
+                try {
+                    Files.deleteIfExists(segment.file);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+            segments.add(segment);
+            covered = segment.lastId();
+        }
+        nextId = covered + 1;
+    }
+
+    /**
+     * Пересечение списков номеров для всех слов запроса в сегменте.
+     * @param segment сегмент.
+     * @param terms   слова запроса.
+     * @return возрастающие номера сообщений, содержащих все слова.
+     * @throws IOException при ошибке чтения с диска.
+     */
+    private static long[] intersect(Segment segment, Set<String> terms) throws IOException {
+        List<long[]> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            long[] list = segment.postings(term);
+            if (list.length == 0) return NONE;
+            lists.add(list);
+        }
+        lists.sort((a, b) -> Integer.compare(a.length, b.length));
+        long[] result = lists.get(0);
+        for (int l = 1; l < lists.size() && result.length > 0; l++) {
+            long[] other = lists.get(l);
+            long[] kept = new long[result.length];
+            int count = 0;
+            for (long id : result)
+                if (Arrays.binarySearch(other, id) >= 0)
+                    kept[count++] = id;
+            result = Arrays.copyOf(kept, count);
+        }
+        return result;
+    }
+
+    /**
+     * Разбивает текст на слова в нижнем регистре без повторов.
+     * @param text текст.
+     * @return набор слов.
+     */
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null) return terms;
+        for (String word : SEPARATORS.split(text.toLowerCase(Locale.ROOT))) {
+            if (word.isEmpty()) continue;
+            terms.add(word.length() > MAX_TERM ? word.substring(0, MAX_TERM) : word);
+        }
+        return terms;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Неожиданный конец файла сегмента");
+        }
+        return buffer.flip();
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+}
@@ -2,21 +2,76 @@ package server;
 
 import common.Configurator;
 import common.Logger;
+import common.Delivery;
+import common.Message;
 
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static server.TextConstants.*;
 
 public class Server {
     private static final Path settingsSource = Path.of("settings.ini");
     private static final int port_default = 7777;
     private static final byte[] password_default = "0000".getBytes();
     private static final String host_default = "localhost";
+    private static final int max_connections_default = 1000;
+    private static final int max_per_address_default = 100;
+    private static final int accept_backlog_default = 50;
+    private static final int accept_queue_default = 100;
+    private static final int connection_threads_core_default = 16;
+    private static final int connection_threads_max_default = max_connections_default;
+    private static final int connection_queue_default = 0;
+    private static final long buffer_pool_bytes_default = 16L * 1024 * 1024;
+    private static final int stream_reset_objects_default = 1000;
+    private static final long stream_reset_bytes_default = 1024 * 1024;
+    private static final long ping_interval_default = 15_000;
+    private static final int ping_misses_default = 3;
+    private static final long session_grace_default = 120_000;
+    private static final int session_backlog_default = 200;
+    private static final int dedup_window_default = 64;
+    private static final int inboxes_default = 1000;
+    private static final long inbox_ttl_default = TimeUnit.DAYS.toMillis(7);
+    private static final int inbox_limit_default = 500;
+    private static final int inbox_bytes_default = 256 * 1024;
+    private static final int inbox_memory_default = 50;
+    private static final int presence_log_default = 1000;
+    private static final int users_page_default = 20;
+    private static final int search_queue_default = 10_000;
+    private static final int search_segment_default = 1000;
+    private static final int search_merge_default = 4;
+    private static final int search_results_default = 20;
+    private static final int fan_out_pool_default = Runtime.getRuntime().availableProcessors();
+    private static final int fan_out_chunk_default = 256;
+    private static final int flush_threads_default = Runtime.getRuntime().availableProcessors();
+    private static final long flush_window_default = 0;
+    private static final long presence_window_default = 250;
+    private static final int state_snapshot_records_default = 100_000;
+    private static final long state_snapshot_interval_default = 300_000;
+    /**
+     * Сколько миллисекунд при остановке даётся на опустошение исходящих очередей соединений.
+     */
+    private static final long DRAIN_TIMEOUT = 300;
+    /**
+     * Сколько миллисекунд при остановке даётся потокам соединений на завершение.
+     */
+    private static final long THREADS_TIMEOUT = 300;
 
     /**
      * Адрес сервера.
@@ -32,9 +87,35 @@ public class Server {
      */
     private final byte[] PASSWORD;
     /**
-     * Обойма потоков, обрабатывающих подключения.
+     * Длина очереди ещё не принятых подключений на уровне операционной системы.
+     */
+    private final int ACCEPT_BACKLOG;
+    /**
+     * Пропускной контроль, ограничивающий число обслуживаемых соединений.
+     */
+    private final Admission admission =
+            new Admission(max_connections_default, max_per_address_default, accept_queue_default);
+    /**
+     * Обойма прямых буферов, которые соединения заимствуют на время передачи данных.
+     */
+    final BufferPool buffers = new BufferPool(buffer_pool_bytes_default);
+    /**
+     * Сколько объектов записывать в исходящий поток соединения между сбросами его таблицы ссылок.
+     * Новые значения действуют для соединений, открытых после их установки.
+     */
+    volatile int streamResetObjects = stream_reset_objects_default;
+    /**
+     * Сколько байт записывать в исходящий поток соединения между сбросами его таблицы ссылок.
+     */
+    volatile long streamResetBytes = stream_reset_bytes_default;
+    /**
+     * Ограниченная обойма потоков, обрабатывающих подключения.
+     */
+    final ConnectionPool connections;
+    /**
+     * Все открытые в данный момент Соединения, как зарегистрированные, так и ещё нет.
      */
-    private final ExecutorService connections = Executors.newCachedThreadPool();
+    private final Set<Connection> opened = ConcurrentHashMap.newKeySet();
     /**
      * Производится ли протоколирование принятых на сервер сообщений.
      */
@@ -52,10 +133,65 @@ public class Server {
      */
     private final boolean LOG_EVENTS;
 
+    /**
+     * Живое хранилище настроек, если сервер создан на основе файла настроек, иначе {@code ничто}.
+     */
+    private final Configurator config;
+    /**
+     * Реестр сеансов участников, позволяющий возобновлять их после обрыва связи.
+     */
+    final Sessions sessions = new Sessions(session_grace_default, session_backlog_default, dedup_window_default);
+    /**
+     * Почтовые ящики частных сообщений для участников, которые не в сети.
+     */
+    final Inboxes inboxes =
+            new Inboxes(Path.of("inbox"), inboxes_default, inbox_ttl_default, inbox_limit_default, inbox_bytes_default, inbox_memory_default);
+    /**
+     * Сквозной счётчик номеров принятых сообщений, не повторяющихся и после перезапуска.
+     */
+    final MessageSequence sequence = new MessageSequence();
+    /**
+     * Снимок и журнал изменений сеансов, почтовых ящиков и счётчика сообщений,
+     * по которым их состояние восстанавливается при запуске сервера.
+     */
+    final StateJournal state = new StateJournal(Path.of("state"),
+            state_snapshot_records_default, state_snapshot_interval_default, sequence, sessions, inboxes);
+    /**
+     * Версионированный состав участников, по которому клиентам высылаются изменения.
+     */
+    final PresenceLog presence = new PresenceLog(presence_log_default);
+    /**
+     * Упорядоченный указатель имён участников для поиска и дополнения по началу имени.
+     */
+    final NameIndex names = new NameIndex(users_page_default);
+    /**
+     * Полнотекстовый указатель переправленных сообщений для поиска по истории беседы.
+     */
+    final SearchIndex search;
+    /**
+     * Списки игнорируемых и заглушённые беседы участников, проверяемые при рассылке.
+     */
+    final Ignores ignores = new Ignores();
+    /**
+     * Сводка уведомлений о входе, уходе и смене имени, объединяющая их при массовых подключениях.
+     */
+    final PresenceNotices notices = new PresenceNotices(presence_window_default);
+    /**
+     * Исполнитель параллельной рассылки сообщений большому числу получателей.
+     */
+    final FanOut fanOut = new FanOut(fan_out_pool_default, fan_out_chunk_default);
+    /**
+     * Служба объединения записей: окно ожидания попутных сообщений и учёт кадров на системную запись.
+     */
+    final WriteCoalescer writes = new WriteCoalescer(flush_threads_default, flush_window_default);
     /**
      * Диспетчер подключённых пользователей и коммуникации сообщений между ними.
      */
     final Dispatcher users;
+    /**
+     * Пульс, выявляющий оборвавшиеся без уведомления соединения.
+     */
+    private final Heartbeat heartbeat;
     /**
      * Логировщик сообщений и событий, используемый сервером.
      */
@@ -65,6 +201,10 @@ public class Server {
      * Работает ли сервер на приём подключений.
      */
     private volatile boolean listening;       // нужно ли ей быть волатильной?
+    /**
+     * Серверный сокет, на котором принимаются подключения.
+     */
+    private volatile ServerSocket serverSocket;
 
     /**
      * Создаёт новый Сервер с настройками по умолчанию.
@@ -73,13 +213,20 @@ public class Server {
         HOST = host_default;
         PORT = port_default;
         PASSWORD = password_default;
+        ACCEPT_BACKLOG = accept_backlog_default;
         LOG_INBOUND = false;
         LOG_OUTBOUND = true;
         LOG_TRANSFERRED = false;
         LOG_EVENTS = false;
+        config = null;
         logger = getLogger();
         logger.setLogFile("server.log");
+        connections = new ConnectionPool(connection_threads_core_default, connection_threads_max_default,
+                connection_queue_default, this::busy);
+        search = new SearchIndex(Path.of("search"), search_queue_default,
+                search_segment_default, search_merge_default, search_results_default, logger);
         users = new Dispatcher(this);
+        heartbeat = new Heartbeat(users, ping_interval_default, ping_misses_default);
     }
 
     /**
@@ -92,13 +239,20 @@ public class Server {
         HOST = host;
         PORT = port;
         PASSWORD = password;
+        ACCEPT_BACKLOG = accept_backlog_default;
         LOG_INBOUND = false;
         LOG_OUTBOUND = true;
         LOG_TRANSFERRED = false;
         LOG_EVENTS = false;
+        config = null;
         logger = getLogger();
         logger.setLogFile("server.log");
+        connections = new ConnectionPool(connection_threads_core_default, connection_threads_max_default,
+                connection_queue_default, this::busy);
+        search = new SearchIndex(Path.of("search"), search_queue_default,
+                search_segment_default, search_merge_default, search_results_default, logger);
         users = new Dispatcher(this);
+        heartbeat = new Heartbeat(users, ping_interval_default, ping_misses_default);
     }
 
     /**
@@ -108,11 +262,12 @@ public class Server {
      * @param settingFile адрес файла настроек.
      */
     public Server(Path settingFile) {
-        Configurator config = new Configurator(settingFile);
+        config = new Configurator(settingFile);
         HOST = config.getStringProperty("HOST").orElse(host_default);
         PORT = config.getIntProperty("PORT").orElse(port_default);
         PASSWORD = (config.getStringProperty("PASSWORD")
                 .orElse(Arrays.toString(password_default))).getBytes();
+        ACCEPT_BACKLOG = config.getIntProperty("ACCEPT_BACKLOG").orElse(accept_backlog_default);
 
         LOG_INBOUND = config.getBoolProperty("LOG_INBOUND").orElse(false);
         LOG_OUTBOUND = config.getBoolProperty("LOG_OUTBOUND").orElse(true);
@@ -121,7 +276,80 @@ public class Server {
 
         logger = getLogger();
         logger.setLogFile("server.log");                // адрес тоже может быть вынесен в настройки
+        connections = new ConnectionPool(connection_threads_core_default, connection_threads_max_default,
+                config.getIntProperty("CONNECTION_QUEUE").orElse(connection_queue_default), this::busy);
+        search = new SearchIndex(Path.of("search"), search_queue_default,
+                search_segment_default, search_merge_default, search_results_default, logger);
         users = new Dispatcher(this);
+        heartbeat = new Heartbeat(users, ping_interval_default, ping_misses_default);
+        applyLimits(config);
+
+        config.subscribe(this::applySettings);
+        config.watch();
+    }
+
+    /**
+     * Применяет перечитанные на ходу настройки к работающему серверу.
+     * Адрес, порт, пароль и длина очереди операционной системы требуют перезапуска и здесь не меняются.
+     * @param config Конфигуратор с обновлёнными значениями.
+     */
+    private void applySettings(Configurator config) {
+        applyLimits(config);
+        logger.setLogging(
+                config.getBoolProperty("LOG_INBOUND").orElse(false),
+                config.getBoolProperty("LOG_OUTBOUND").orElse(true),
+                config.getBoolProperty("LOG_TRANSFERRED").orElse(false),
+                config.getBoolProperty("LOG_EVENTS").orElse(false));
+        logger.logEvent(SETTINGS_RELOADED);
+    }
+
+    /**
+     * Выставляет составным частям сервера ограничения и интервалы, которые можно менять на ходу.
+     * Составные части создаются со значениями по умолчанию, так что при создании
+     * сервера из файла настроек этот метод вызывается сразу после них.
+     * @param config Конфигуратор с актуальными значениями.
+     */
+    private void applyLimits(Configurator config) {
+        admission.setLimits(
+                config.getIntProperty("MAX_CONNECTIONS").orElse(max_connections_default),
+                config.getIntProperty("MAX_PER_ADDRESS").orElse(max_per_address_default),
+                config.getIntProperty("ACCEPT_QUEUE").orElse(accept_queue_default));
+        connections.setLimits(
+                config.getIntProperty("CONNECTION_THREADS_CORE").orElse(connection_threads_core_default),
+                config.getIntProperty("CONNECTION_THREADS_MAX").orElse(connection_threads_max_default));
+        streamResetObjects = config.getIntProperty("STREAM_RESET_OBJECTS").orElse(stream_reset_objects_default);
+        streamResetBytes = config.getIntProperty("STREAM_RESET_KB").map(kb -> kb * 1024L).orElse(stream_reset_bytes_default);
+        buffers.setRetainLimit(
+                config.getIntProperty("BUFFER_POOL_KB").map(kb -> kb * 1024L).orElse(buffer_pool_bytes_default));
+        heartbeat.setRate(
+                config.getIntProperty("PING_INTERVAL").map(Long::valueOf).orElse(ping_interval_default),
+                config.getIntProperty("PING_MISSES").orElse(ping_misses_default));
+        sessions.setLimits(
+                config.getIntProperty("SESSION_GRACE").map(Long::valueOf).orElse(session_grace_default),
+                config.getIntProperty("SESSION_BACKLOG").orElse(session_backlog_default),
+                config.getIntProperty("DEDUP_WINDOW").orElse(dedup_window_default));
+        inboxes.setLimits(
+                config.getIntProperty("INBOXES").orElse(inboxes_default),
+                config.getIntProperty("INBOX_TTL_HOURS").map(hours -> TimeUnit.HOURS.toMillis(hours)).orElse(inbox_ttl_default),
+                config.getIntProperty("INBOX_LIMIT").orElse(inbox_limit_default),
+                config.getIntProperty("INBOX_BYTES").orElse(inbox_bytes_default),
+                config.getIntProperty("INBOX_MEMORY").orElse(inbox_memory_default));
+        presence.setCapacity(config.getIntProperty("PRESENCE_LOG").orElse(presence_log_default));
+        names.setPageSize(config.getIntProperty("USERS_PAGE").orElse(users_page_default));
+        notices.setWindow(config.getIntProperty("PRESENCE_WINDOW").map(Long::valueOf).orElse(presence_window_default));
+        search.setLimits(
+                config.getIntProperty("SEARCH_SEGMENT").orElse(search_segment_default),
+                config.getIntProperty("SEARCH_MERGE").orElse(search_merge_default),
+                config.getIntProperty("SEARCH_RESULTS").orElse(search_results_default));
+        fanOut.setLimits(
+                config.getIntProperty("FAN_OUT_POOL").orElse(fan_out_pool_default),
+                config.getIntProperty("FAN_OUT_CHUNK").orElse(fan_out_chunk_default));
+        writes.setLimits(
+                config.getIntProperty("FLUSH_THREADS").orElse(flush_threads_default),
+                config.getIntProperty("FLUSH_WINDOW").map(Long::valueOf).orElse(flush_window_default));
+        state.setLimits(
+                config.getIntProperty("STATE_SNAPSHOT_RECORDS").orElse(state_snapshot_records_default),
+                config.getIntProperty("STATE_SNAPSHOT_INTERVAL").map(Long::valueOf).orElse(state_snapshot_interval_default));
     }
 
     /**
@@ -147,20 +375,44 @@ public class Server {
     }
 
     /**
-     * Слушает на заданном серверном порту за входящие подключения.
-     * Обнаружив таковое, запускает его в новый поток в обойме подключений.
+     * Восстанавливает из снимка и журнала состояние, сохранённое до перезапуска,
+     * возвращает восстановленные сеансы Диспетчеру и запускает запись журнала.
+     */
+    private void recoverState() {
+        long start = System.nanoTime();
+        String report = state.recover();
+        try {
+            int orphans = inboxes.reconcile();
+            if (orphans > 0) logger.logEvent(INBOX_ORPHANS_REMOVED.formatted(orphans));
+        } catch (IOException e) {
+            logger.logEvent(INBOX_RECONCILE_FAILED.formatted(e.getMessage()));
+        }
+        int restored = users.restoreSessions();
+        state.start();
+        String recovered = STATE_RECOVERED.formatted(millisSince(start), restored, report);
+        System.out.println(recovered);        // monitor
+        logger.logEvent(recovered);
+    }
+
+    /**
+     * Восстанавливает состояние сервера, после чего слушает на заданном серверном порту
+     * за входящие подключения. Обнаружив таковое, передаёт его на рассмотрение пропускному контролю.
      * Повторяет это, пока флажок {@code listening} {@code = истинно}.
      */
     private void listen() {
+        recoverState();
         listening = true;
-        try (final ServerSocket serverSocket = new ServerSocket(PORT)) {
+        // сокет открывается через канал, чтобы принятые соединения могли писать и читать прямыми буферами
+        try (final ServerSocketChannel channel = ServerSocketChannel.open()) {
+            channel.bind(new InetSocketAddress(PORT), ACCEPT_BACKLOG);
+            final ServerSocket serverSocket = channel.socket();
+            this.serverSocket = serverSocket;
             while (listening) {
                 try  {
-                    Socket socket = serverSocket.accept();
-                    logger.logEvent("Соединение с " + socket);
-                    connections.execute(new Connection(this, socket));
+                    admit(serverSocket.accept());
 
                 } catch (IOException e) {
+                    if (!listening) break;
                     String error = "Ошибка получения соединения: " + e.getMessage();
                     System.out.println(error);
                     logger.logEvent(error);
@@ -176,39 +428,225 @@ public class Server {
     }
 
     /**
-     * Выполняет процедуру остановки Сервера: завершает сессию,
-     * закрывает соединения и останавливает логировщик.
+     * Поступает с принятым сокетом согласно решению пропускного контроля:
+     * запускает для него Соединение, оставляет ожидать в очереди или отказывает в подключении.
+     * @param socket принятый сокет.
+     */
+    private void admit(Socket socket) {
+        switch (admission.offer(socket)) {
+            case ADMITTED -> serve(socket);
+            case QUEUED -> logger.logEvent(CONNECTION_QUEUED.formatted(socket));
+            case REJECTED -> refuse(socket);
+        }
+    }
+
+    /**
+     * Запускает Соединение над допущенным сокетом в обойме подключений.
+     * Если в обойме нет места, Соединение передаётся {@link #busy(Connection)}.
+     * @param socket допущенный сокет.
+     */
+    private void serve(Socket socket) {
+        logger.logEvent("Соединение с " + socket);
+        connections.execute(new Connection(this, socket));
+    }
+
+    /**
+     * Отказ обоймы подключений: отвечает клиенту, что сервер занят, закрывает сокет
+     * и освобождает место, учтённое за ним пропускным контролем.
+     * @param connection Соединение, для которого не нашлось потока.
+     */
+    private void busy(Connection connection) {
+        admission.countRejected();
+        refuse(connection.getSocket());
+        admitWaiting(connection.getAddress());
+    }
+
+    /**
+     * Сообщает пропускному контролю об освободившемся месте и запускает Соединения
+     * для допущенных из очереди. Если сервер уже не слушает, очередь просто закрывается.
+     * @param freed адрес, с которого было освободившееся соединение.
+     */
+    private void admitWaiting(InetAddress freed) {
+        if (!listening)
+            admission.closeWaiting();
+        admission.release(freed).forEach(this::serve);
+    }
+
+    /**
+     * Отказывает в подключении: отсылает короткий стоп-сигнал о занятости сервера и закрывает сокет.
+     * Сообщение умещается в буфер сокета, так что поток приёма подключений на нём не задерживается.
+     * @param socket отклоняемый сокет.
+     */
+    private void refuse(Socket socket) {
+        logger.logEvent(CONNECTION_REFUSED.formatted(socket));
+        try (socket) {
+            ObjectOutputStream notice = new ObjectOutputStream(socket.getOutputStream());
+            notice.writeObject(new Delivery(Message.stopSign(SERVER_BUSY, null), null));
+            notice.flush();
+        } catch (IOException e) {
+            logger.logEvent(e.getMessage());
+        }
+    }
+
+    /**
+     * Выполняет процедуру остановки Сервера по этапам: прекращает приём подключений
+     * и рассылку проверочных сигналов, рассылает участникам уведомление о завершении, опустошает исходящие очереди
+     * (не дольше {@code DRAIN_TIMEOUT}), закрывает соединения, дожидается завершения
+     * их потоков (не дольше {@code THREADS_TIMEOUT}) и останавливает логировщик,
+     * дописав в лог всё, что осталось в очереди.
+     * Длительность каждого этапа протоколируется.
      */
     private void exit() {
+        long start = System.nanoTime();
+        timed("прекращение приёма подключений", this::stopAccepting);
+        timed("остановка пульса", heartbeat::stop);
+        timed("остановка сводки уведомлений о составе", notices::close);
+        timed("рассылка уведомления о завершении", users::announceClosing);
+        timed("опустошение исходящих очередей", this::drainConnections);
+        timed("закрытие соединений", this::closeConnections);
+        timed("завершение потоков соединений", this::stopConnectionThreads);
+        timed("остановка обоймы рассылки", fanOut::close);
+        timed("остановка отложенной записи", writes::close);
+        timed("закрытие почтовых ящиков", inboxes::close);
+        timed("сохранение состояния сервера", state::close);
+        timed("сохранение поискового указателя", search::close);
+        logger.logEvent(users.statistics());
+        if (config != null)
+            timed("остановка наблюдения за настройками", config::close);
+        logger.logEvent(SHUTDOWN_COMPLETE.formatted(millisSince(start)));
+
+        long loggerStop = System.nanoTime();
+        logger.stopLogging();
+        System.out.println(SHUTDOWN_PHASE.formatted("остановка логировщика", millisSince(loggerStop)));   // monitor
+    }
+
+    /**
+     * Выполняет один этап остановки сервера и протоколирует его длительность.
+     * @param phase  название этапа.
+     * @param action действие, составляющее этап.
+     */
+    private void timed(String phase, Runnable action) {
+        long start = System.nanoTime();
+        action.run();
+        logger.logEvent(SHUTDOWN_PHASE.formatted(phase, millisSince(start)));
+    }
+
+    /**
+     * Сообщает, сколько миллисекунд прошло с указанного момента.
+     * @param start момент отсчёта в наносекундах {@link System#nanoTime()}.
+     * @return прошедшее время в миллисекундах.
+     */
+    private static long millisSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Снимает флажок прослушивания и закрывает серверный сокет,
+     * тем самым разблокируя ожидание нового подключения.
+     */
+    private void stopAccepting() {
+        listening = false;
+        ServerSocket socket = serverSocket;
+        if (socket == null || socket.isClosed()) return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.logEvent(e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Дописывает в сокеты всё, что осталось в исходящих очередях открытых соединений, дожидаясь
+     * и записей, которые ведут другие потоки (в том числе отложенных окном ожидания).
+     * Соединения опустошаются параллельно, каждое – в своём потоке, до общего срока {@code DRAIN_TIMEOUT};
+     * то, что не успело уйти за это время, будет отброшено при закрытии сокетов.
+     */
+    private void drainConnections() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT);
+        ExecutorService drainers = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "drain");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<Boolean>> drains = opened.stream()
+                .map(connection -> drainers.submit(() -> connection.drain(deadline)))
+                .toList();
+        drainers.shutdown();
+        int undrained = 0;
+        for (Future<Boolean> drain : drains) {
+            try {
+                if (!drain.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS))
+                    undrained++;
+            } catch (TimeoutException e) {
+                undrained++;
+            } catch (ExecutionException e) {
+                undrained++;
+                logger.logEvent(e.getMessage());
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (undrained > 0)
+            logger.logEvent(DRAIN_TIMED_OUT.formatted(undrained, DRAIN_TIMEOUT));
+    }
+
+    /**
+     * Отключает зарегистрированных участников и закрывает все прочие
+     * открытые соединения (в том числе не завершившие регистрацию).
+     */
+    private void closeConnections() {
+        admission.closeWaiting();
         users.closeSession();
+        opened.forEach(Connection::closeSocket);
+    }
+
+    /**
+     * Останавливает обойму потоков соединений и ждёт их завершения не дольше
+     * {@code THREADS_TIMEOUT}, после чего прерывает оставшиеся.
+     */
+    private void stopConnectionThreads() {
+        connections.shutdown();
         try {
-            if (connections.awaitTermination(3, TimeUnit.SECONDS))
-                logger.logEvent("потоки соединений завершены");    //
-            else
-                logger.logEvent("потоки за три секунды не зашли");  //
+            if (!connections.awaitTermination(THREADS_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.logEvent(THREADS_TIMED_OUT.formatted(THREADS_TIMEOUT));
+                connections.shutdownNow();
+            }
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            connections.shutdownNow();
+            Thread.currentThread().interrupt();
         }
-        logger.stopLogging();
+    }
+
+    /**
+     * Учитывает Соединение как открытое.
+     * @param connection начавшее работу соединение.
+     */
+    void connectionOpened(Connection connection) {
+        opened.add(connection);
+    }
+
+    /**
+     * Снимает Соединение с учёта открытых.
+     * @param connection завершившее работу соединение.
+     */
+    void connectionClosed(Connection connection) {
+        opened.remove(connection);
+        admitWaiting(connection.getAddress());
     }
 
 
     /**
      * Проверяет, подходит ли полученный пароль, и, если да, то останавливает сервер
-     * путём выход из цикла прослушивания, выставляя соответствующий флажок
-     * и создавая фантомное подключение для провокации финальной итерации.
+     * путём выход из цикла прослушивания: выставляет соответствующий флажок
+     * и закрывает серверный сокет, разблокируя его ожидание на порту.
      * @param gotPassword байты, соответствующие паролю.
      */
     public void stopServer(byte[] gotPassword) {
         if (!Arrays.equals(PASSWORD, gotPassword)) return;
-        listening = false;
-        // виртуальное подключение к серверу, чтобы разблокировать его ожидание на порту
-        try {
-            new Socket(HOST, PORT).close();
-        } catch (IOException e) {
-            logger.logEvent(e.getMessage());
-            e.printStackTrace();
-        }
+        stopAccepting();
     }
 
 }
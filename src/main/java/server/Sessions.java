@@ -0,0 +1,479 @@
+package server;
+
+import common.Message;
+import common.PackedMessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Реестр сеансов участников. При регистрации каждому участнику выдаётся токен возобновления.
+ * Если связь с участником обрывается, его сеанс приостанавливается: имя остаётся за ним,
+ * а адресованные ему и общие сообщения копятся в ограниченном журнале пропущенного
+ * в упакованном виде {@link PackedMessage}.
+ * Предъявив токен в течение отведённого срока, участник возвращает себе имя и получает
+ * пропущенное; по истечении срока сеанс закрывается окончательно.
+ * <p>
+ * Сеанс помнит и номера последних сообщений участника, чтобы сообщение, повторно
+ * отправленное клиентом (например, после переподключения), не рассылалось дважды.
+ * <p>
+ * Сеансы с их журналами пропущенного переживают перезапуск сервера ({@link StateJournal}):
+ * открытие, закрытие, смена имени, возобновление и пополнение журналов записываются в журнал
+ * состояния, а после восстановления все сеансы оказываются приостановленными, так что клиенты
+ * возобновляют их по прежним токенам. Номера для отсева повторов не сохраняются.
+ */
+public class Sessions implements StateJournal.Part {
+    /**
+     * Сеанс одного участника.
+     */
+    private static class Session {
+        /**
+         * Токен, по которому сеанс может быть возобновлён.
+         */
+        final String token;
+        /**
+         * Имя, под которым участник зарегистрирован в этом сеансе.
+         */
+        String name;
+        /**
+         * Момент приостановки сеанса (по {@link System#nanoTime()}), либо {@code -1}, пока участник на связи.
+         */
+        long suspendedAt = -1;
+        /**
+         * Журнал сообщений, пропущенных за время приостановки, в упакованном виде.
+         */
+        final ArrayDeque<PackedMessage> missed = new ArrayDeque<>();
+        /**
+         * Номера последних сообщений участника для отсева повторов.
+         */
+        final DedupWindow recent;
+
+        Session(String token, String name, int dedupWindow) {
+            this.token = token;
+            this.name = name;
+            this.recent = new DedupWindow(dedupWindow);
+        }
+
+        boolean isSuspended() {
+            return suspendedAt >= 0;
+        }
+    }
+
+    /**
+     * Источник случайности для токенов.
+     */
+    private static final SecureRandom random = new SecureRandom();
+    /**
+     * Роды записей журнала состояния.
+     */
+    private static final byte OPEN = 1, CLOSE = 2, RENAME = 3, RESUME = 4, KEEP = 5, KEEP_ALL = 6;
+
+    /**
+     * Сеансы по токенам.
+     */
+    private final Map<String, Session> byToken = new HashMap<>();
+    /**
+     * Сеансы по именам участников.
+     */
+    private final Map<String, Session> byName = new HashMap<>();
+    /**
+     * Приостановленные сеансы по именам участников.
+     */
+    private final Map<String, Session> suspended = new HashMap<>();
+    /**
+     * Сколько миллисекунд приостановленный сеанс ждёт возобновления.
+     */
+    private long grace;
+    /**
+     * Наибольшая длина журнала пропущенного; при переполнении вытесняются самые старые.
+     */
+    private int backlogLimit;
+    /**
+     * Сколько номеров последних сообщений помнить для отсева повторов.
+     */
+    private int dedupWindow;
+    /**
+     * Журнал состояния, в который записываются изменения сеансов, либо {@code ничто}.
+     */
+    private StateJournal journal;
+
+    /**
+     * Создаёт пустой реестр сеансов.
+     * @param grace        сколько миллисекунд приостановленный сеанс ждёт возобновления.
+     * @param backlogLimit наибольшая длина журнала пропущенного.
+     * @param dedupWindow  сколько номеров последних сообщений участника помнить.
+     */
+    public Sessions(long grace, int backlogLimit, int dedupWindow) {
+        setLimits(grace, backlogLimit, dedupWindow);
+    }
+
+    /**
+     * Меняет срок ожидания, длину журнала и окно отсева повторов на ходу
+     * (новое окно действует для сеансов, открытых после изменения).
+     * @param grace        сколько миллисекунд приостановленный сеанс ждёт возобновления.
+     * @param backlogLimit наибольшая длина журнала пропущенного.
+     * @param dedupWindow  сколько номеров последних сообщений участника помнить.
+     */
+    public synchronized void setLimits(long grace, int backlogLimit, int dedupWindow) {
+        this.grace = Math.max(0, grace);
+        this.backlogLimit = Math.max(0, backlogLimit);
+        this.dedupWindow = Math.max(1, dedupWindow);
+    }
+
+    /**
+     * Открывает сеанс для только что зарегистрированного участника.
+     * @param name зарегистрированное имя.
+     * @return токен возобновления нового сеанса.
+     */
+    public synchronized String open(String name) {
+        close(name);
+        byte[] bytes = new byte[18];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Session session = new Session(token, name, dedupWindow);
+        byToken.put(token, session);
+        byName.put(name, session);
+        record(out -> {
+            out.writeByte(OPEN);
+            out.writeUTF(name);
+            out.writeUTF(token);
+        });
+        return token;
+    }
+
+    /**
+     * Окончательно закрывает сеанс участника (при добровольном выходе).
+     * @param name имя участника.
+     */
+    public synchronized void close(String name) {
+        Session session = byName.remove(name);
+        if (session == null) return;
+        byToken.remove(session.token);
+        suspended.remove(name);
+        record(out -> {
+            out.writeByte(CLOSE);
+            out.writeUTF(name);
+        });
+    }
+
+    /**
+     * Переносит сеанс на новое имя участника.
+     * @param oldName прежнее имя.
+     * @param newName новое имя.
+     */
+    public synchronized void rename(String oldName, String newName) {
+        Session session = byName.remove(oldName);
+        if (session == null) return;
+        session.name = newName;
+        byName.put(newName, session);
+        record(out -> {
+            out.writeByte(RENAME);
+            out.writeUTF(oldName);
+            out.writeUTF(newName);
+        });
+    }
+
+    /**
+     * Приостанавливает сеанс участника, связь с которым оборвалась.
+     * @param name имя участника.
+     * @return {@code истинно}, если у участника был сеанс и теперь он приостановлен.
+     */
+    public synchronized boolean suspend(String name) {
+        Session session = byName.get(name);
+        if (session == null || grace == 0) {
+            close(name);
+            return false;
+        }
+        session.suspendedAt = System.nanoTime();
+        suspended.put(name, session);
+        return true;
+    }
+
+    /**
+     * Сообщает, закреплено ли имя за приостановленным сеансом.
+     * @param name проверяемое имя.
+     * @return {@code истинно}, если имя ожидает возобновления своего сеанса.
+     */
+    public synchronized boolean isReserved(String name) {
+        return suspended.containsKey(name);
+    }
+
+    /**
+     * Сообщает, есть ли приостановленные сеансы, то есть стоит ли вообще упаковывать
+     * общее сообщение для журналов пропущенного.
+     * @return {@code истинно}, если хотя бы один сеанс приостановлен.
+     */
+    public synchronized boolean hasSuspended() {
+        return !suspended.isEmpty();
+    }
+
+    /**
+     * Возобновляет сеанс, если токен действителен и принадлежит сеансу с указанным именем.
+     * Сеанс при этом может быть как приостановленным, так и ещё числиться на связи
+     * (клиент переподключился раньше, чем сервер заметил обрыв).
+     * @param name  имя, под которым участник просит возобновления.
+     * @param token предъявленный токен.
+     * @return пропущенные сообщения в порядке поступления (возможно, ни одного),
+     * либо {@code ничто}, если возобновление невозможно.
+     */
+    public synchronized List<Message> resume(String name, String token) {
+        Session session = token == null ? null : byToken.get(token);
+        if (session == null || !session.name.equals(name)) return null;
+        List<Message> missed = new ArrayList<>(session.missed.size());
+        for (PackedMessage packed : session.missed)
+            missed.add(packed.unpack());
+        session.missed.clear();
+        session.suspendedAt = -1;
+        suspended.remove(name);
+        record(out -> {
+            out.writeByte(RESUME);
+            out.writeUTF(name);
+        });
+        return missed;
+    }
+
+    /**
+     * Заносит сообщение в журнал пропущенного указанного участника, если его сеанс приостановлен.
+     * @param message   пропущенное сообщение.
+     * @param recipient имя участника.
+     * @return {@code истинно}, если сообщение сохранено для участника.
+     */
+    public synchronized boolean keepFor(PackedMessage message, String recipient) {
+        Session session = suspended.get(recipient);
+        if (session == null) return false;
+        append(session, message);
+        record(out -> {
+            out.writeByte(KEEP);
+            out.writeUTF(recipient);
+            message.writeTo(out);
+        });
+        return true;
+    }
+
+    /**
+     * Заносит общее сообщение в журналы тех приостановленных сеансов, которым оно предназначено;
+     * все журналы хранят один и тот же упакованный экземпляр.
+     * @param message    общее сообщение.
+     * @param recipients каким участникам сообщение предназначено (например, всем, кроме автора).
+     */
+    public synchronized void keepForAll(PackedMessage message, Predicate<String> recipients) {
+        List<String> kept = new ArrayList<>();
+        for (Session session : suspended.values())
+            if (recipients.test(session.name)) {
+                append(session, message);
+                kept.add(session.name);
+            }
+        if (kept.isEmpty()) return;
+        record(out -> {
+            out.writeByte(KEEP_ALL);
+            message.writeTo(out);
+            out.writeInt(kept.size());
+            for (String name : kept)
+                out.writeUTF(name);
+        });
+    }
+
+    /**
+     * Отмечает номер сообщения участника и сообщает, не повтор ли это.
+     * @param name имя отправителя.
+     * @param id   номер сообщения, присвоенный клиентом ({@code 0} – без номера).
+     * @return {@code истинно}, если сообщение с таким номером от участника ещё не поступало
+     * (или у участника нет сеанса); {@code ложно} для повтора.
+     */
+    public boolean firstSeen(String name, long id) {
+        Session session;
+        synchronized (this) {
+            session = byName.get(name);
+        }
+        return session == null || session.recent.add(id);
+    }
+
+    /**
+     * Закрывает приостановленные сеансы, срок ожидания которых истёк.
+     * @return имена участников, чьи сеансы закрыты.
+     */
+    public synchronized List<String> expire() {
+        List<String> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        Iterator<Session> iterator = suspended.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if ((now - session.suspendedAt) / 1_000_000 < grace) continue;
+            iterator.remove();
+            byName.remove(session.name);
+            byToken.remove(session.token);
+            expired.add(session.name);
+        }
+        for (String name : expired)
+            record(out -> {
+                out.writeByte(CLOSE);
+                out.writeUTF(name);
+            });
+        return expired;
+    }
+
+    /**
+     * Приостанавливает все сеансы, восстановленные после перезапуска: их владельцы
+     * ещё не переподключились. Если ожидание отключено настройками, сеансы закрываются.
+     * @return имена участников, чьи сеансы теперь ожидают возобновления.
+     */
+    public synchronized List<String> suspendAll() {
+        List<String> restored = new ArrayList<>(byName.keySet());
+        if (grace == 0) {
+            restored.forEach(this::close);
+            return List.of();
+        }
+        long now = System.nanoTime();
+        for (Session session : byName.values()) {
+            session.suspendedAt = now;
+            suspended.put(session.name, session);
+        }
+        return restored;
+    }
+
+    /*
+        Сохранение состояния.
+     */
+    @Override
+    public byte tag() {
+        return 2;
+    }
+
+    @Override
+    public void journalTo(StateJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Записывает сеансы с их журналами пропущенного. Общее сообщение, хранимое многими
+     * журналами, записывается один раз, а журналы ссылаются на него по номеру.
+     * @param out поток снимка.
+     * @throws IOException при ошибке записи.
+     */
+    @Override
+    public void save(DataOutputStream out) throws IOException {
+        Map<PackedMessage, Integer> numbered = new IdentityHashMap<>();
+        List<PackedMessage> distinct = new ArrayList<>();
+        for (Session session : byName.values())
+            for (PackedMessage message : session.missed)
+                if (numbered.putIfAbsent(message, distinct.size()) == null)
+                    distinct.add(message);
+        out.writeInt(distinct.size());
+        for (PackedMessage message : distinct)
+            message.writeTo(out);
+        out.writeInt(byName.size());
+        for (Session session : byName.values()) {
+            out.writeUTF(session.name);
+            out.writeUTF(session.token);
+            out.writeInt(session.missed.size());
+            for (PackedMessage message : session.missed)
+                out.writeInt(numbered.get(message));
+        }
+    }
+
+    @Override
+    public void load(DataInputStream in) throws IOException {
+        byName.clear();
+        byToken.clear();
+        suspended.clear();
+        PackedMessage[] distinct = new PackedMessage[in.readInt()];
+        for (int i = 0; i < distinct.length; i++)
+            distinct[i] = PackedMessage.readFrom(in, String::intern);
+        for (int count = in.readInt(); count > 0; count--) {
+            Session session = restore(in.readUTF(), in.readUTF());
+            for (int missed = in.readInt(); missed > 0; missed--)
+                session.missed.add(distinct[in.readInt()]);
+        }
+    }
+
+    /**
+     * Воспроизводит запись журнала. Пополнение журналов пропущенного воспроизводится
+     * для сеанса независимо от того, приостановлен ли он: приостановка не записывается,
+     * а после восстановления приостанавливаются все сеансы.
+     * @param in тело записи.
+     * @throws IOException при ошибке чтения.
+     */
+    @Override
+    public void replay(DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+            case OPEN -> {
+                String name = in.readUTF();
+                byName.remove(name);
+                byToken.values().removeIf(session -> session.name.equals(name));
+                restore(name, in.readUTF());
+            }
+            case CLOSE -> {
+                Session session = byName.remove(in.readUTF());
+                if (session != null) byToken.remove(session.token);
+            }
+            case RENAME -> {
+                Session session = byName.remove(in.readUTF());
+                String newName = in.readUTF();
+                if (session == null) return;
+                session.name = newName;
+                byName.put(newName, session);
+            }
+            case RESUME -> {
+                Session session = byName.get(in.readUTF());
+                if (session != null) session.missed.clear();
+            }
+            case KEEP -> {
+                Session session = byName.get(in.readUTF());
+                PackedMessage message = PackedMessage.readFrom(in, String::intern);
+                if (session != null) append(session, message);
+            }
+            case KEEP_ALL -> {
+                PackedMessage message = PackedMessage.readFrom(in, String::intern);
+                for (int count = in.readInt(); count > 0; count--) {
+                    Session session = byName.get(in.readUTF());
+                    if (session != null) append(session, message);
+                }
+            }
+            default -> throw new IOException("Неизвестная запись журнала сеансов");
+        }
+    }
+
+    /**
+     * Заводит сеанс, восстановленный из снимка или журнала.
+     * @param name  имя участника.
+     * @param token токен возобновления.
+     * @return восстановленный сеанс.
+     */
+    private Session restore(String name, String token) {
+        Session session = new Session(token, name.intern(), dedupWindow);
+        byToken.put(token, session);
+        byName.put(session.name, session);
+        return session;
+    }
+
+    /**
+     * Ставит в журнал состояния запись об изменении, если журнал подключён.
+     * @param body тело записи.
+     */
+    private void record(StateJournal.Body body) {
+        if (journal != null) journal.record(this, body);
+    }
+
+    /**
+     * Добавляет сообщение в журнал сеанса, вытесняя самые старые при переполнении.
+     * @param session сеанс.
+     * @param message сообщение.
+     */
+    private void append(Session session, PackedMessage message) {
+        if (backlogLimit == 0) return;
+        while (session.missed.size() >= backlogLimit)
+            session.missed.poll();
+        session.missed.add(message);
+    }
+}
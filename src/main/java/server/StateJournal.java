@@ -0,0 +1,484 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Снимок и журнал изменений состояния сервера, по которым оно восстанавливается после перезапуска.
+ * <p>
+ * Составные части сервера, чьё состояние должно переживать перезапуск ({@link Part}), о каждом
+ * изменении делают запись в журнал, находясь под своим замком; запись лишь ставится в очередь
+ * с очередным сквозным номером, а на диск её дописывает отдельный поток, так что работа с участниками
+ * диском не задерживается. Очередь не ограничена: поток записи сам берёт замки частей
+ * для снимка, и ожидание места в очереди под замком части могло бы его навсегда остановить.
+ * Набрав заданное число записей или по истечении заданного срока, тот же поток начинает новый файл журнала и снимает состояние всех частей разом, держа
+ * все их замки: все записи с номерами не больше отметки снимка в нём уже учтены, все большие – нет.
+ * Записав снимок, поток удаляет файлы журнала, целиком им покрытые.
+ * <p>
+ * При запуске сервер, ещё не принимая подключений, загружает снимок и воспроизводит поверх
+ * него записи журнала с номерами больше отметки снимка. Недописанная при аварии последняя
+ * запись отбрасывается.
+ */
+public class StateJournal implements AutoCloseable {
+    /**
+     * Составная часть сервера, чьё состояние сохраняется.
+     * Методы снимка и воспроизведения вызываются под замком (монитором) самой части.
+     */
+    public interface Part {
+        /**
+         * Метка, под которой часть записывается в снимок и журнал.
+         * @return метка, уникальная среди частей.
+         */
+        byte tag();
+
+        /**
+         * Запоминает журнал, в который часть будет записывать изменения.
+         * @param journal журнал.
+         */
+        void journalTo(StateJournal journal);
+
+        /**
+         * Записывает всё состояние части.
+         * @param out поток снимка.
+         * @throws IOException при ошибке записи.
+         */
+        void save(DataOutputStream out) throws IOException;
+
+        /**
+         * Заменяет состояние части прочитанным из снимка.
+         * @param in поток снимка.
+         * @throws IOException при ошибке чтения.
+         */
+        void load(DataInputStream in) throws IOException;
+
+        /**
+         * Воспроизводит одну запись журнала, сделанную этой частью.
+         * @param in тело записи.
+         * @throws IOException при ошибке чтения.
+         */
+        void replay(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Тело записи журнала.
+     */
+    @FunctionalInterface
+    public interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Запись журнала, ждущая записи на диск.
+     */
+    private record Entry(long number, byte tag, byte[] body) { }
+
+    /**
+     * Метка начала файла снимка.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x534E4150;
+    /**
+     * Имя файла снимка.
+     */
+    private static final String SNAPSHOT = "snapshot.bin";
+    /**
+     * Начало и расширение имён файлов журнала; между ними – порядковый номер файла.
+     */
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    /**
+     * Сколько миллисекунд поток записи ждёт новых записей, прежде чем проверить срок снимка.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * Каталог снимка и журнала.
+     */
+    private final Path directory;
+    /**
+     * Сохраняемые части в порядке взятия их замков.
+     */
+    private final Part[] parts;
+    /**
+     * Части по меткам.
+     */
+    private final Map<Byte, Part> byTag = new HashMap<>();
+    /**
+     * Записи, ждущие записи на диск.
+     */
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    /**
+     * Сквозной номер последней записи.
+     */
+    private final AtomicLong numbers = new AtomicLong();
+    /**
+     * Поток записи журнала и снимков.
+     */
+    private Thread writer;
+    /**
+     * Работает ли поток записи.
+     */
+    private volatile boolean running;
+    /**
+     * Сколько записей журнала набирать до очередного снимка.
+     */
+    private volatile int snapshotRecords;
+    /**
+     * Не реже какого срока в миллисекундах делать снимок, если с прошлого были изменения.
+     */
+    private volatile long snapshotInterval;
+    /**
+     * Порядковый номер текущего файла журнала.
+     */
+    private long fileNumber;
+    /**
+     * Текущий файл журнала.
+     */
+    private DataOutputStream journal;
+    /**
+     * Сколько записей сделано с последнего снимка. Меняется только потоком записи.
+     */
+    private long sinceSnapshot;
+    /**
+     * Момент последнего снимка по {@link System#nanoTime()}.
+     */
+    private long lastSnapshot;
+    /**
+     * Сколько записей дописано в журнал и сброшено в файл.
+     */
+    private final LongAdder written = new LongAdder();
+    /**
+     * Наибольшая длина очереди, замеченная потоком записи.
+     */
+    private volatile int peakQueue;
+    /**
+     * Сколько снимков сделано и сколько миллисекунд занял последний.
+     */
+    private volatile long snapshots, snapshotMillis;
+
+    /**
+     * Создаёт журнал над каталогом; состояние не восстанавливается и запись не начинается,
+     * пока не вызваны {@link #recover()} и {@link #start()}.
+     * @param directory        каталог снимка и журнала.
+     * @param snapshotRecords  сколько записей набирать до очередного снимка.
+     * @param snapshotInterval не реже какого срока в миллисекундах делать снимок.
+     * @param parts            сохраняемые части.
+     */
+    public StateJournal(Path directory, int snapshotRecords, long snapshotInterval, Part... parts) {
+        this.directory = directory;
+        this.parts = parts.clone();
+        for (Part part : parts) {
+            if (byTag.put(part.tag(), part) != null)
+                throw new IllegalArgumentException("Метка части повторяется: " + part.tag());
+            part.journalTo(this);
+        }
+        setLimits(snapshotRecords, snapshotInterval);
+    }
+
+    /**
+     * Меняет частоту снимков на ходу.
+     * @param snapshotRecords  сколько записей набирать до очередного снимка.
+     * @param snapshotInterval не реже какого срока в миллисекундах делать снимок.
+     */
+    public void setLimits(int snapshotRecords, long snapshotInterval) {
+        this.snapshotRecords = Math.max(1, snapshotRecords);
+        this.snapshotInterval = Math.max(1000, snapshotInterval);
+    }
+
+    /**
+     * Ставит в очередь запись об изменении части. Вызывается частью под её замком,
+     * после того как изменение сделано, – так порядок номеров совпадает с порядком изменений.
+     * Пока журнал не запущен, ничего не делает.
+     * @param part часть, чьё состояние изменилось.
+     * @param body тело записи.
+     */
+    public void record(Part part, Body body) {
+        if (!running) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            body.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Запись журнала не сложилась", e);
+        }
+        queue.add(new Entry(numbers.incrementAndGet(), part.tag(), bytes.toByteArray()));
+    }
+
+    /**
+     * Восстанавливает состояние частей из снимка и журнала.
+     * Вызывается при запуске сервера до {@link #start()}.
+     * @return отчёт: сколько записей загружено из снимка и воспроизведено из журнала.
+     */
+    public String recover() {
+        long cut = 0;
+        Path snapshot = directory.resolve(SNAPSHOT);
+        String loaded = "снимка нет";
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                if (in.readInt() != SNAPSHOT_MAGIC)
+                    throw new IOException("не снимок состояния");
+                cut = in.readLong();
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Part part = byTag.get(in.readByte());
+                    byte[] state = new byte[in.readInt()];
+                    in.readFully(state);
+                    if (part != null)
+                        synchronized (part) {
+                            part.load(body(state));
+                        }
+                }
+                loaded = "снимок по запись %d, %d КБ".formatted(cut, Files.size(snapshot) / 1024);
+            } catch (IOException e) {
+                loaded = "снимок не читается: " + e.getMessage();
+                System.out.println(loaded);
+                cut = 0;
+            }
+        }
+        long replayed = 0, last = cut;
+        for (Map.Entry<Long, Path> file : journalFiles().entrySet()) {
+            fileNumber = Math.max(fileNumber, file.getKey());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.getValue())))) {
+                while (true) {
+                    long number;
+                    byte tag;
+                    byte[] state;
+                    try {
+                        number = in.readLong();
+                        tag = in.readByte();
+                        state = new byte[in.readInt()];
+                        in.readFully(state);
+                    } catch (EOFException e) {
+                        break;      // конец файла либо недописанная при аварии запись
+                    }
+                    last = Math.max(last, number);
+                    Part part = byTag.get(tag);
+                    if (number <= cut || part == null) continue;
+                    synchronized (part) {
+                        part.replay(body(state));
+                    }
+                    replayed++;
+                }
+            } catch (IOException e) {
+                System.out.println("Журнал состояния %s не читается: %s".formatted(file.getValue(), e.getMessage()));
+            }
+        }
+        numbers.set(last);
+        return "%s, из журнала воспроизведено записей: %d".formatted(loaded, replayed);
+    }
+
+    /**
+     * Снимает восстановленное состояние, так что журнал, по которому шло восстановление,
+     * больше не нужен, и запускает поток записи.
+     */
+    public synchronized void start() {
+        if (running) return;
+        try {
+            snapshot();
+        } catch (IOException e) {
+            System.out.println("Снимок состояния не записан: " + e.getMessage());
+            e.printStackTrace();
+        }
+        running = true;
+        writer = new Thread(this::write, "state-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Дописывает очередь, делает последний снимок и останавливает поток записи.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (!running) return;
+            running = false;
+            thread = writer;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    public long getSnapshots() {
+        return snapshots;
+    }
+
+    @Override
+    public String toString() {
+        return "записей: %d, в очереди: %d (наибольшая %d), снимков: %d (последний %d мс)"
+                .formatted(written.sum(), queue.size(), peakQueue, snapshots, snapshotMillis);
+    }
+
+    /*
+        Внутренние вспомогательные методы.
+     */
+    /**
+     * Цикл потока записи: дописывает записи пачками, сбрасывая файл, когда очередь опустела,
+     * и делает снимки по числу записей или сроку; по остановке дописывает остаток и делает последний снимок.
+     */
+    private void write() {
+        lastSnapshot = System.nanoTime();
+        try {
+            while (running || !queue.isEmpty()) {
+                Entry entry = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                peakQueue = Math.max(peakQueue, queue.size() + (entry == null ? 0 : 1));
+                int appended = 0;
+                for (; entry != null; entry = queue.poll(), appended++)
+                    append(entry);
+                if (journal != null) journal.flush();
+                written.add(appended);
+                long age = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSnapshot);
+                if (sinceSnapshot >= snapshotRecords || sinceSnapshot > 0 && age >= snapshotInterval)
+                    snapshot();
+            }
+            if (sinceSnapshot > 0) snapshot();
+        } catch (IOException e) {
+            System.out.println("Журнал состояния не пишется: " + e.getMessage());
+            e.printStackTrace();
+            running = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                if (journal != null) journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Дописывает запись в текущий файл журнала, открывая его при необходимости.
+     * @param entry запись.
+     * @throws IOException при ошибке записи.
+     */
+    private void append(Entry entry) throws IOException {
+        if (journal == null) {
+            Files.createDirectories(directory);
+            journal = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(directory.resolve(JOURNAL_PREFIX + (++fileNumber) + JOURNAL_SUFFIX))));
+        }
+        journal.writeLong(entry.number());
+        journal.writeByte(entry.tag());
+        journal.writeInt(entry.body().length);
+        journal.write(entry.body());
+        sinceSnapshot++;
+    }
+
+    /**
+     * Закрывает текущий файл журнала (следующие записи пойдут в новый), снимает состояние
+     * всех частей под их замками, надёжно записывает снимок и удаляет покрытые им файлы журнала.
+     * @throws IOException при ошибке записи.
+     */
+    private void snapshot() throws IOException {
+        long start = System.nanoTime();
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        long covered = fileNumber;
+        List<byte[]> states = new ArrayList<>(parts.length);
+        long cut = underLocks(0, states);
+        Files.createDirectories(directory);
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(cut);
+            out.writeInt(parts.length);
+            for (int i = 0; i < parts.length; i++) {
+                out.writeByte(parts[i].tag());
+                out.writeInt(states.get(i).length);
+                out.write(states.get(i));
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        for (Map.Entry<Long, Path> old : journalFiles().headMap(covered, true).entrySet())
+            Files.deleteIfExists(old.getValue());
+        sinceSnapshot = 0;
+        lastSnapshot = System.nanoTime();
+        snapshots++;
+        snapshotMillis = TimeUnit.NANOSECONDS.toMillis(lastSnapshot - start);
+    }
+
+    /**
+     * Берёт замки частей по порядку и, держа все, снимает их состояние и отметку снимка.
+     * @param index  с какой части продолжать.
+     * @param states куда складывать снятые состояния.
+     * @return номер последней записи, учтённой в снимке.
+     * @throws IOException при ошибке сериализации.
+     */
+    private long underLocks(int index, List<byte[]> states) throws IOException {
+        if (index == parts.length) {
+            long cut = numbers.get();
+            for (Part part : parts) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (DataOutputStream out = new DataOutputStream(bytes)) {
+                    part.save(out);
+                }
+                states.add(bytes.toByteArray());
+            }
+            return cut;
+        }
+        synchronized (parts[index]) {
+            return underLocks(index + 1, states);
+        }
+    }
+
+    /**
+     * Перечисляет файлы журнала по их порядковым номерам.
+     * @return файлы журнала по возрастанию номеров.
+     */
+    private TreeMap<Long, Path> journalFiles() {
+        TreeMap<Long, Path> found = new TreeMap<>();
+        if (!Files.isDirectory(directory)) return found;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, JOURNAL_PREFIX + "*" + JOURNAL_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    found.put(Long.parseLong(name.substring(JOURNAL_PREFIX.length(),
+                            name.length() - JOURNAL_SUFFIX.length())), file);
+                } catch (NumberFormatException ignored) {
+                    // посторонний файл
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Каталог журнала состояния не читается: " + e.getMessage());
+        }
+        return found;
+    }
+
+    private static DataInputStream body(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+}
@@ -7,9 +7,16 @@ public class TextConstants {
             Доступные команды:
                 /reg <имя>      = зарегистрироваться под именем
                 /users          = получить список подключённых к переговорной
+                /users <начало> [<страница>] = найти участников по началу имени
                 @<имя> <текст>  = личное сообщение собеседнику
+                @<начало>* <текст> = личное сообщение, имя дополняется сервером
+                /search <слова> = найти сообщения беседы, содержащие все слова
+                /ignore <имя>   = не получать сообщений участника (повторно – снова получать)
+                /ignore         = кого вы игнорируете
+                /mute           = заглушить общую беседу или вернуть её
+                /stats          = статистика сервера
                 /exit           = выйти из комнаты
-            %s""");
+            Подключено участников: %d""");
 
     public static final String ENTER_USER = "К беседе присоединяется %s!";
     public static final String CLOSING_TXT = "Сервер завершает работу!";
@@ -19,12 +26,84 @@ public class TextConstants {
     public static final String REGISTRATION_SUCCESS = "Имя %s зарегистрировано для %s";
     public static final String REGISTRATION_WARNING = "Зарегистрировать имя %s не получилось, попробуйте другое!";
     public static final String REGISTRATION_REJECTED = "Отказ в регистрации имени %s для %s";
+    public static final String RESUME_SUCCESS = "Сеанс %s возобновлён для %s, пропущено сообщений: %d";
+    public static final String RESUME_REJECTED = "Отказ в возобновлении сеанса %s для %s";
+    public static final String SESSION_RESUMED = "Сеанс возобновлён. Пропущено сообщений: %d";
+    public static final String SESSION_SUSPENDED = "Сеанс участника %s приостановлен в ожидании возобновления";
+    public static final String SESSION_EXPIRED = "Сеанс участника %s не был возобновлён вовремя и закрыт";
     public static final String CHANGE_SUCCESS = "%s меняет имя на %s!";
     public static final String CHANGE_FAILED = "Сменить имя на %s не получилось!";
 
 
+    public static final String DUPLICATE_DROPPED = "Сообщение %d от %s уже было принято, повтор не рассылается";
+
+
+    public static final String SERVER_BUSY = "Сервер перегружен, попробуйте подключиться позже.";
+    public static final String CONNECTION_QUEUED = "Соединение %s ожидает места в очереди";
+    public static final String CONNECTION_REFUSED = "Отказ в подключении %s: сервер перегружен";
+
+
+    public static final String INBOX_STORED = "Участник %s не в сети, сообщение будет доставлено, когда он подключится.";
+    public static final String INBOX_FULL = "Почтовый ящик участника %s переполнен, сообщение не сохранено.";
+    public static final String INBOX_FAILED = "Сообщение для участника %s не удалось сохранить.";
+    public static final String INBOX_REFUSED = "Для участника %s нет почтового ящика, а новых сейчас не заводится: сообщение не сохранено.";
+    public static final String INBOX_DELIVERED = "Пока вас не было, вам написали. Сообщений: %d";
+    public static final String USERS_FOUND = "Участники на «%s», страница %d:\n%s";
+    public static final String USERS_MORE = "\nДальше: /users %s %d";
+    public static final String USERS_NOT_FOUND = "Участников на «%s» не найдено (страница %d).";
+    public static final String COMPLETION_NONE = "Нет участников, чьё имя начинается на «%s», сообщение не доставлено.";
+    public static final String COMPLETION_AMBIGUOUS = "Начало «%s» подходит нескольким участникам (%s), сообщение не доставлено.";
+    public static final String SEARCH_FOUND = "Найдено по запросу «%s» (сначала новые): %d\n%s";
+    public static final String SEARCH_NOTHING = "По запросу «%s» ничего не найдено.";
+    public static final String SEARCH_FAILED = "Поиск по запросу «%s» не удался.";
+    public static final String IGNORE_ON = "Сообщения участника %s вам больше не доставляются. Отменить: /ignore %s";
+    public static final String IGNORE_OFF = "Сообщения участника %s снова доставляются вам.";
+    public static final String IGNORE_SELF = "Игнорировать самого себя нельзя.";
+    public static final String IGNORE_UNKNOWN = "Участника %s нет в беседе, игнорировать некого.";
+    public static final String IGNORE_LIST = "Вы игнорируете: %s";
+    public static final String IGNORE_NOBODY = "Вы никого не игнорируете.";
+    public static final String IGNORED_DROPPED = "Частное сообщение от %s для %s не доставлено: получатель игнорирует отправителя";
+    public static final String MUTE_ON = "Общая беседа заглушена: доставляются только личные и серверные сообщения. Вернуть: /mute";
+    public static final String MUTE_OFF = "Общая беседа снова доставляется вам.";
+    public static final String SERVER_STATS = """
+            Статистика сервера:
+            принято сообщений: %d
+            участников в сети: %d
+            обойма соединений: %s
+            буферы ввода-вывода: %s
+            объединение записей: %s
+            рассылка одного сообщения: %s
+            поисковый указатель: %s
+            игнорирование: %s
+            уведомления о составе: %s
+            журнал состояния: %s""";
+    public static final String NOT_DELIVERABLE = "Имя %s недопустимо, сообщение не может быть доставлено.";
+
+
     public static final String USER_LEAVING = "%s оставляет беседу.";
+    public static final String PRESENCE_SUMMARY = "Состав беседы изменился: %s.";
+    public static final String SUMMARY_JOINED = "+%d присоединились (%s)";
+    public static final String SUMMARY_LEFT = "−%d ушли (%s)";
+    public static final String SUMMARY_RENAMED = "%d сменили имя (%s)";
+    public static final String SUMMARY_MORE = " и ещё %d";
     public static final String CONNECTION_CLOSING = "Соединение закрывается. Пока!";
     public static final String DISCONNECT_FAILED = "Не удалось отключить участника: %s";
+    public static final String CONNECTION_LOST = "Связь с участником %s оборвалась";
+    public static final String PEER_SILENT = "Участник %s не ответил на %d проверочных сигналов подряд";
+
+
+    public static final String SHUTDOWN_PHASE = "Остановка сервера, этап «%s»: %d мс";
+    public static final String SHUTDOWN_COMPLETE = "Сервер остановлен за %d мс";
+    public static final String DRAIN_TIMED_OUT = "Исходящие очереди соединений (%d) не опустошены за %d мс, остаток отброшен";
+    public static final String INBOX_ORPHANS_REMOVED = "Удалено файлов почтовых ящиков, оставшихся без ящика: %d";
+    public static final String INBOX_RECONCILE_FAILED = "Файлы почтовых ящиков не удалось сверить: %s";
+    public static final String SEARCH_DROPPED = "Поисковый указатель не успевает, сообщения не индексируются: пропущено всего %d (сообщается не чаще раза в %d с)";
+    public static final String SEARCH_SEGMENT_NOT_WRITTEN = "Сегмент поискового указателя не записан: %s";
+    public static final String SEARCH_SEGMENTS_NOT_MERGED = "Сегменты поискового указателя не слиты: %s";
+    public static final String SEARCH_SEGMENT_UNREADABLE = "Сегмент поискового указателя %s не читается: %s";
+    public static final String SEARCH_DIRECTORY_UNREADABLE = "Каталог поискового указателя не читается: %s";
+    public static final String STATE_RECOVERED = "Состояние сервера восстановлено за %d мс, сеансов ожидают возобновления: %d (%s)";
+    public static final String SETTINGS_RELOADED = "Настройки сервера перечитаны из файла";
+    public static final String THREADS_TIMED_OUT = "Потоки соединений не завершились за %d мс и будут прерваны";
 
 }
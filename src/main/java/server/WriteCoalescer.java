@@ -0,0 +1,165 @@
+package server;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Общая для всех соединений служба объединения записей. Кадры (записанные сообщения),
+ * скопившиеся в исходящей очереди соединения, уходят в сокет одной собирающей записью;
+ * если задано окно ожидания, первый обычный кадр после простоя не отсылается сразу, а ждёт
+ * окно в потоке этой службы, чтобы за это время к нему присоединились следующие.
+ * Служба же ведёт счёт кадров и системных вызовов записи, по которому видно,
+ * сколько кадров в среднем уходит за один вызов, и счёт обгонов срочной полосой обычной.
+ */
+public class WriteCoalescer implements AutoCloseable {
+    /**
+     * Планировщик отложенных записей.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+    /**
+     * Сколько наносекунд первый кадр после простоя ждёт попутчиков; {@code 0} – не ждёт.
+     */
+    private volatile long window;
+    /**
+     * Сколько кадров отослано.
+     */
+    private final LongAdder frames = new LongAdder();
+    /**
+     * Сколько системных вызовов записи для этого понадобилось.
+     */
+    private final LongAdder writes = new LongAdder();
+    /**
+     * Сколько раз срочное сообщение обогнало поставленные раньше него обычные.
+     */
+    private final LongAdder overtakes = new LongAdder();
+
+    /**
+     * Создаёт службу объединения записей.
+     * @param threads сколько потоков выполняют отложенные записи.
+     * @param window  окно ожидания в микросекундах.
+     */
+    public WriteCoalescer(int threads, long window) {
+        AtomicInteger counter = new AtomicInteger();
+        timer = new ScheduledThreadPoolExecutor(Math.max(1, threads), task -> {
+            Thread thread = new Thread(task, "flusher-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        setLimits(threads, window);
+    }
+
+    /**
+     * Меняет число потоков и окно ожидания на ходу.
+     * @param threads сколько потоков выполняют отложенные записи.
+     * @param window  окно ожидания в микросекундах.
+     */
+    public void setLimits(int threads, long window) {
+        timer.setCorePoolSize(Math.max(1, threads));
+        this.window = TimeUnit.MICROSECONDS.toNanos(Math.max(0, window));
+    }
+
+    /**
+     * Сообщает, ждёт ли первый обычный кадр после простоя попутчиков.
+     * @return {@code истинно}, если окно ожидания не нулевое.
+     */
+    boolean isDelaying() {
+        return window > 0 && !timer.isShutdown();
+    }
+
+    /**
+     * Назначает отложенную запись по истечении окна ожидания.
+     * Если служба уже остановлена, запись выполняется сразу в вызывающем потоке.
+     * @param flush запись накопленного.
+     */
+    void schedule(Runnable flush) {
+        try {
+            timer.schedule(flush, window, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            flush.run();
+        }
+    }
+
+    /**
+     * Выполняет отсылку в потоке службы, не задерживая вызывающего.
+     * Если служба уже остановлена, отсылка выполняется сразу в вызывающем потоке.
+     * @param flush запись накопленного.
+     */
+    void execute(Runnable flush) {
+        try {
+            timer.execute(flush);
+        } catch (RejectedExecutionException e) {
+            flush.run();
+        }
+    }
+
+    /**
+     * Назначает действие на исход срока (например, принудительное закрытие соединения,
+     * писатель которого завис). Если служба уже остановлена, действие выполняется сразу.
+     * @param action действие.
+     * @param millis срок в миллисекундах.
+     */
+    void deadline(Runnable action, long millis) {
+        try {
+            timer.schedule(action, millis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            action.run();
+        }
+    }
+
+    /**
+     * Учитывает кадры, отосланные одной записью.
+     * @param frameCount сколько кадров.
+     */
+    void recordFrames(int frameCount) {
+        frames.add(frameCount);
+    }
+
+    /**
+     * Учитывает системные вызовы, которых потребовала одна собирающая запись.
+     * @param syscallCount сколько вызовов.
+     */
+    void recordWrites(int syscallCount) {
+        writes.add(syscallCount);
+    }
+
+    /**
+     * Учитывает обгон срочным сообщением обычных.
+     */
+    void countOvertake() {
+        overtakes.increment();
+    }
+
+    public long getFrames() {
+        return frames.sum();
+    }
+    public long getWrites() {
+        return writes.sum();
+    }
+    public long getOvertakes() {
+        return overtakes.sum();
+    }
+
+    /**
+     * Останавливает службу; уже назначенные отложенные записи выполняются.
+     */
+    @Override
+    public void close() {
+        timer.shutdown();
+        try {
+            timer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long frameCount = frames.sum(), writeCount = writes.sum();
+        return "кадров: %d, системных записей: %d, кадров на запись: %.2f, окно: %d мкс, обгонов срочными: %d"
+                .formatted(frameCount, writeCount, writeCount == 0 ? 0.0 : (double) frameCount / writeCount,
+                        TimeUnit.NANOSECONDS.toMicros(window), overtakes.sum());
+    }
+}
@@ -0,0 +1,122 @@
+package client;
+
+import common.Message;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class HistoryTest {
+    private static final int HEADER = Long.BYTES + 1 + Integer.BYTES;
+    private static final int MEGABYTE = 1 << 20;
+
+    @TempDir
+    Path root;
+
+    private History history;
+
+    @AfterEach
+    void close() throws IOException {
+        if (history != null) history.close();
+    }
+
+    @Test
+    void appended_records_are_found_after_reopening() throws IOException {
+        Path file = root.resolve("user.history");
+        history = new History(file, 2);
+        for (int i = 0; i < 5; i++) {
+            Message message = Message.fromClientInput("Слово " + i, "Аня");
+            if (i % 2 == 0) history.sent(message);
+            else history.received(message);
+        }
+        history.close();
+
+        // в памяти остаются тексты двух последних записей, остальные читаются из файла
+        history = new History(file, 2);
+        List<String> found = history.find("СЛОВО", 10);
+        assertThat(found, hasSize(5));
+        for (int i = 0; i < 5; i++)
+            assertThat(found.get(i), allOf(containsString("Слово " + i), containsString(i % 2 == 0 ? "→" : "←")));
+        assertShows(history.find("слово", 2), "Слово 3", "Слово 4");
+        assertThat(history.find("нет такого", 10), empty());
+
+        history.sent(Message.fromClientInput("Слово 5", "Аня"));
+        history.close();
+        history = new History(file, 2);
+        assertThat(history.find("слово", 10), hasSize(6));
+        assertThat(Files.size(file), equalTo((long) MEGABYTE));
+    }
+
+    @Test
+    void torn_last_record_is_dropped_and_overwritten() throws IOException {
+        Path file = root.resolve("user.history");
+        history = new History(file, 10);
+        history.received(Message.fromClientInput("первое", "Аня"));
+        history.received(Message.fromClientInput("второе", "Аня"));
+        history.received(Message.fromClientInput("оборванное", "Аня"));
+        history.close();
+
+        // время пишется последним: при аварии посреди записи оно так и остаётся нулевым
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Long.BYTES), lastRecord(channel));
+        }
+
+        history = new History(file, 10);
+        assertShows(history.find("", 10), "первое", "второе");
+        history.received(Message.fromClientInput("третье", "Аня"));
+        history.close();
+
+        history = new History(file, 10);
+        assertShows(history.find("", 10), "первое", "второе", "третье");
+        assertThat(history.find("оборванное", 10), empty());
+    }
+
+    @Test
+    void file_grows_in_steps_and_keeps_every_record() throws IOException {
+        Path file = root.resolve("user.history");
+        history = new History(file, 1);
+        String large = "ы".repeat(100_000);
+        for (int i = 0; i < 8; i++)
+            history.sent(Message.fromClientInput(large + " часть " + i, "Аня"));
+        history.close();
+        assertThat(Files.size(file), equalTo(2L * MEGABYTE));
+
+        history = new History(file, 1);
+        assertThat(history.find("часть", 10), hasSize(8));
+        assertThat(history.find("часть 0", 10), hasSize(1));
+    }
+
+    /**
+     * Проверяет, что найдены записи ровно с данными текстами в данном порядке.
+     */
+    private static void assertShows(List<String> found, String... texts) {
+        assertThat(found, hasSize(texts.length));
+        for (int i = 0; i < texts.length; i++)
+            assertThat(found.get(i), containsString(texts[i]));
+    }
+
+    /**
+     * Находит смещение последней записи, проходя заголовки от начала файла.
+     */
+    private static long lastRecord(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        long position = 0, last = -1;
+        while (true) {
+            header.clear();
+            channel.read(header, position);
+            if (header.getLong(0) == 0) return last;
+            last = position;
+            position += HEADER + header.getInt(Long.BYTES + 1);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package common;
+
+/**
+ * Замер занятой кучи для тестов расхода памяти.
+ */
+final class Heap {
+    private Heap() {
+    }
+
+    /**
+     * Несколько раз просит сборку мусора и возвращает занятую после неё часть кучи.
+     * @return занятая куча в байтах.
+     */
+    static long used() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -43,6 +43,16 @@ class MessageBuildingTest {
     }
 
 
+    @Test
+    void ignore_and_mute_forms() {
+        Message ignore = fromClientInput("/ignore  " + GENERAL_RECEIVER + " ", GENERAL_SENDER);
+        assertThat(ignore.getType(), equalTo(IGNORE_REQUEST));
+        assertThat(ignore.getMessage(), equalTo(GENERAL_RECEIVER));
+        assertThat(fromClientInput("/ignore", GENERAL_SENDER).getMessage(), nullValue());
+        assertThat(fromClientInput("/mute", GENERAL_SENDER).getType(), equalTo(MUTE_REQUEST));
+    }
+
+
     @Test
     void fromServer() {
     }
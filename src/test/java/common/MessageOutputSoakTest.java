@@ -0,0 +1,69 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class MessageOutputSoakTest {
+    private static final int MESSAGES = 1_000_000;
+    private static final int WARM_UP = 100_000;
+    private static final int RESET_OBJECTS = 1000;
+    private static final long RESET_BYTES = 1024 * 1024;
+    /**
+     * Допустимый прирост занятой кучи между прогревом и концом прогона.
+     * Без сброса таблица ссылок удерживала бы все 900 тысяч сообщений – сотни мегабайт.
+     */
+    private static final long ALLOWED_GROWTH = 16L * 1024 * 1024;
+
+    /**
+     * Нижележащий поток, который только считает байты.
+     */
+    private static class Sink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+
+    @Test
+    void heap_stays_flat_over_a_million_messages(TestReporter reporter) throws IOException {
+        Sink sink = new Sink();
+        try (MessageOutput output = new MessageOutput(sink, RESET_OBJECTS, RESET_BYTES)) {
+            for (int i = 0; i < WARM_UP; i++)
+                output.write(Message.fromClientInput("сообщение номер " + i, "отправитель"));
+            long warmedUp = Heap.used();
+            for (int i = WARM_UP; i < MESSAGES; i++)
+                output.write(Message.fromClientInput("сообщение номер " + i, "отправитель"));
+            long finished = Heap.used();
+
+            reporter.publishEntry("heap", "после %d сообщений: %d КБ, после %d: %d КБ; записано %d МБ, сбросов %d"
+                    .formatted(WARM_UP, warmedUp / 1024, MESSAGES, finished / 1024,
+                            output.getBytesWritten() / (1024 * 1024), output.getResets()));
+            assertThat(finished - warmedUp, lessThan(ALLOWED_GROWTH));
+            assertThat(output.getResets(), greaterThanOrEqualTo((long) MESSAGES / RESET_OBJECTS));
+            assertThat(output.getBytesWritten(), equalTo(sink.count));
+        }
+    }
+
+    @Test
+    void resets_on_byte_threshold_before_object_threshold() throws IOException {
+        try (MessageOutput output = new MessageOutput(new Sink(), Integer.MAX_VALUE, 64 * 1024)) {
+            String large = "ы".repeat(16 * 1024);
+            for (int i = 0; i < 10; i++)
+                output.write(Message.fromClientInput(large + i, "отправитель"));
+            assertThat(output.getResets(), greaterThanOrEqualTo(2L));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package common;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import static common.MessageType.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PackedMessageTest {
+    private static final String GENERAL_SENDER = "отправитель";
+    private static final String GENERAL_RECEIVER = "получатель";
+    private static final int FOOTPRINT_MESSAGES = 400_000;
+
+    @Test
+    void round_trip_keeps_every_field() {
+        Message original = Message.fromClientInput("@" + GENERAL_RECEIVER + " Привет, как дела?", GENERAL_SENDER)
+                .sequenced(123_456, System.currentTimeMillis() + 5);
+        PackedMessage packed = PackedMessage.pack(original, UnaryOperator.identity());
+        assertThat(packed.getType(), equalTo(PRIVATE_MSG));
+        assertThat(packed.getSender(), equalTo(GENERAL_SENDER));
+        assertThat(packed.getAddressee(), equalTo(GENERAL_RECEIVER));
+        assertThat(packed.getMessage(), equalTo("Привет, как дела?"));
+        assertThat(packed.getId(), equalTo(original.getId()));
+        assertThat(packed.getSentAt(), equalTo(original.getSentAt()));
+        assertThat(packed.getReceivedAt(), equalTo(original.getReceivedAt()));
+        assertThat(packed.getSeq(), equalTo(original.getSeq()));
+        assertThat(packed.unpack(), equalTo(original));
+    }
+
+    @Test
+    void absent_fields_stay_absent() {
+        Message notice = Message.fromServer("Кто-то вошёл");
+        Message unpacked = PackedMessage.pack(notice, UnaryOperator.identity()).unpack();
+        assertThat(unpacked.getType(), equalTo(SERVER_MSG));
+        assertThat(unpacked.getSender(), nullValue());
+        assertThat(unpacked.getAddressee(), nullValue());
+        assertThat(unpacked.getMessage(), equalTo("Кто-то вошёл"));
+        assertThat(unpacked.getId(), equalTo(0L));
+        assertThat(unpacked.getSentAt(), equalTo(0L));
+    }
+
+    @Test
+    void sender_is_shared_with_the_roster() {
+        String registered = GENERAL_SENDER;
+        Message message = Message.fromClientInput("текст", new String(GENERAL_SENDER));
+        PackedMessage packed = PackedMessage.pack(message, name -> name.equals(registered) ? registered : name);
+        assertThat(packed.getSender(), sameInstance(registered));
+    }
+
+    @Test
+    void batches_are_not_packed() {
+        Message batch = Message.batch("пакет", List.of(Message.fromServer("внутри")), GENERAL_RECEIVER);
+        assertThrows(IllegalArgumentException.class, () -> PackedMessage.pack(batch, UnaryOperator.identity()));
+    }
+
+    @Test
+    void packed_form_takes_at_most_half_the_memory(TestReporter reporter) {
+        String registered = GENERAL_SENDER;
+        long now = System.currentTimeMillis();
+
+        long before = Heap.used();
+        List<Message> plain = new ArrayList<>(FOOTPRINT_MESSAGES);
+        for (int i = 0; i < FOOTPRINT_MESSAGES; i++)
+            // как после приёма из сети: у каждого сообщения своя строка имени отправителя
+            plain.add(Message.fromClientInput("сообщение номер " + i, new String(registered.toCharArray()))
+                    .sequenced(i + 1, now));
+        long plainBytes = Heap.used() - before;
+
+        before = Heap.used();
+        List<PackedMessage> packed = new ArrayList<>(FOOTPRINT_MESSAGES);
+        for (int i = 0; i < FOOTPRINT_MESSAGES; i++)
+            packed.add(PackedMessage.pack(plain.get(i), name -> registered));
+        long packedBytes = Heap.used() - before;
+
+        reporter.publishEntry("footprint", "%d сообщений: объектами %d КБ, упакованными %d КБ (%.0f%%)".formatted(
+                FOOTPRINT_MESSAGES, plainBytes / 1024, packedBytes / 1024, 100.0 * packedBytes / plainBytes));
+        assertThat(packed.get(FOOTPRINT_MESSAGES - 1).getMessage(), equalTo("сообщение номер " + (FOOTPRINT_MESSAGES - 1)));
+        assertThat(packedBytes * 2, lessThanOrEqualTo(plainBytes));
+    }
+}
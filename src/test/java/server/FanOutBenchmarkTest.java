@@ -0,0 +1,109 @@
+package server;
+
+import common.Delivery;
+import common.Message;
+import common.MessageOutput;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class FanOutBenchmarkTest {
+    private static final int ROOM_SIZE = 5000;
+    private static final int CHUNK = 256;
+    private static final int MESSAGES = 5;
+
+    private static String[] room() {
+        String[] names = new String[ROOM_SIZE];
+        for (int i = 0; i < ROOM_SIZE; i++)
+            names[i] = "участник" + i;
+        return names;
+    }
+
+    @Test
+    void every_recipient_gets_every_message_in_order() {
+        String[] room = room();
+        Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        try (FanOut fanOut = new FanOut(4, CHUNK)) {
+            for (int n = 0; n < MESSAGES; n++)
+                fanOut.deliver(room, -1, n, 0, (user, message, sender) -> received
+                        .computeIfAbsent(user, k -> new ArrayList<>()).add(message));
+        }
+        assertThat(received.size(), equalTo(ROOM_SIZE));
+        received.values().forEach(got -> assertThat(got, contains(0, 1, 2, 3, 4)));
+    }
+
+    @Test
+    void small_rooms_are_served_on_the_calling_thread() {
+        Thread caller = Thread.currentThread();
+        AtomicInteger elsewhere = new AtomicInteger();
+        try (FanOut fanOut = new FanOut(4, CHUNK)) {
+            fanOut.deliver(Arrays.copyOf(room(), CHUNK), -1, null, 0, (user, message, sender) -> {
+                if (Thread.currentThread() != caller) elsewhere.incrementAndGet();
+            });
+        }
+        assertThat(elsewhere.get(), equalTo(0));
+    }
+
+    /**
+     * Получатель с собственным потоком вывода, как у Соединения, только без сокета.
+     */
+    private record Peer(String name, MessageOutput output) {
+    }
+
+    /**
+     * Рассылка, нагружающая процессор, а не ожидающая: каждому получателю кадр с сообщением
+     * кодируется и выталкивается в его собственный поток вывода. Ускорение показывает,
+     * насколько рассылка использует ядра; оно попадает в отчёт теста, а не в стандартный вывод.
+     */
+    @Test
+    void encoding_fan_out_scales_with_pool_size(TestReporter reporter) throws IOException {
+        Peer[] room = new Peer[ROOM_SIZE];
+        for (int i = 0; i < ROOM_SIZE; i++)
+            room[i] = new Peer("участник" + i, new MessageOutput(OutputStream.nullOutputStream(), 1, Long.MAX_VALUE));
+        Message message = Message.fromClientInput("Всем привет! ".repeat(20), "Боря");
+        FanOut.Action<Peer, Message> encode = (peer, payload, sender) -> {
+            try {
+                peer.output().write(new Delivery(payload, peer.name()));
+                peer.output().flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        int cores = Runtime.getRuntime().availableProcessors();
+        long sequential = 0;
+        StringBuilder report = new StringBuilder("Рассылка %d получателям, кусок %d, ядер %d:%n"
+                .formatted(ROOM_SIZE, CHUNK, cores));
+        long frames = 0;
+        for (int poolSize : new TreeSet<>(List.of(1, 2, 4, 8, cores))) {
+            long elapsed;
+            try (FanOut fanOut = new FanOut(poolSize, poolSize == 1 ? ROOM_SIZE : CHUNK)) {
+                fanOut.deliver(room, -1, message, 0, encode);    // прогрев
+                long start = System.nanoTime();
+                for (int n = 0; n < MESSAGES; n++)
+                    fanOut.deliver(room, -1, message, 0, encode);
+                elapsed = (System.nanoTime() - start) / MESSAGES;
+            }
+            if (poolSize == 1) sequential = elapsed;
+            report.append("  потоков %2d: %6d мкс на сообщение, ускорение ×%.1f%n".formatted(
+                    poolSize, TimeUnit.NANOSECONDS.toMicros(elapsed), (double) sequential / elapsed));
+            frames += (long) ROOM_SIZE * (MESSAGES + 1);
+            // таблица ссылок сбрасывается после каждого кадра, так что сбросы считают кадры
+            assertThat(Arrays.stream(room).mapToLong(peer -> peer.output().getResets()).sum(), equalTo(frames));
+        }
+        reporter.publishEntry("fan-out", report.toString());
+    }
+}
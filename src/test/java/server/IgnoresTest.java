@@ -0,0 +1,90 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class IgnoresTest {
+    private static final int ROOM_SIZE = 10_000;
+
+    @Test
+    void ids_stay_dense_and_freed_ones_are_reused() {
+        Ignores ignores = new Ignores();
+        assertThat(ignores.register("Аня"), equalTo(0));
+        assertThat(ignores.register("Боря"), equalTo(1));
+        assertThat(ignores.register("Вера"), equalTo(2));
+        assertThat(ignores.register("Боря"), equalTo(1));
+        ignores.release("Боря");
+        assertThat(ignores.idOf("Боря"), equalTo(-1));
+        assertThat(ignores.register("Гоша"), equalTo(1));
+    }
+
+    @Test
+    void ignoring_is_one_sided_and_toggles() {
+        Ignores ignores = new Ignores();
+        ignores.register("Аня");
+        ignores.register("Боря");
+        assertThat(ignores.toggleIgnore("Аня", "Боря"), is(true));
+        assertThat(ignores.hides("Аня", "Боря", false), is(true));
+        assertThat(ignores.hides("Боря", "Аня", false), is(false));
+        assertThat(ignores.ignoredBy("Аня"), contains("Боря"));
+        assertThat(ignores.toggleIgnore("Аня", "Боря"), is(false));
+        assertThat(ignores.hides("Аня", "Боря", false), is(false));
+    }
+
+    @Test
+    void mute_hides_only_common_messages() {
+        Ignores ignores = new Ignores();
+        ignores.register("Аня");
+        ignores.register("Боря");
+        assertThat(ignores.toggleMute("Аня"), is(true));
+        assertThat(ignores.hides("Аня", "Боря", true), is(true));
+        assertThat(ignores.hides("Аня", "Боря", false), is(false));
+        assertThat(ignores.hides("Аня", null, true), is(true));
+    }
+
+    @Test
+    void released_id_comes_back_clean() {
+        Ignores ignores = new Ignores();
+        ignores.register("Аня");
+        ignores.register("Боря");
+        ignores.toggleIgnore("Аня", "Боря");
+        ignores.toggleMute("Боря");
+        ignores.release("Боря");
+        int reused = ignores.register("Вера");
+        assertThat(ignores.hides("Аня", "Вера", false), is(false));
+        assertThat(ignores.hides(reused, 0, true), is(false));
+        assertThat(ignores.ignoredBy("Аня"), empty());
+    }
+
+    @Test
+    void rename_carries_the_lists_along() {
+        Ignores ignores = new Ignores();
+        ignores.register("Аня");
+        ignores.register("Боря");
+        ignores.toggleIgnore("Аня", "Боря");
+        ignores.register("Борис");
+        ignores.rename("Боря", "Борис");
+        assertThat(ignores.idOf("Боря"), equalTo(-1));
+        assertThat(ignores.hides("Аня", "Борис", false), is(true));
+        assertThat(ignores.ignoredBy("Аня"), contains("Борис"));
+    }
+
+    @Test
+    void broadcast_check_over_a_large_room() {
+        Ignores ignores = new Ignores();
+        int[] ids = new int[ROOM_SIZE];
+        for (int i = 0; i < ROOM_SIZE; i++)
+            ids[i] = ignores.register("участник" + i);
+        int sender = ids[0];
+        for (int i = 1; i < ROOM_SIZE; i += 10)
+            ignores.toggleIgnore("участник" + i, "участник0");
+        for (int i = 2; i < ROOM_SIZE; i += 10)
+            ignores.toggleMute("участник" + i);
+        int delivered = 0;
+        for (int i = 1; i < ROOM_SIZE; i++)
+            if (!ignores.hides(ids[i], sender, true)) delivered++;
+        assertThat(delivered, equalTo(ROOM_SIZE - 1 - 2 * ROOM_SIZE / 10));
+    }
+}
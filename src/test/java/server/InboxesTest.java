@@ -0,0 +1,98 @@
+package server;
+
+import common.Message;
+import common.PackedMessage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class InboxesTest {
+    @TempDir
+    Path root;
+
+    private Inboxes inboxes;
+
+    @AfterEach
+    void close() {
+        if (inboxes != null) inboxes.close();
+    }
+
+    @Test
+    void new_inboxes_are_refused_past_the_limit_but_existing_ones_still_fill() throws IOException {
+        inboxes = new Inboxes(root, 2, Long.MAX_VALUE, 10, Long.MAX_VALUE, 10);
+        assertThat(inboxes.store(letter("раз", "Аня")), equalTo(Inboxes.Outcome.STORED));
+        assertThat(inboxes.store(letter("два", "Боря")), equalTo(Inboxes.Outcome.STORED));
+        assertThat(inboxes.store(letter("три", "Вова")), equalTo(Inboxes.Outcome.REFUSED));
+        assertThat(inboxes.store(letter("четыре", "Аня")), equalTo(Inboxes.Outcome.STORED));
+
+        assertThat(inboxes.collect("Аня"), hasSize(2));
+        assertThat(inboxes.store(letter("пять", "Вова")), equalTo(Inboxes.Outcome.STORED));
+    }
+
+    @Test
+    void expired_inboxes_make_room_for_new_ones() throws IOException {
+        inboxes = new Inboxes(root, 2, Long.MAX_VALUE, 10, Long.MAX_VALUE, 0);
+        inboxes.store(letter("раз", "Выдумка"));
+        inboxes.store(letter("два", "Небыль"));
+        assertThat(inboxes.store(letter("три", "Аня")), equalTo(Inboxes.Outcome.REFUSED));
+        assertThat(files(), hasSize(2));
+
+        inboxes.setLimits(2, 0, 10, Long.MAX_VALUE, 0);
+        assertThat(inboxes.store(letter("три", "Аня")), equalTo(Inboxes.Outcome.STORED));
+        assertThat(inboxes.collect("Выдумка"), empty());
+        assertThat(inboxes.collect("Небыль"), empty());
+        assertThat(files(), hasSize(1));
+        assertThat(inboxes.collect("Аня").get(0).getMessage(), equalTo("три"));
+    }
+
+    @Test
+    void spilled_messages_come_back_in_order_and_the_file_is_removed() throws IOException {
+        inboxes = new Inboxes(root, 10, Long.MAX_VALUE, 10, Long.MAX_VALUE, 2);
+        List<Message> sent = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Message message = Message.fromClientInput("@Аня письмо " + i, "Боря").sequenced(i + 1, 1_000_000L + i);
+            sent.add(message);
+            assertThat(inboxes.store(PackedMessage.pack(message, name -> name)), equalTo(Inboxes.Outcome.STORED));
+        }
+        assertThat(files(), hasSize(1));
+
+        List<Message> mail = inboxes.collect("Аня");
+        assertThat(mail, contains(sent.toArray()));
+        assertThat(mail.get(4).getSeq(), equalTo(5L));
+        assertThat(mail.get(4).getReceivedAt(), equalTo(1_000_004L));
+        assertThat(mail.get(4).getSentAt(), equalTo(sent.get(4).getSentAt()));
+        assertThat(files(), empty());
+        assertThat(inboxes.collect("Аня"), empty());
+    }
+
+    @Test
+    void reconcile_removes_files_left_without_an_inbox() throws IOException {
+        inboxes = new Inboxes(root, 10, Long.MAX_VALUE, 10, Long.MAX_VALUE, 0);
+        inboxes.store(letter("письмо", "Аня"));
+        Files.write(root.resolve("ghost.inbox"), new byte[]{0, 0, 0, 1});
+
+        assertThat(inboxes.reconcile(), equalTo(1));
+        assertThat(files(), hasSize(1));
+        assertThat(inboxes.collect("Аня").get(0).getMessage(), equalTo("письмо"));
+    }
+
+    private List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.toList();
+        }
+    }
+
+    private static PackedMessage letter(String text, String addressee) {
+        return PackedMessage.pack(Message.personal(text, "отправитель", addressee), name -> name);
+    }
+}
@@ -0,0 +1,157 @@
+package server;
+
+import common.Delivery;
+import common.Message;
+import common.MessageOutput;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class OutboxTest {
+    private static final String PEER = "Аня";
+
+    /**
+     * Поток, запись в который стоит, пока его не откроют, – как сокет медленного клиента.
+     */
+    private static final class Gate extends OutputStream {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        volatile CountDownLatch entered = new CountDownLatch(1);
+        volatile CountDownLatch open = new CountDownLatch(0);
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            entered.countDown();
+            try {
+                if (!open.await(5, TimeUnit.SECONDS)) throw new IOException("Запись зависла");
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            synchronized (written) {
+                written.write(bytes, offset, length);
+            }
+        }
+
+        List<String> texts() throws IOException, ClassNotFoundException {
+            byte[] bytes;
+            synchronized (written) {
+                bytes = written.toByteArray();
+            }
+            List<String> texts = new ArrayList<>();
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                while (true)
+                    texts.add(((Delivery) in.readObject()).getPayload().getMessage());
+            } catch (EOFException e) {
+                return texts;
+            }
+        }
+    }
+
+    private final WriteCoalescer coalescer = new WriteCoalescer(1, 0);
+    private final Gate gate = new Gate();
+
+    @AfterEach
+    void stop() {
+        gate.open.countDown();
+        coalescer.close();
+    }
+
+    private Outbox outbox() throws IOException {
+        MessageOutput output = new MessageOutput(gate, 1000, 1024 * 1024);
+        output.flush();
+        gate.entered = new CountDownLatch(1);
+        gate.open = new CountDownLatch(1);
+        return new Outbox(output, coalescer, 100);
+    }
+
+    @Test
+    void stop_sign_overtakes_the_backlog_of_a_busy_writer_and_then_closes() throws Exception {
+        Outbox outbox = outbox();
+        Thread writer = new Thread(() -> {
+            try {
+                outbox.post(Message.fromClientInput("раз", "Боря"), PEER);
+            } catch (IOException ignored) {
+            }
+        });
+        writer.start();
+        assertThat(gate.entered.await(5, TimeUnit.SECONDS), is(true));
+        outbox.post(Message.fromClientInput("два", "Боря"), PEER);
+        outbox.post(Message.fromClientInput("три", "Боря"), PEER);
+        CountDownLatch closed = new CountDownLatch(1);
+        outbox.postAndClose(Message.stopSign("Пока!", PEER), PEER, closed::countDown, 5000);
+        assertThat(closed.getCount(), equalTo(1L));
+
+        gate.open.countDown();
+        assertThat(closed.await(5, TimeUnit.SECONDS), is(true));
+        writer.join();
+        assertThat(gate.texts(), contains("раз", "Пока!"));
+    }
+
+    @Test
+    void drain_waits_for_the_frames_another_thread_is_writing() throws Exception {
+        Outbox outbox = outbox();
+        Thread writer = new Thread(() -> {
+            try {
+                outbox.post(Message.fromClientInput("раз", "Боря"), PEER);
+            } catch (IOException ignored) {
+            }
+        });
+        writer.start();
+        assertThat(gate.entered.await(5, TimeUnit.SECONDS), is(true));
+        outbox.post(Message.fromClientInput("два", "Боря"), PEER);
+        assertThat(outbox.drain(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50)), is(false));
+
+        new Thread(() -> gate.open.countDown()).start();
+        assertThat(outbox.drain(System.nanoTime() + TimeUnit.SECONDS.toNanos(5)), is(true));
+        assertThat(gate.texts(), contains("раз", "два"));
+    }
+
+    @Test
+    void offer_leaves_the_write_to_a_flusher_and_drain_delivers_it() throws Exception {
+        Outbox outbox = outbox();
+        long start = System.nanoTime();
+        outbox.offer(Message.stopSign("Сервер завершает работу!", PEER), PEER);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), lessThan(1000L));
+        assertThat(gate.entered.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(outbox.drain(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50)), is(false));
+
+        gate.open.countDown();
+        assertThat(outbox.drain(System.nanoTime() + TimeUnit.SECONDS.toNanos(5)), is(true));
+        assertThat(gate.texts(), contains("Сервер завершает работу!"));
+    }
+
+    @Test
+    void stalled_writer_is_closed_when_the_deadline_passes() throws Exception {
+        Outbox outbox = outbox();
+        Thread writer = new Thread(() -> {
+            try {
+                outbox.post(Message.fromClientInput("раз", "Боря"), PEER);
+            } catch (IOException ignored) {
+            }
+        });
+        writer.start();
+        assertThat(gate.entered.await(5, TimeUnit.SECONDS), is(true));
+        CountDownLatch closed = new CountDownLatch(1);
+        long start = System.nanoTime();
+        outbox.postAndClose(Message.stopSign("Пока!", PEER), PEER, closed::countDown, 100);
+        assertThat(closed.await(2, TimeUnit.SECONDS), is(true));
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), greaterThanOrEqualTo(90L));
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class PresenceNoticesTest {
+    private static final int STORM = 2000;
+    private static final long WINDOW = 50;
+
+    @Test
+    void first_event_is_immediate_and_the_rest_are_summarized() {
+        PresenceNotices notices = new PresenceNotices(10_000);
+        Runnable flush = () -> { };
+        assertThat(notices.joined("Аня", flush), is(false));
+        assertThat(notices.joined("Боря", flush), is(true));
+        assertThat(notices.joined("Вера", flush), is(true));
+        assertThat(notices.left("Вера", flush), is(true));
+        assertThat(notices.left("Гоша", flush), is(true));
+        assertThat(notices.renamed("Боря", "Борис", flush), is(true));
+        PresenceNotices.Summary summary = notices.take();
+        assertThat(summary.joined, contains("Борис"));
+        assertThat(summary.left, contains("Гоша"));
+        assertThat(summary.renamed.entrySet(), empty());
+        assertThat(notices.take().isEmpty(), is(true));
+        notices.close();
+    }
+
+    @Test
+    void renames_chain_and_cancel() {
+        PresenceNotices notices = new PresenceNotices(10_000);
+        Runnable flush = () -> { };
+        notices.joined("открывающий", flush);
+        notices.renamed("Аня", "Анна", flush);
+        notices.renamed("Анна", "Анюта", flush);
+        notices.renamed("Боря", "Борис", flush);
+        notices.renamed("Борис", "Боря", flush);
+        PresenceNotices.Summary summary = notices.take();
+        assertThat(summary.renamed, equalTo(Map.of("Аня", "Анюта")));
+        assertThat(summary.joined, empty());
+        notices.close();
+    }
+
+    @Test
+    void zero_window_announces_everything_at_once() {
+        PresenceNotices notices = new PresenceNotices(0);
+        for (int i = 0; i < 10; i++)
+            assertThat(notices.joined("участник" + i, () -> { }), is(false));
+        notices.close();
+    }
+
+    @Test
+    void storm_turns_into_a_few_summaries() throws InterruptedException {
+        PresenceNotices notices = new PresenceNotices(WINDOW);
+        AtomicInteger summaries = new AtomicInteger(), immediate = new AtomicInteger(), summarized = new AtomicInteger();
+        Runnable flush = () -> {
+            summaries.incrementAndGet();
+            summarized.addAndGet(notices.take().joined.size());
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < STORM; i++) {
+            if (!notices.joined("участник" + i, flush)) immediate.incrementAndGet();
+            if (i % 100 == 0) Thread.sleep(5);
+        }
+        long stormMillis = (System.nanoTime() - start) / 1_000_000;
+        Thread.sleep(WINDOW * 4);
+        notices.close();
+        int broadcasts = immediate.get() + summaries.get();
+        assertThat(immediate.get() + summarized.get(), equalTo(STORM));
+        assertThat(broadcasts, lessThanOrEqualTo((int) (stormMillis / WINDOW) + 3));
+    }
+}
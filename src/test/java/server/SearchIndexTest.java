@@ -0,0 +1,111 @@
+package server;
+
+import common.Logger;
+import common.Message;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class SearchIndexTest {
+    private static final Logger QUIET = new Logger(false, false, false, false);
+    private static final int NO_MERGE = 1000;
+
+    @TempDir
+    Path root;
+
+    @Test
+    void flushed_segments_are_found_after_reopening() throws IOException {
+        SearchIndex before = index(3, NO_MERGE, 100);
+        for (int i = 0; i < 7; i++)
+            before.add(Message.fromClientInput("слово " + i, "Аня"));
+        before.close();
+        assertThat(segmentFiles(), hasSize(3));
+
+        SearchIndex after = index(3, NO_MERGE, 100);
+        assertThat(texts(after.find("Ева", "СЛОВО")), contains(
+                "слово 6", "слово 5", "слово 4", "слово 3", "слово 2", "слово 1", "слово 0"));
+        assertThat(after.find("Ева", "слово 3"), hasSize(1));
+        after.close();
+    }
+
+    @Test
+    void merged_segments_replace_their_sources_and_leftovers_are_dropped_on_reopening() throws Exception {
+        SearchIndex first = index(2, NO_MERGE, 100);
+        for (int i = 0; i < 8; i++)
+            first.add(Message.fromClientInput("слово " + i, "Аня"));
+        first.close();
+        List<Path> unmerged = segmentFiles();
+        assertThat(unmerged, hasSize(4));
+        byte[] oldest = Files.readAllBytes(unmerged.get(0));
+
+        SearchIndex second = index(2, 2, 100);
+        for (int i = 8; i < 10; i++)
+            second.add(Message.fromClientInput("слово " + i, "Аня"));
+        // 1-2 и 3-4, 5-6 и 7-8, а затем оба получившихся сливаются в один; 9-10 ждёт пары
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (segmentFiles().size() != 2 && System.nanoTime() < deadline)
+            Thread.sleep(10);
+        second.close();
+        assertThat(segmentFiles(), hasSize(2));
+
+        // остаток прерванного слияния: сегмент, чей диапазон уже покрыт слитым
+        Files.write(unmerged.get(0), oldest);
+        SearchIndex third = index(2, 2, 100);
+        assertThat(segmentFiles(), hasSize(2));
+        List<SearchIndex.Doc> found = third.find("Ева", "слово");
+        assertThat(found, hasSize(10));
+        assertThat(found.stream().mapToLong(doc -> doc.id).distinct().count(), equalTo(10L));
+        assertThat(found.get(0).text, equalTo("слово 9"));
+        third.close();
+    }
+
+    @Test
+    void private_messages_are_found_only_by_their_sender_and_addressee() throws IOException {
+        SearchIndex index = index(100, NO_MERGE, 100);
+        index.add(Message.personal("секретная встреча", "Аня", "Боб"));
+        index.add(Message.fromClientInput("общая встреча", "Ева"));
+        index.close();
+
+        SearchIndex reopened = index(100, NO_MERGE, 100);
+        assertThat(texts(reopened.find("Аня", "встреча")), contains("общая встреча", "секретная встреча"));
+        assertThat(texts(reopened.find("Боб", "встреча")), contains("общая встреча", "секретная встреча"));
+        assertThat(texts(reopened.find("Ева", "встреча")), contains("общая встреча"));
+        assertThat(reopened.find("Ева", "секретная"), empty());
+        reopened.close();
+    }
+
+    @Test
+    void newest_messages_come_first_and_the_result_limit_keeps_the_newest() throws IOException {
+        SearchIndex index = index(2, NO_MERGE, 3);
+        for (int i = 0; i < 5; i++)
+            index.add(Message.fromClientInput("новость " + i, "Аня"));
+        index.close();
+
+        SearchIndex reopened = index(2, NO_MERGE, 3);
+        assertThat(texts(reopened.find("Боб", "новость")), contains("новость 4", "новость 3", "новость 2"));
+        reopened.close();
+    }
+
+    private SearchIndex index(int segmentDocs, int mergeFactor, int resultLimit) {
+        return new SearchIndex(root, 100, segmentDocs, mergeFactor, resultLimit, QUIET);
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).sorted().toList();
+        }
+    }
+
+    private static List<String> texts(List<SearchIndex.Doc> docs) {
+        return docs.stream().map(doc -> doc.text).toList();
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import common.Message;
+import common.PackedMessage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class StateJournalTest {
+    private static final int HISTORY = 100_000;
+    private static final int SESSIONS = 100;
+    private static final int INBOXES = 1000;
+    private static final UnaryOperator<String> SAME = name -> name;
+
+    @TempDir
+    Path root;
+
+    /**
+     * Состояние сервера, сохраняемое журналом: счётчик, сеансы и ящики над одним каталогом.
+     */
+    private static final class State {
+        final MessageSequence sequence = new MessageSequence();
+        final Sessions sessions = new Sessions(60_000, HISTORY, 16);
+        final Inboxes inboxes;
+        final StateJournal journal;
+
+        State(Path directory) {
+            inboxes = new Inboxes(directory.resolve("inbox"), INBOXES, Long.MAX_VALUE, HISTORY, Long.MAX_VALUE, HISTORY);
+            journal = new StateJournal(directory.resolve("state"), Integer.MAX_VALUE, Long.MAX_VALUE,
+                    sequence, sessions, inboxes);
+        }
+    }
+
+    @Test
+    void restart_recovery_of_100k_history_entries(TestReporter reporter) throws Exception {
+        Path live = root.resolve("live");
+        State before = new State(live);
+        before.journal.recover();
+        before.journal.start();
+        List<String> tokens = Stream.iterate(0, i -> i + 1).limit(SESSIONS)
+                .map(i -> before.sessions.open("участник" + i)).toList();
+        for (int i = 0; i < SESSIONS; i++)
+            before.sessions.suspend("участник" + i);
+        for (int i = 0; i < HISTORY / 2; i++) {
+            before.sessions.keepFor(packed(Message.fromServer("сообщение " + before.sequence.next(),
+                    "участник" + i % SESSIONS)), "участник" + i % SESSIONS);
+            before.inboxes.store(packed(Message.personal("письмо " + i, "отправитель", "адресат" + i % INBOXES)));
+        }
+        long expected = SESSIONS + HISTORY + (before.sequence.current() + 1023) / 1024;
+        while (before.journal.getWritten() < expected) Thread.sleep(10);
+        copy(live.resolve("state"), root.resolve("crash/state"));
+
+        long start = System.nanoTime();
+        State fromJournal = new State(root.resolve("crash"));
+        String report = fromJournal.journal.recover();
+        long journalMillis = (System.nanoTime() - start) / 1_000_000;
+        assertRecovered(fromJournal, tokens);
+        assertThat(fromJournal.sequence.current(), greaterThanOrEqualTo(before.sequence.current()));
+
+        before.journal.close();
+        start = System.nanoTime();
+        State fromSnapshot = new State(live);
+        String snapshotReport = fromSnapshot.journal.recover();
+        long snapshotMillis = (System.nanoTime() - start) / 1_000_000;
+        assertRecovered(fromSnapshot, tokens);
+        assertThat(snapshotReport, containsString("воспроизведено записей: 0"));
+        reporter.publishEntry("recovery", "%d записей истории: из журнала %d мс (%s), из снимка %d мс (%s)"
+                .formatted(HISTORY, journalMillis, report, snapshotMillis, snapshotReport));
+    }
+
+    @Test
+    void torn_tail_is_dropped_and_later_changes_continue_the_numbering() throws Exception {
+        State before = new State(root);
+        before.journal.recover();
+        before.journal.start();
+        String token = before.sessions.open("Аня");
+        before.sessions.suspend("Аня");
+        before.sessions.keepFor(packed(Message.fromServer("первое", "Аня")), "Аня");
+        before.sessions.keepFor(packed(Message.fromServer("второе", "Аня")), "Аня");
+        while (before.journal.getWritten() < 3) Thread.sleep(10);
+        Path crash = copy(root.resolve("state"), root.resolve("crash/state"));
+        try (Stream<Path> files = Files.list(crash)) {
+            Path journal = files.filter(file -> file.toString().endsWith(".log")).findFirst().orElseThrow();
+            try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+                channel.truncate(channel.size() - 3);
+            }
+        }
+        before.journal.close();
+
+        State after = new State(root.resolve("crash"));
+        assertThat(after.journal.recover(), containsString("воспроизведено записей: 2"));
+        assertThat(after.sessions.suspendAll(), contains("Аня"));
+        List<Message> missed = after.sessions.resume("Аня", token);
+        assertThat(missed, hasSize(1));
+        assertThat(missed.get(0).getMessage(), equalTo("первое"));
+        after.journal.start();
+        after.sessions.rename("Аня", "Анна");
+        after.journal.close();
+
+        State again = new State(root.resolve("crash"));
+        again.journal.recover();
+        assertThat(again.sessions.suspendAll(), contains("Анна"));
+        assertThat(again.sessions.resume("Анна", token), empty());
+    }
+
+    private static void assertRecovered(State state, List<String> tokens) throws IOException {
+        assertThat(state.sessions.suspendAll(), hasSize(SESSIONS));
+        List<Message> missed = state.sessions.resume("участник7", tokens.get(7));
+        assertThat(missed, hasSize(HISTORY / 2 / SESSIONS));
+        assertThat(missed.get(0).getMessage(), startsWith("сообщение "));
+        List<Message> mail = state.inboxes.collect("адресат42");
+        assertThat(mail, hasSize(HISTORY / 2 / INBOXES));
+        assertThat(mail.get(0).getMessage(), equalTo("письмо 42"));
+    }
+
+    private static PackedMessage packed(Message message) {
+        return PackedMessage.pack(message, SAME);
+    }
+
+    private static Path copy(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : files.toList())
+                Files.copy(file, to.resolve(file.getFileName()));
+        }
+        return to;
+    }
+}